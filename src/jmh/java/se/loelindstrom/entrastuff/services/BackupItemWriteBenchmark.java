@@ -0,0 +1,52 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.loelindstrom.entrastuff.entities.Backup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing users into jsonb batch parameters in {@link BackupItemWriter}. The JdbcTemplate is a
+ * stand-in that hands the batch arguments to a Blackhole instead of Postgres, so only the
+ * application-side cost is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BackupItemWriteBenchmark {
+    @Param({"100", "500"})
+    private int batchSize;
+
+    private BackupItemWriter writer;
+    private List<ObjectNode> users;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JdbcTemplate jdbcStandIn = new JdbcTemplate() {
+            @Override
+            public int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+                blackhole.consume(batchArgs);
+                return new int[batchArgs.size()];
+            }
+        };
+        Backup backup = new Backup();
+        backup.setId(1L);
+        writer = new BackupItemWriter(backup, null, jdbcStandIn, objectMapper, batchSize);
+        users = BenchmarkData.users(objectMapper, 1000);
+    }
+
+    // One operation is 1000 users, i.e. about ten Graph pages
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void writeUsers() throws Exception {
+        for (ObjectNode user : users) {
+            writer.write(user);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the $batch body for one batch of 20 user creations in {@link RestoreEngine}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchPayloadBenchmark {
+    private RestoreEngine restoreEngine;
+    private List<ObjectNode> users;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        // Only payload construction is measured, so no Graph client, token store or snapshots are needed
+        restoreEngine = new RestoreEngine(null, null, null, null, null, List.of(), objectMapper, new SimpleMeterRegistry(), 4, 16, 5);
+        users = BenchmarkData.users(objectMapper, 20);
+    }
+
+    @Benchmark
+    public byte[] createUsersBatch() throws Exception {
+        List<BatchOperation> operations = new ArrayList<>(users.size());
+        for (ObjectNode user : users) {
+            operations.add(restoreEngine.createUserOperation(user));
+        }
+        return restoreEngine.toBatchRequest(operations);
+    }
+}
@@ -0,0 +1,67 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Synthetic Graph payloads shaped like the default /v1.0/users property set.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    static ObjectNode user(ObjectMapper objectMapper, int index) {
+        ObjectNode user = objectMapper.createObjectNode();
+        user.putArray("businessPhones").add("+46 8 123 45" + (index % 100));
+        user.put("displayName", "Benchmark User " + index);
+        user.put("givenName", "Benchmark");
+        user.putNull("jobTitle");
+        user.put("mail", "bench.user" + index + "@example.onmicrosoft.com");
+        user.putNull("mobilePhone");
+        user.putNull("officeLocation");
+        user.put("preferredLanguage", "sv-SE");
+        user.put("surname", "User " + index);
+        user.put("userPrincipalName", "bench.user" + index + "@example.onmicrosoft.com");
+        user.put("id", UUID.nameUUIDFromBytes(("user-" + index).getBytes()).toString());
+        return user;
+    }
+
+    static List<ObjectNode> users(ObjectMapper objectMapper, int count) {
+        List<ObjectNode> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(user(objectMapper, i));
+        }
+        return users;
+    }
+
+    static byte[] usersPage(ObjectMapper objectMapper, int count, String nextLink) throws Exception {
+        ObjectNode page = objectMapper.createObjectNode();
+        page.put("@odata.context", "https://graph.microsoft.com/v1.0/$metadata#users");
+        ArrayNode value = page.putArray("value");
+        users(objectMapper, count).forEach(value::add);
+        if (nextLink != null) {
+            page.put("@odata.nextLink", nextLink);
+        }
+        return objectMapper.writeValueAsBytes(page);
+    }
+
+    static byte[] webhookNotification(ObjectMapper objectMapper, int index) throws Exception {
+        ObjectNode event = objectMapper.createObjectNode();
+        event.put("subscriptionId", "7f105c7d-2dc5-4530-97cd-4e7ae6534c07");
+        event.put("clientState", "benchmark-client-state");
+        event.put("changeType", "updated");
+        event.put("resource", "Users/" + UUID.nameUUIDFromBytes(("user-" + index).getBytes()));
+        event.put("tenantId", "00000000-0000-0000-0000-000000000000");
+        event.putObject("resourceData")
+                .put("@odata.type", "#Microsoft.Graph.User")
+                .put("id", UUID.nameUUIDFromBytes(("user-" + index).getBytes()).toString());
+        ObjectNode payload = objectMapper.createObjectNode();
+        payload.putArray("value").add(event);
+        return objectMapper.writeValueAsBytes(payload);
+    }
+}
@@ -0,0 +1,52 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import se.loelindstrom.entrastuff.config.GraphClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Page handling in the user backup: parsing a /v1.0/users page from memory, and fetching
+ * it through {@link GraphClient} from a local stub server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GraphPageParsingBenchmark {
+    @Param({"100", "999"})
+    private int pageSize;
+
+    private GraphPageParser pageParser;
+    private GraphClient graphClient;
+    private StubGraphServer server;
+    private byte[] page;
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        pageParser = new GraphPageParser(objectMapper);
+        graphClient = new GraphClient(new SimpleMeterRegistry(), "https://graph.microsoft.com/v1.0", "https://login.microsoftonline.com", 5000, 60000);
+        page = BenchmarkData.usersPage(objectMapper, pageSize, "https://graph.microsoft.com/v1.0/users?$skiptoken=benchmark");
+        server = new StubGraphServer(page);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public GraphPageParser.PageResult parsePage(Blackhole blackhole) throws IOException {
+        return pageParser.parse(new ByteArrayInputStream(page), blackhole::consume);
+    }
+
+    @Benchmark
+    public GraphPageParser.PageResult fetchAndParsePage(Blackhole blackhole) throws IOException {
+        return graphClient.get(server.usersUrl(), "benchmark-token", body -> pageParser.parse(body, blackhole::consume));
+    }
+}
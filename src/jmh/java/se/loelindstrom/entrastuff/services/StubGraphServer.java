@@ -0,0 +1,37 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a fixed /v1.0/users page from localhost, so page fetching can be measured without Entra.
+ */
+final class StubGraphServer implements AutoCloseable {
+    private final HttpServer server;
+
+    StubGraphServer(byte[] usersPage) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1.0/users", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, usersPage.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(usersPage);
+            }
+        });
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    String usersUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1.0/users";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
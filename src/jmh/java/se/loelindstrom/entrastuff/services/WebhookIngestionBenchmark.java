@@ -0,0 +1,85 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Per-notification webhook handling: durably appending to the {@link WebhookSpool} through
+ * {@link AuditLogWriter}, with several request threads so group commit of the fsyncs is exercised.
+ * The replayer saves into a stand-in repository and partition manager instead of Postgres.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class WebhookIngestionBenchmark {
+    private Path spoolDirectory;
+    private WebhookSpool spool;
+    private AuditLogWriter auditLogWriter;
+    private List<JsonNode> events;
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        spoolDirectory = Files.createTempDirectory("webhook-spool-bench");
+        spool = new WebhookSpool(spoolDirectory.toString(), 16 * 1024 * 1024, Long.MAX_VALUE);
+        auditLogWriter = new AuditLogWriter(standInRepository(), standInPartitionManager(), spool,
+                // The same events are appended over and over, so deduplication is disabled
+                new WebhookDedupCache(objectMapper, 0, 0), objectMapper, new SimpleMeterRegistry(), 100, false, 0);
+
+        events = new ArrayList<>();
+        objectMapper.readTree(BenchmarkData.webhookNotification(objectMapper, 1)).get("value").forEach(events::add);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        auditLogWriter.shutdown();
+        spool.close();
+        try (Stream<Path> files = Files.walk(spoolDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean handleNotification() throws Exception {
+        return auditLogWriter.append(events);
+    }
+
+    private static AuditLogPartitionManager standInPartitionManager() {
+        return new AuditLogPartitionManager(null, 0, 0) {
+            @Override
+            public void ensurePartitions(LocalDateTime from, LocalDateTime to) {
+            }
+        };
+    }
+
+    private static AuditLogRepository standInRepository() {
+        return (AuditLogRepository) Proxy.newProxyInstance(
+                AuditLogRepository.class.getClassLoader(),
+                new Class<?>[]{AuditLogRepository.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "findExistingNotificationIds" -> Set.of();
+                    case "saveAll" -> args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "StandInAuditLogRepository";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,96 @@
+package se.loelindstrom.entrastuff.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup profiles from backup.profiles: the user attributes fetched with $select and the page size.
+ * backup.profile-by-mode picks the profile for full and incremental backups.
+ */
+@Component
+@ConfigurationProperties(prefix = "backup")
+@Data
+public class BackupProfiles {
+    public static final String DEFAULT_PROFILE = "default";
+    public static final int MAX_PAGE_SIZE = 999;
+    // What RestoreEngine.createUserOperation reads, so a backup taken with any profile can be restored
+    private static final List<String> RESTORE_ATTRIBUTES = List.of("id", "displayName", "userPrincipalName");
+
+    private Map<String, Profile> profiles = new LinkedHashMap<>();
+    private Map<String, String> profileByMode = new HashMap<>();
+
+    @PostConstruct
+    public void validate() {
+        // Without configuration, fetch Graph's default property set in pages of the maximum size
+        profiles.putIfAbsent(DEFAULT_PROFILE, new Profile());
+
+        for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+            Profile profile = entry.getValue();
+            profile.setName(entry.getKey());
+            if (profile.getPageSize() < 1 || profile.getPageSize() > MAX_PAGE_SIZE) {
+                throw new IllegalStateException("Backup profile " + entry.getKey() + " has page size " + profile.getPageSize()
+                        + ". It must be between 1 and " + MAX_PAGE_SIZE + ".");
+            }
+            if (!profile.getSelect().isEmpty()) {
+                for (String attribute : RESTORE_ATTRIBUTES) {
+                    if (!profile.getSelect().contains(attribute)) {
+                        throw new IllegalStateException("Backup profile " + entry.getKey() + " does not select " + attribute
+                                + ", which restores need.");
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : profileByMode.entrySet()) {
+            if (!profiles.containsKey(entry.getValue())) {
+                throw new IllegalStateException("Backup mode " + entry.getKey() + " uses unknown profile " + entry.getValue() + ".");
+            }
+        }
+    }
+
+    public Profile forMode(String mode) {
+        return profiles.get(profileByMode.getOrDefault(mode, DEFAULT_PROFILE));
+    }
+
+    @Data
+    public static class Profile {
+        private String name;
+        // Empty means Graph's default property set
+        private List<String> select = new ArrayList<>();
+        private int pageSize = MAX_PAGE_SIZE;
+
+        public String usersUrl(String baseUrl) {
+            return usersUrl(baseUrl, null);
+        }
+
+        public String usersUrl(String baseUrl, String filter) {
+            String filterParam = filter == null ? "" : "&$filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20");
+            return baseUrl + "/users?$top=" + pageSize + selectParam() + filterParam;
+        }
+
+        // Delta queries take the page size from the Prefer: odata.maxpagesize header instead of $top
+        public String deltaUrl(String baseUrl) {
+            String select = selectParam();
+            return baseUrl + "/users/delta" + (select.isEmpty() ? "" : "?" + select.substring(1));
+        }
+
+        // No users, only a deltaLink for the changes made from now on
+        public String latestDeltaUrl(String baseUrl) {
+            String url = deltaUrl(baseUrl);
+            return url + (url.contains("?") ? "&" : "?") + "$deltatoken=latest";
+        }
+
+        private String selectParam() {
+            return select.isEmpty() ? "" : "&$select=" + String.join(",", select);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package se.loelindstrom.entrastuff.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scheduled backup policies from backup.schedule. Each policy has Spring cron expressions for full and/or
+ * incremental backups of a tenant; when both fire at once a full backup is run. Backups of the policy older
+ * than retention-days are pruned after each scheduled run.
+ */
+@Component
+@ConfigurationProperties(prefix = "backup.schedule")
+@Data
+public class BackupSchedule {
+    private boolean enabled;
+    // How long a node's claim on a policy lasts without being renewed, e.g. after the node died
+    private int leaseSeconds = 120;
+    private Map<String, Policy> policies = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void validate() {
+        if (leaseSeconds < 30) {
+            throw new IllegalStateException("backup.schedule.lease-seconds is " + leaseSeconds + ". It must be at least 30.");
+        }
+        for (Map.Entry<String, Policy> entry : policies.entrySet()) {
+            Policy policy = entry.getValue();
+            policy.setName(entry.getKey());
+            if (policy.getFullCron() == null && policy.getIncrementalCron() == null) {
+                throw new IllegalStateException("Backup policy " + entry.getKey() + " has neither a full-cron nor an incremental-cron.");
+            }
+            try {
+                policy.fullSchedule();
+                policy.incrementalSchedule();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Backup policy " + entry.getKey() + " has an invalid cron expression: " + e.getMessage(), e);
+            }
+            if (policy.getRetentionDays() < 0) {
+                throw new IllegalStateException("Backup policy " + entry.getKey() + " has negative retention-days.");
+            }
+        }
+    }
+
+    @Data
+    public static class Policy {
+        private String name;
+        // Defaults to entra.tenant-id
+        private String tenantId;
+        // Six-field Spring cron expressions, e.g. "0 0 2 * * SUN"; either may be left out
+        private String fullCron;
+        private String incrementalCron;
+        // 0 keeps every backup
+        private int retentionDays;
+
+        public CronExpression fullSchedule() {
+            return fullCron == null ? null : CronExpression.parse(fullCron);
+        }
+
+        public CronExpression incrementalSchedule() {
+            return incrementalCron == null ? null : CronExpression.parse(incrementalCron);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package se.loelindstrom.entrastuff.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one HTTP client for all Microsoft Graph and login.microsoftonline.com traffic. Built on the JDK
+ * HttpClient, which negotiates HTTP/2 and reuses connections, so TLS handshakes are paid once per host
+ * instead of once per request. Responses are requested gzip-compressed and can be consumed as streams.
+ * The base URLs are configurable so the application can be pointed at a local Graph simulator.
+ * Every request is timed as graph.requests, tagged with the method, endpoint and status.
+ */
+@Component
+public class GraphClient {
+    private static final Logger logger = LoggerFactory.getLogger(GraphClient.class);
+    // Object ids and UPNs in paths are replaced with {id}, so the endpoint tag stays low-cardinality
+    private static final Pattern ID_SEGMENT = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|.*@.*");
+    private static final int MAX_ENDPOINT_SEGMENTS = 3;
+    private final HttpClient httpClient;
+    private final MeterRegistry meterRegistry;
+    private final Duration readTimeout;
+    private final String baseUrl;
+    private final String loginUrl;
+    private final String basePath;
+
+    public GraphClient(
+            MeterRegistry meterRegistry,
+            @Value("${graph.base-url:https://graph.microsoft.com/v1.0}") String baseUrl,
+            @Value("${graph.login-url:https://login.microsoftonline.com}") String loginUrl,
+            @Value("${graph.http.connect-timeout-ms:5000}") long connectTimeoutMs,
+            @Value("${graph.http.read-timeout-ms:60000}") long readTimeoutMs
+    ) {
+        this.meterRegistry = meterRegistry;
+        this.baseUrl = baseUrl;
+        this.loginUrl = loginUrl;
+        this.basePath = URI.create(baseUrl).getPath();
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * Graph API root, e.g. https://graph.microsoft.com/v1.0, without a trailing slash.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Identity platform root that token requests are sent to.
+     */
+    public String getLoginUrl() {
+        return loginUrl;
+    }
+
+    /**
+     * GETs a URL and hands the (decompressed) body stream to the handler. Throws a
+     * {@link GraphApiException} for non-2xx responses.
+     */
+    public <T> T get(String url, String token, BodyHandler<T> handler) throws IOException {
+        return get(url, token, Map.of(), handler);
+    }
+
+    public <T> T get(String url, String token, Map<String, String> headers, BodyHandler<T> handler) throws IOException {
+        HttpRequest.Builder builder = newRequest(url, token);
+        headers.forEach(builder::setHeader);
+        HttpRequest request = builder
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = decode(response.headers(), response.body())) {
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                String error = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                throw new GraphApiException(
+                        "Graph API request failed with status " + response.statusCode() + ": " + error,
+                        response.statusCode(),
+                        response.headers().firstValue("Retry-After").orElse(null)
+                );
+            }
+            return handler.handle(body);
+        }
+    }
+
+    /**
+     * Sends a request with an optional JSON body and returns the full response, whatever its status.
+     */
+    public GraphResponse send(String method, String url, String token, byte[] jsonBody) throws IOException {
+        HttpRequest.Builder builder = newRequest(url, token);
+        if (jsonBody != null) {
+            builder.header("Content-Type", "application/json")
+                    .method(method, HttpRequest.BodyPublishers.ofByteArray(jsonBody));
+        } else {
+            builder.method(method, HttpRequest.BodyPublishers.noBody());
+        }
+        return toGraphResponse(send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    public GraphResponse postForm(String url, Map<String, String> form) throws IOException {
+        String body = form.entrySet().stream()
+                .map(entry -> URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "="
+                        + URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+        HttpRequest request = newRequest(url, null)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return toGraphResponse(send(request, HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    private HttpRequest.Builder newRequest(String url, String token) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(readTimeout)
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip");
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder;
+    }
+
+    // Times the request until the response headers arrive; streamed bodies are read by the caller afterwards
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        long start = System.nanoTime();
+        String status = "IO_ERROR";
+        try {
+            HttpResponse<T> response = httpClient.send(request, bodyHandler);
+            status = String.valueOf(response.statusCode());
+            logger.trace("{} {} answered {} over {}", request.method(), request.uri(), response.statusCode(), response.version());
+            return response;
+        } catch (InterruptedException e) {
+            status = "INTERRUPTED";
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during " + request.method() + " " + request.uri());
+        } finally {
+            Timer.builder("graph.requests")
+                    .description("Graph and token requests until the response headers arrive")
+                    .tag("method", request.method())
+                    .tag("endpoint", endpoint(request.uri()))
+                    .tag("status", status)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // e.g. /users, /users/delta, /users/$count, /$batch, /subscriptions/{id} or token
+    private String endpoint(URI uri) {
+        String path = uri.getPath();
+        if (path.endsWith("/oauth2/v2.0/token")) {
+            return "token";
+        }
+        if (path.startsWith(basePath)) {
+            path = path.substring(basePath.length());
+        }
+        StringBuilder endpoint = new StringBuilder();
+        int segments = 0;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segments++ == MAX_ENDPOINT_SEGMENTS) {
+                break;
+            }
+            endpoint.append('/').append(ID_SEGMENT.matcher(segment).matches() ? "{id}" : segment);
+        }
+        return endpoint.isEmpty() ? "/" : endpoint.toString();
+    }
+
+    private GraphResponse toGraphResponse(HttpResponse<InputStream> response) throws IOException {
+        try (InputStream body = decode(response.headers(), response.body())) {
+            return new GraphResponse(response.statusCode(), response.headers(), body.readAllBytes());
+        }
+    }
+
+    private static InputStream decode(HttpHeaders headers, InputStream body) throws IOException {
+        boolean gzip = headers.firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+        return gzip ? new GZIPInputStream(body, 64 * 1024) : body;
+    }
+
+    @FunctionalInterface
+    public interface BodyHandler<T> {
+        T handle(InputStream body) throws IOException;
+    }
+
+    public record GraphResponse(int statusCode, HttpHeaders headers, byte[] body) {
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        public String header(String name) {
+            return headers.firstValue(name).orElse(null);
+        }
+
+        public String bodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
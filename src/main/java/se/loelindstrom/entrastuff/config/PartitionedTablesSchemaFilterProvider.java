@@ -0,0 +1,60 @@
+package se.loelindstrom.entrastuff.config;
+
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.boot.model.relational.Sequence;
+import org.hibernate.mapping.Table;
+import org.hibernate.tool.schema.spi.SchemaFilter;
+import org.hibernate.tool.schema.spi.SchemaFilterProvider;
+
+import java.util.Set;
+
+/**
+ * Keeps Hibernate's schema tooling away from tables it cannot create itself. audit_logs is range
+ * partitioned, which Hibernate has no mapping for, so {@link se.loelindstrom.entrastuff.services.AuditLogPartitionManager}
+ * creates it and its sequence, and ddl-auto neither drops nor validates them.
+ */
+public class PartitionedTablesSchemaFilterProvider implements SchemaFilterProvider {
+    private static final Set<String> EXCLUDED_TABLES = Set.of("audit_logs");
+    private static final Set<String> EXCLUDED_SEQUENCES = Set.of("audit_logs_seq");
+    private static final SchemaFilter FILTER = new SchemaFilter() {
+        @Override
+        public boolean includeNamespace(Namespace namespace) {
+            return true;
+        }
+
+        @Override
+        public boolean includeTable(Table table) {
+            return !EXCLUDED_TABLES.contains(table.getName());
+        }
+
+        @Override
+        public boolean includeSequence(Sequence sequence) {
+            return !EXCLUDED_SEQUENCES.contains(sequence.getName().getSequenceName().getText());
+        }
+    };
+
+    @Override
+    public SchemaFilter getCreateFilter() {
+        return FILTER;
+    }
+
+    @Override
+    public SchemaFilter getDropFilter() {
+        return FILTER;
+    }
+
+    @Override
+    public SchemaFilter getTruncatorFilter() {
+        return FILTER;
+    }
+
+    @Override
+    public SchemaFilter getMigrateFilter() {
+        return FILTER;
+    }
+
+    @Override
+    public SchemaFilter getValidateFilter() {
+        return FILTER;
+    }
+}
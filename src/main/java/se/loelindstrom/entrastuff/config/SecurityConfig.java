@@ -73,16 +73,17 @@ public class SecurityConfig {
 
         // Configure security
         http
-                .securityMatcher("/api/**")
+                .securityMatcher("/api/**", "/actuator/**")
                 .authorizeHttpRequests(authorize -> authorize
 //                        .requestMatchers(webhookMatcher).permitAll() // Allow whitelisted IPs for /api/webhook
-                        .requestMatchers("/api/webhook").permitAll() // Allow all calls to /api/webhookku - use clientState to authenticate
-                        .requestMatchers("/api/**").authenticated() // Require auth for all other /api/**
+                        .requestMatchers("/api/webhook", "/api/webhook/lifecycle").permitAll() // Allow all calls to /api/webhookku - use clientState to authenticate
+                        .requestMatchers("/actuator/health").permitAll() // Liveness checks need no credentials
+                        .requestMatchers("/api/**", "/actuator/**").authenticated() // Require auth for all other /api/** and metrics
                         .anyRequest().denyAll()
                 )
                 .httpBasic(Customizer.withDefaults())
                 .csrf(csrf -> csrf
-                        .ignoringRequestMatchers("/api/webhook", "/api/backup-users", "/api/restore-users/**", "/api/create-subscription")
+                        .ignoringRequestMatchers("/api/webhook", "/api/webhook/lifecycle", "/api/backup-users", "/api/restore-users/**", "/api/backups/import", "/api/create-subscription", "/api/tenants/**")
                 );
 
         return http.build();
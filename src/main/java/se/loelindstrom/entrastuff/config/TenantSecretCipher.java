@@ -0,0 +1,74 @@
+package se.loelindstrom.entrastuff.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Encrypts the client secrets of registered tenants with AES-256-GCM, so the database never holds them
+ * in plain text. The key is tenants.secret-key, 32 bytes in base64. Without a key, only the tenant configured
+ * in entra.* can be used.
+ */
+@Component
+public class TenantSecretCipher {
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    public TenantSecretCipher(@Value("${tenants.secret-key:}") String secretKey) {
+        if (secretKey.isBlank()) {
+            this.key = null;
+            return;
+        }
+        byte[] keyBytes = Base64.getDecoder().decode(secretKey.trim());
+        if (keyBytes.length != 32) {
+            throw new IllegalStateException("tenants.secret-key must be 32 bytes in base64, but is " + keyBytes.length + " bytes.");
+        }
+        this.key = new SecretKeySpec(keyBytes, "AES");
+    }
+
+    public boolean isConfigured() {
+        return key != null;
+    }
+
+    // Returns base64 of the random IV followed by the ciphertext and tag
+    public String encrypt(String secret) {
+        try {
+            byte[] iv = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, requireKey(), new GCMParameterSpec(TAG_BITS, iv));
+            byte[] encrypted = cipher.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(ByteBuffer.allocate(IV_BYTES + encrypted.length).put(iv).put(encrypted).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt a tenant secret.", e);
+        }
+    }
+
+    public String decrypt(String encrypted) {
+        try {
+            byte[] bytes = Base64.getDecoder().decode(encrypted);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, requireKey(), new GCMParameterSpec(TAG_BITS, bytes, 0, IV_BYTES));
+            return new String(cipher.doFinal(bytes, IV_BYTES, bytes.length - IV_BYTES), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to decrypt a tenant secret. Has tenants.secret-key changed?", e);
+        }
+    }
+
+    private SecretKeySpec requireKey() {
+        if (key == null) {
+            throw new IllegalStateException("tenants.secret-key is not set, so tenant secrets can't be stored or read.");
+        }
+        return key;
+    }
+}
@@ -2,88 +2,254 @@ package se.loelindstrom.entrastuff.config;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Caches Entra access tokens per tenant. Reads are lock-free: the current token is an immutable value
+ * in a volatile field. Tokens are refreshed in the background ahead of expiry; concurrent refreshes of
+ * the same tenant are deduplicated into one request, and failed refreshes are retried with jittered backoff.
+ * Callers only wait for the network if the token has actually expired. Refreshes are timed as
+ * graph.token.refresh, tagged with the tenant and whether they succeeded.
+ * The tenant configured in entra.* is registered here; TenantRegistry registers the others. Registering a tenant
+ * again or unregistering it cancels the old credentials' scheduled and in-flight refreshes.
+ */
 @Component
 public class TokenStore {
     private static final Logger logger = LoggerFactory.getLogger(TokenStore.class);
-    private final String tenantId;
-    private final String clientId;
-    private final String clientSecret;
-    private String accessToken;
-    private Instant tokenExpiry;
+    private static final Duration REFRESH_AHEAD = Duration.ofMinutes(5);
+    private static final Duration EXPIRY_MARGIN = Duration.ofSeconds(30);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(1);
+    private final String defaultTenantId;
     private final ObjectMapper objectMapper;
+    private final GraphClient graphClient;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, TenantTokens> tenants = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService refreshExecutor;
 
     public TokenStore(
+            GraphClient graphClient,
+            MeterRegistry meterRegistry,
             @Value("${entra.tenant-id}") String tenantId,
             @Value("${entra.client-id}") String clientId,
             @Value("${entra.client-secret}") String clientSecret
     ) {
-        this.tenantId = tenantId;
-        this.clientId = clientId;
-        this.clientSecret = clientSecret;
+        this.defaultTenantId = tenantId;
         this.objectMapper = new ObjectMapper();
+        this.graphClient = graphClient;
+        this.meterRegistry = meterRegistry;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("token-refresh-scheduler").daemon().factory());
+        this.refreshExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        registerTenant(tenantId, clientId, clientSecret);
     }
 
     @PostConstruct
     public void init() {
         logger.info("Fetching token for Entra as part of init. Will cache it.");
-        refreshToken();
+        getAccessToken();
     }
 
-    public synchronized String getAccessToken() {
-        logger.debug("Getting access token");
-        if (accessToken == null || tokenExpiry.isBefore(Instant.now())) {
-            logger.debug("Need to refresh access token.");
-            refreshToken();
-        } else {
-            logger.debug("Reusing cached access token.");
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        refreshExecutor.shutdownNow();
+    }
+
+    public void registerTenant(String tenantId, String clientId, String clientSecret) {
+        TenantTokens previous = tenants.put(tenantId, new TenantTokens(tenantId, clientId, clientSecret));
+        if (previous != null) {
+            close(previous);
         }
-        return accessToken;
     }
 
-    private void refreshToken() {
-        RestTemplate restTemplate = new RestTemplate();
-        String tokenUrl = String.format("https://login.microsoftonline.com/%s/oauth2/v2.0/token", tenantId);
+    public void unregisterTenant(String tenantId) {
+        TenantTokens removed = tenants.remove(tenantId);
+        if (removed != null) {
+            close(removed);
+            logger.debug("Unregistered the Entra credentials of tenant {}.", tenantId);
+        }
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+    // Stops the background refreshes of credentials that were replaced or removed
+    private void close(TenantTokens tenant) {
+        tenant.closed = true;
+        ScheduledFuture<?> nextRefresh = tenant.nextRefresh;
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        CompletableFuture<AccessToken> inFlight = tenant.refresh.get();
+        if (inFlight != null) {
+            inFlight.cancel(false);
+        }
+        Future<?> task = tenant.task;
+        if (task != null) {
+            task.cancel(true);
+        }
+    }
 
-        MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
-        body.add("client_id", clientId);
-        body.add("client_secret", clientSecret);
-        body.add("grant_type", "client_credentials");
-        body.add("scope", "https://graph.microsoft.com/.default");
+    public String getAccessToken() {
+        return getAccessToken(defaultTenantId);
+    }
 
-        HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(body, headers);
+    public String getAccessToken(String tenantId) {
+        TenantTokens tenant = tenants.get(tenantId);
+        if (tenant == null) {
+            throw new IllegalArgumentException("No Entra credentials registered for tenant " + tenantId);
+        }
 
+        AccessToken token = tenant.current;
+        if (token != null && Instant.now().isBefore(token.expiresAt())) {
+            return token.value();
+        }
+
+        logger.debug("Need to refresh access token for tenant {}.", tenantId);
         try {
-            ResponseEntity<String> response = restTemplate.postForEntity(tokenUrl, request, String.class);
-
-            if (response.getStatusCode().is2xxSuccessful()) {
-                JsonNode jsonNode = objectMapper.readTree(response.getBody());
-                this.accessToken = jsonNode.get("access_token").asText();
-                this.tokenExpiry = Instant.now().plusSeconds(jsonNode.get("expires_in").asLong() - 300); // Refresh 5 min early
-                logger.debug("Successfully retrieved an access token. It expires in {} seconds", this.tokenExpiry);
-            } else {
-                throw new RuntimeException("Token request failed with status: " + response.getStatusCode());
+            return refresh(tenant).join().value();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Failed to fetch Entra token", e.getCause());
+        } catch (CancellationException e) {
+            // The credentials were replaced or removed while waiting; use the current registration, if any
+            return getAccessToken(tenantId);
+        }
+    }
+
+    // Single-flight: every caller gets the same future while a refresh is in progress
+    private CompletableFuture<AccessToken> refresh(TenantTokens tenant) {
+        while (true) {
+            CompletableFuture<AccessToken> inFlight = tenant.refresh.get();
+            if (inFlight != null) {
+                return inFlight;
+            }
+            CompletableFuture<AccessToken> created = new CompletableFuture<>();
+            if (tenant.refresh.compareAndSet(null, created)) {
+                if (tenant.closed) {
+                    created.cancel(false);
+                } else {
+                    tenant.task = refreshExecutor.submit(() -> runRefresh(tenant, created));
+                }
+                return created;
             }
+        }
+    }
+
+    private void runRefresh(TenantTokens tenant, CompletableFuture<AccessToken> result) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            AccessToken token = requestToken(tenant);
+            outcome = "success";
+            tenant.current = token;
+            tenant.failures = 0;
+            result.complete(token);
+            scheduleRefresh(tenant, Duration.between(Instant.now(), token.refreshAt()));
         } catch (Exception e) {
-            logger.error("Failed to fetch Entra token: {}", e.getMessage(), e);
-            throw new RuntimeException("Failed to fetch Entra token", e);
+            if (tenant.closed) {
+                result.cancel(false);
+                return;
+            }
+            logger.error("Failed to fetch Entra token for tenant {}: {}", tenant.tenantId, e.getMessage(), e);
+            result.completeExceptionally(e);
+            scheduleRefresh(tenant, retryDelay(++tenant.failures));
+        } finally {
+            sample.stop(Timer.builder("graph.token.refresh")
+                    .description("Entra token requests, including failed ones")
+                    .tag("tenant", tenant.tenantId)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+            tenant.refresh.compareAndSet(result, null);
+        }
+    }
+
+    private void scheduleRefresh(TenantTokens tenant, Duration delay) {
+        if (scheduler.isShutdown() || tenant.closed) {
+            return;
+        }
+        logger.debug("Next token refresh for tenant {} in {}.", tenant.tenantId, delay);
+        ScheduledFuture<?> previous = tenant.nextRefresh;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        tenant.nextRefresh = scheduler.schedule(() -> refresh(tenant), Math.max(0, delay.toMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    // Exponential backoff with up to 50% random jitter, so tenants don't retry in lockstep
+    private Duration retryDelay(int failures) {
+        long baseMs = Math.min(MAX_RETRY_DELAY.toMillis(), 1000L << Math.min(failures, 16));
+        return Duration.ofMillis(baseMs + ThreadLocalRandom.current().nextLong(baseMs / 2 + 1));
+    }
+
+    private AccessToken requestToken(TenantTokens tenant) throws Exception {
+        String tokenUrl = String.format("%s/%s/oauth2/v2.0/token", graphClient.getLoginUrl(), tenant.tenantId);
+
+        Map<String, String> form = new LinkedHashMap<>();
+        form.put("client_id", tenant.clientId);
+        form.put("client_secret", tenant.clientSecret);
+        form.put("grant_type", "client_credentials");
+        form.put("scope", "https://graph.microsoft.com/.default");
+
+        GraphClient.GraphResponse response = graphClient.postForm(tokenUrl, form);
+        if (!response.isSuccessful()) {
+            throw new RuntimeException("Token request failed with status: " + response.statusCode());
+        }
+
+        JsonNode jsonNode = objectMapper.readTree(response.body());
+        Instant now = Instant.now();
+        Duration lifetime = Duration.ofSeconds(jsonNode.get("expires_in").asLong());
+        Instant expiresAt = now.plus(lifetime).minus(EXPIRY_MARGIN);
+
+        // Refresh ahead of expiry, spread out by up to a minute of jitter
+        Duration ahead = lifetime.compareTo(REFRESH_AHEAD.multipliedBy(2)) > 0 ? REFRESH_AHEAD : lifetime.dividedBy(2);
+        long jitterMs = ThreadLocalRandom.current().nextLong(Math.min(60_000, ahead.toMillis() / 2) + 1);
+        Instant refreshAt = now.plus(lifetime).minus(ahead).minusMillis(jitterMs);
+
+        logger.debug("Successfully retrieved an access token for tenant {}. It expires at {}", tenant.tenantId, expiresAt);
+        return new AccessToken(jsonNode.get("access_token").asText(), expiresAt, refreshAt);
+    }
+
+    private record AccessToken(String value, Instant expiresAt, Instant refreshAt) {
+    }
+
+    private static final class TenantTokens {
+        private final String tenantId;
+        private final String clientId;
+        private final String clientSecret;
+        private final AtomicReference<CompletableFuture<AccessToken>> refresh = new AtomicReference<>();
+        private volatile AccessToken current;
+        private volatile boolean closed;
+        private volatile Future<?> task;
+        // Only touched by the single in-flight refresh
+        private int failures;
+        private volatile ScheduledFuture<?> nextRefresh;
+
+        private TenantTokens(String tenantId, String clientId, String clientSecret) {
+            this.tenantId = tenantId;
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package se.loelindstrom.entrastuff.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import se.loelindstrom.entrastuff.dtos.AuditLogDTO;
+import se.loelindstrom.entrastuff.dtos.AuditLogPageDTO;
+import se.loelindstrom.entrastuff.repositories.AuditLogFilter;
+import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api")
+public class AuditLogController {
+    private static final Logger logger = LoggerFactory.getLogger(AuditLogController.class);
+    private static final int MAX_PAGE_SIZE = 1000;
+    private final AuditLogRepository auditLogRepository;
+    private final ObjectMapper objectMapper;
+
+    public AuditLogController(AuditLogRepository auditLogRepository, ObjectMapper objectMapper) {
+        this.auditLogRepository = auditLogRepository;
+        this.objectMapper = objectMapper;
+    }
+
+    @GetMapping("/audit-logs")
+    public ResponseEntity<String> getAuditLogs(
+            @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(name = "eventType", required = false) String eventType,
+            @RequestParam(name = "resourceId", required = false) String resourceId,
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "limit", defaultValue = "100") int limit
+    ) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().body("Invalid limit: expected 1 to " + MAX_PAGE_SIZE + ".");
+        }
+
+        // The cursor is the createdAt and id of the last audit log on the previous page
+        LocalDateTime beforeCreatedAt = null;
+        Long beforeId = null;
+        if (after != null) {
+            int separator = after.lastIndexOf('_');
+            try {
+                beforeCreatedAt = LocalDateTime.parse(after.substring(0, Math.max(separator, 0)));
+                beforeId = Long.parseLong(after.substring(separator + 1));
+            } catch (DateTimeParseException | NumberFormatException e) {
+                return ResponseEntity.badRequest().body("Invalid cursor.");
+            }
+        }
+
+        try {
+            AuditLogFilter filter = new AuditLogFilter(from, to, eventType, resourceId);
+            // One extra row tells whether there is a next page without a count query
+            List<AuditLogDTO> auditLogs = auditLogRepository.findPage(filter, beforeCreatedAt, beforeId, limit + 1);
+            String nextCursor = null;
+            if (auditLogs.size() > limit) {
+                auditLogs = auditLogs.subList(0, limit);
+                AuditLogDTO last = auditLogs.get(limit - 1);
+                nextCursor = last.getCreatedAt() + "_" + last.getId();
+            }
+            return ResponseEntity.ok(objectMapper.writeValueAsString(new AuditLogPageDTO(auditLogs, nextCursor)));
+        } catch (Exception e) {
+            logger.error("Failed to fetch audit logs: {}", e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+}
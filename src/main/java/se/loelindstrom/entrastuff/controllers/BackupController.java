@@ -1,90 +1,141 @@
 package se.loelindstrom.entrastuff.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.client.RestTemplate;
-import se.loelindstrom.entrastuff.config.TokenStore;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import se.loelindstrom.entrastuff.dtos.BackupDTO;
-import se.loelindstrom.entrastuff.entities.AuditLog;
+import se.loelindstrom.entrastuff.dtos.BackupPageDTO;
+import se.loelindstrom.entrastuff.dtos.BackupSummaryDTO;
+import se.loelindstrom.entrastuff.dtos.DiffChangeDTO;
+import se.loelindstrom.entrastuff.dtos.DiffPlanDTO;
+import se.loelindstrom.entrastuff.dtos.SubscriptionDTO;
 import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.entities.Job;
+import se.loelindstrom.entrastuff.entities.Subscription;
 import se.loelindstrom.entrastuff.exceptions.InvalidClientStateException;
-import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+import se.loelindstrom.entrastuff.repositories.BackupFilter;
 import se.loelindstrom.entrastuff.repositories.BackupRepository;
-
+import se.loelindstrom.entrastuff.services.AuditLogWriter;
+import se.loelindstrom.entrastuff.services.AuditReconciler;
+import se.loelindstrom.entrastuff.services.BackupDiffEngine;
+import se.loelindstrom.entrastuff.services.BackupSnapshotService;
+import se.loelindstrom.entrastuff.services.BackupStore;
+import se.loelindstrom.entrastuff.services.BackupTransferService;
+import se.loelindstrom.entrastuff.services.JobService;
+import se.loelindstrom.entrastuff.services.SubscriptionManager;
+import se.loelindstrom.entrastuff.services.TenantRegistry;
+
+import java.io.InputStream;
+import java.net.URI;
 import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api")
 public class BackupController {
     private static final Logger logger = LoggerFactory.getLogger(BackupController.class);
-    private final TokenStore tokenStore;
-    private final RestTemplate restTemplate;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int MAX_DIFF_CHANGES = 10000;
     private final ObjectMapper objectMapper;
     private final BackupRepository backupRepository;
-    private final AuditLogRepository auditLogRepository;
-    private final String tenantId;
-    private final String webhookUrl;
-    private String clientState;
+    private final BackupSnapshotService snapshotService;
+    private final BackupDiffEngine diffEngine;
+    private final BackupTransferService transferService;
+    private final BackupStore backupStore;
+    private final JobService jobService;
+    private final AuditLogWriter auditLogWriter;
+    private final SubscriptionManager subscriptionManager;
+    private final AuditReconciler auditReconciler;
+    private final TenantRegistry tenantRegistry;
 
     public BackupController(
-            TokenStore tokenStore,
             BackupRepository backupRepository,
-            AuditLogRepository auditLogRepository,
-            @Value("${entra.tenant-id}") String tenantId,
-            @Value("${webhook.url}") String webhookUrl
+            BackupSnapshotService snapshotService,
+            BackupDiffEngine diffEngine,
+            BackupTransferService transferService,
+            BackupStore backupStore,
+            JobService jobService,
+            AuditLogWriter auditLogWriter,
+            SubscriptionManager subscriptionManager,
+            AuditReconciler auditReconciler,
+            TenantRegistry tenantRegistry
     ) {
-        this.tokenStore = tokenStore;
         this.backupRepository = backupRepository;
-        this.auditLogRepository = auditLogRepository;
-        this.tenantId = tenantId;
-        this.webhookUrl = webhookUrl;
-        this.restTemplate = new RestTemplate();
+        this.snapshotService = snapshotService;
+        this.diffEngine = diffEngine;
+        this.transferService = transferService;
+        this.backupStore = backupStore;
+        this.jobService = jobService;
+        this.auditLogWriter = auditLogWriter;
+        this.subscriptionManager = subscriptionManager;
+        this.auditReconciler = auditReconciler;
+        this.tenantRegistry = tenantRegistry;
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
         this.objectMapper.disable(com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
     }
 
     @PostMapping("/backup-users")
-    public ResponseEntity<String> backupUsers() {
-        logger.info("Will fetch token.");
-        String token = tokenStore.getAccessToken();
-        logger.info("Fetched token.");
+    public ResponseEntity<String> backupUsers(
+            @RequestParam(name = "mode", defaultValue = "full") String mode,
+            @RequestParam(name = "tenantId", required = false) String tenantId
+    ) {
+        if (!mode.equals("full") && !mode.equals("incremental")) {
+            return ResponseEntity.badRequest().body("Invalid mode: expected full or incremental.");
+        }
 
         try {
-            logger.info("Will fetch all users in Entra.");
-            List<JsonNode> allUsers = fetchAllUsers(token);
-            logger.info("Fetched {} users from Microsoft Graph.", allUsers.size());
-
-            logger.info("Saving users to database.");
-            saveUsersToDatabase(allUsers);
-            logger.info("Saved users to database.");
-
-            return ResponseEntity.ok(objectMapper.writeValueAsString(allUsers));
+            String tenant = tenantRegistry.resolve(tenantId);
+            logger.info("Submitting a {} backup of users in tenant {}.", mode, tenant);
+            Job job = jobService.submitBackup(tenant, mode);
+            return acceptedJob(job);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (RejectedExecutionException e) {
+            logger.warn("Rejected backup: the job queue is full.");
+            return ResponseEntity.status(503).body("Too many jobs queued. Try again later.");
         } catch (Exception e) {
-            logger.error("Failed to process users: {}", e.getMessage(), e);
+            logger.error("Failed to submit backup: {}", e.getMessage(), e);
             return ResponseEntity.status(500).body("Internal server error.");
         }
     }
 
     @GetMapping("/backups")
-    public ResponseEntity<String> getBackups() {
+    public ResponseEntity<String> getBackups(
+            @RequestParam(name = "tenantId", required = false) String tenantId,
+            @RequestParam(name = "dataType", required = false) String dataType,
+            @RequestParam(name = "backupType", required = false) String backupType,
+            @RequestParam(name = "createdFrom", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdFrom,
+            @RequestParam(name = "createdTo", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdTo,
+            @RequestParam(name = "after", required = false) Long after,
+            @RequestParam(name = "limit", defaultValue = "50") int limit
+    ) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().body("Invalid limit: expected 1 to " + MAX_PAGE_SIZE + ".");
+        }
+
         try {
-            List<BackupDTO> backups = backupRepository.findAllExcludingBackupData();
-            return ResponseEntity.ok(objectMapper.writeValueAsString(backups));
+            BackupFilter filter = new BackupFilter(tenantId, dataType, backupType, createdFrom, createdTo);
+            // One extra row tells whether there is a next page without a count query
+            List<BackupDTO> backups = backupRepository.findSummaries(filter, after, limit + 1);
+            Long nextCursor = null;
+            if (backups.size() > limit) {
+                backups = backups.subList(0, limit);
+                nextCursor = backups.get(limit - 1).getId();
+            }
+            return ResponseEntity.ok(objectMapper.writeValueAsString(new BackupPageDTO(backups, nextCursor)));
         } catch (Exception e) {
             logger.error("Failed to fetch backups: {}", e.getMessage(), e);
             return ResponseEntity.status(500).body("Internal server error.");
@@ -92,46 +143,164 @@ public class BackupController {
     }
 
     @PostMapping("/restore-users/{backupId}")
-    public ResponseEntity<String> restoreUsers(@PathVariable long backupId) {
-        try {
-            logger.info("Will fetch token.");
-            String token = tokenStore.getAccessToken();
-            logger.info("Fetched token.");
+    public ResponseEntity<String> restoreUsers(
+            @PathVariable long backupId,
+            @RequestParam(name = "mode", defaultValue = "full") String mode
+    ) {
+        if (!mode.equals("full") && !mode.equals("diff") && !mode.equals("mirror")) {
+            return ResponseEntity.badRequest().body("Invalid mode: expected full, diff or mirror.");
+        }
 
+        try {
             Optional<Backup> backup = backupRepository.findById(backupId);
             if (backup.isEmpty()) {
                 logger.warn("Backup with ID {} not found.", backupId);
                 return ResponseEntity.notFound().build();
             }
 
-            JsonNode backupData = backup.get().getBackupData();
-            if (backupData == null || !backupData.isArray()) {
-                logger.error("Invalid backup data for ID {}. Expected an array.", backupId);
-                return ResponseEntity.badRequest().body("Invalid backup data: expected an array.");
+            if (!"completed".equals(backup.get().getStatus())) {
+                logger.error("Backup with ID {} has status {}. Only completed backups can be restored.", backupId, backup.get().getStatus());
+                return ResponseEntity.badRequest().body("Invalid backup: it is not completed.");
             }
 
-            List<JsonNode> users = new ArrayList<>();
-            backupData.forEach(users::add);
+            logger.info("Submitting {} restore of {} backup ID {}.", mode, backup.get().getMode(), backupId);
+            Job job = jobService.submitRestore(backupId, backup.get().getTenantId(), mode);
+            return acceptedJob(job);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Rejected restore of backup {}: the job queue is full.", backupId);
+            return ResponseEntity.status(503).body("Too many jobs queued. Try again later.");
+        } catch (Exception e) {
+            logger.error("Failed to restore backup {}: {}", backupId, e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
 
-            logger.info("Restoring {} users from backup ID {}.", users.size(), backupId);
-            int batchSize = 20;
-            int restoredCount = 0;
+    @GetMapping("/backups/{backupId}/snapshot")
+    public ResponseEntity<StreamingResponseBody> getBackupSnapshot(@PathVariable long backupId) {
+        Optional<Backup> backup = backupRepository.findById(backupId);
+        if (backup.isEmpty()) {
+            logger.warn("Backup with ID {} not found.", backupId);
+            return ResponseEntity.notFound().build();
+        }
 
-            for (int i = 0; i < users.size(); i += batchSize) {
-                List<JsonNode> batch = users.subList(i, Math.min(i + batchSize, users.size()));
-                logger.debug("Processing batch {}/{}", i / batchSize + 1, (users.size() + batchSize - 1) / batchSize);
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.createGenerator(outputStream)) {
+                generator.writeStartArray();
+                snapshotService.materialize(backupId, generator::writeTree);
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
 
-                restoredCount += createUsersBatch(token, batch);
+    // What a diff restore would change: the backup against another backup, or against the live tenant by default
+    @GetMapping("/backups/{backupId}/diff")
+    public ResponseEntity<String> diffBackup(
+            @PathVariable long backupId,
+            @RequestParam(name = "against", defaultValue = "live") String against,
+            @RequestParam(name = "limit", defaultValue = "1000") int limit
+    ) {
+        if (limit < 0 || limit > MAX_DIFF_CHANGES) {
+            return ResponseEntity.badRequest().body("Invalid limit: expected 0 to " + MAX_DIFF_CHANGES + ".");
+        }
+        Long againstBackupId;
+        try {
+            againstBackupId = against.equals("live") ? null : Long.valueOf(against);
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body("Invalid against: expected live or a backup ID.");
+        }
+
+        try {
+            for (Long id : againstBackupId == null ? List.of(backupId) : List.of(backupId, againstBackupId)) {
+                Optional<Backup> backup = backupRepository.findById(id);
+                if (backup.isEmpty()) {
+                    logger.warn("Backup with ID {} not found.", id);
+                    return ResponseEntity.notFound().build();
+                }
+                if (!"completed".equals(backup.get().getStatus())) {
+                    return ResponseEntity.badRequest().body("Invalid backup " + id + ": it is not completed.");
+                }
             }
 
-            logger.info("Restored {} users from backup ID {}.", restoredCount, backupId);
-            return ResponseEntity.ok("Restored " + restoredCount + " users.");
+            List<DiffChangeDTO> changes = new ArrayList<>();
+            BackupDiffEngine.DiffSummary summary = diffEngine.diff(backupId, againstBackupId, change -> {
+                if (changes.size() < limit) {
+                    changes.add(new DiffChangeDTO(change.action().name().toLowerCase(Locale.ROOT), change.userId(), change.userPrincipalName()));
+                }
+            });
+            long total = summary.created() + summary.updated() + summary.deleted();
+            DiffPlanDTO plan = new DiffPlanDTO(backupId, againstBackupId, summary.created(), summary.updated(),
+                    summary.deleted(), summary.unchanged(), changes, total > changes.size());
+            return ResponseEntity.ok(objectMapper.writeValueAsString(plan));
         } catch (Exception e) {
-            logger.error("Failed to restore backup {}: {}", backupId, e.getMessage(), e);
+            logger.error("Failed to diff backup {}: {}", backupId, e.getMessage(), e);
             return ResponseEntity.status(500).body("Internal server error.");
         }
     }
 
+    // The backup's snapshot as gzip'd NDJSON, one user per line, for moving it to another environment
+    @GetMapping("/backups/{backupId}/export")
+    public ResponseEntity<StreamingResponseBody> exportBackup(@PathVariable long backupId) {
+        Optional<Backup> backup = backupRepository.findById(backupId);
+        if (backup.isEmpty()) {
+            logger.warn("Backup with ID {} not found.", backupId);
+            return ResponseEntity.notFound().build();
+        }
+        if (!"completed".equals(backup.get().getStatus())) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        StreamingResponseBody body = outputStream -> transferService.export(backupId, outputStream);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/gzip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"backup-" + backupId + ".ndjson.gz\"")
+                .body(body);
+    }
+
+    // Streams the request body (NDJSON, optionally gzip'd) into a new full backup
+    @PostMapping("/backups/import")
+    public ResponseEntity<String> importBackup(
+            InputStream body,
+            @RequestParam(name = "tenantId", required = false) String tenantId,
+            @RequestParam(name = "profile", required = false) String profile
+    ) {
+        try {
+            BackupSummaryDTO summary = transferService.importBackup(body, tenantRegistry.resolve(tenantId), profile);
+            return ResponseEntity.created(URI.create("/api/backups/" + summary.getBackupId() + "/snapshot"))
+                    .body(objectMapper.writeValueAsString(summary));
+        } catch (IllegalArgumentException | JsonProcessingException e) {
+            logger.warn("Rejected backup import: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid import: " + e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to import backup: {}", e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+
+    // The items stored in this backup itself (for incremental backups only the changes), decoded chunk by chunk
+    @GetMapping("/backups/{backupId}/download")
+    public ResponseEntity<StreamingResponseBody> downloadBackup(@PathVariable long backupId) {
+        Optional<Backup> backup = backupRepository.findById(backupId);
+        if (backup.isEmpty()) {
+            logger.warn("Backup with ID {} not found.", backupId);
+            return ResponseEntity.notFound().build();
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.createGenerator(outputStream)) {
+                generator.writeStartArray();
+                backupStore.readItems(backupId, generator::writeTree);
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"backup-" + backupId + ".json\"")
+                .body(body);
+    }
+
     @PostMapping(value = "/webhook", consumes = MediaType.TEXT_PLAIN_VALUE)
     public ResponseEntity<String> handleWebhookValidation(@RequestParam(name = "validationToken", required = true) String validationToken) {
         logger.info("Validation request received: validationToken={}", validationToken);
@@ -146,22 +315,20 @@ public class BackupController {
             logger.debug("Received notification: payload={}", payload.toString());
 
             if (payload.has("value") && payload.get("value").isArray()) {
+                // Validate the whole payload first, so nothing from an unauthorized request is queued
                 for (JsonNode event : payload.get("value")) {
-                    validateClientState(event.get("clientState"));
-
-                    String resourceId = event.has("resource") ? event.get("resource").asText() : null;
-                    String eventType = determineEventType(event);
+                    validateClientState(event);
+                }
 
-                    AuditLog auditLog = new AuditLog();
-                    auditLog.setEventType(determineEventType(event));
-                    auditLog.setResourceId(event.has("resource") ? event.get("resource").asText() : null);
-                    auditLog.setCreatedAt(LocalDateTime.now());
-                    auditLog.setEventData(event);
-                    auditLogRepository.save(auditLog);
+                List<JsonNode> events = new ArrayList<>();
+                payload.get("value").forEach(events::add);
 
-                    logger.info("Saved audit log for event type: {}, resource: {}", eventType, resourceId);
+                // Acknowledge once the notifications are durable in the local spool; AuditLogWriter replays them into the database
+                if (!auditLogWriter.append(events)) {
+                    return ResponseEntity.status(503).body("Too many notifications queued. Try again later.");
                 }
-                return ResponseEntity.ok("Webhook processed.");
+                logger.debug("Spooled {} notifications.", events.size());
+                return ResponseEntity.accepted().body("Webhook accepted.");
             }
 
             logger.warn("Invalid webhook notification: no valid payload");
@@ -175,177 +342,114 @@ public class BackupController {
         }
     }
 
-    @PostMapping("/create-subscription")
-    public ResponseEntity<String> createSubscription() {
+    @PostMapping(value = "/webhook/lifecycle", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> handleLifecycleValidation(@RequestParam(name = "validationToken", required = true) String validationToken) {
+        logger.info("Lifecycle validation request received: validationToken={}", validationToken);
+        return ResponseEntity.ok()
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(validationToken);
+    }
+
+    @PostMapping(value = "/webhook/lifecycle", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> handleLifecycleNotification(@RequestBody JsonNode payload) {
         try {
-            logger.info("Will fetch token.");
-            String token = tokenStore.getAccessToken();
-            logger.info("Fetched token.");
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setBearerAuth(token);
-            headers.setContentType(org.springframework.http.MediaType.APPLICATION_JSON);
-
-            ObjectNode subscription = objectMapper.createObjectNode();
-            subscription.put("changeType", "created,updated,deleted");
-            subscription.put("notificationUrl", this.webhookUrl);
-            subscription.put("resource", "users");
-            subscription.put("expirationDateTime", ZonedDateTime.now().plusDays(1)
-                    .format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
-            clientState = UUID.randomUUID().toString();
-            subscription.put("clientState", clientState);
-
-            HttpEntity<String> request = new HttpEntity<>(objectMapper.writeValueAsString(subscription), headers);
-            ResponseEntity<String> response = restTemplate.exchange(
-                    "https://graph.microsoft.com/v1.0/subscriptions",
-                    HttpMethod.POST,
-                    request,
-                    String.class
-            );
-
-            logger.trace("Subscription creation response status: {}", response.getStatusCode());
-            logger.trace("Subscription creation response body: {}", response.getBody());
-
-            if (!response.getStatusCode().is2xxSuccessful()) {
-                throw new RuntimeException("Failed to create subscription: " + response.getStatusCode());
+            logger.debug("Received lifecycle notification: payload={}", payload.toString());
+
+            if (payload.has("value") && payload.get("value").isArray()) {
+                for (JsonNode event : payload.get("value")) {
+                    validateClientState(event);
+                }
+
+                List<JsonNode> events = new ArrayList<>();
+                payload.get("value").forEach(events::add);
+                // Lifecycle events are audited like change notifications
+                if (!auditLogWriter.append(events)) {
+                    return ResponseEntity.status(503).body("Too many notifications queued. Try again later.");
+                }
+                for (JsonNode event : events) {
+                    handleLifecycleEvent(event);
+                }
+                return ResponseEntity.accepted().body("Lifecycle notification accepted.");
             }
 
-            return ResponseEntity.ok("Subscription created: " + response.getBody());
+            logger.warn("Invalid lifecycle notification: no valid payload");
+            return ResponseEntity.badRequest().body("Invalid webhook request.");
+        } catch (InvalidClientStateException e) {
+            logger.warn(e.getMessage());
+            return ResponseEntity.status(401).body("Unauthorized.");
         } catch (Exception e) {
-            logger.error("Failed to create subscription: {}", e.getMessage(), e);
+            logger.error("Failed to process lifecycle notification: {}", e.getMessage(), e);
             return ResponseEntity.status(500).body("Internal server error.");
         }
     }
 
-    private String determineEventType(JsonNode event) {
-        if (event.has("changeType")) {
-            String changeType = event.get("changeType").asText();
-            return "user." + changeType.toLowerCase();
+    @PostMapping("/create-subscription")
+    public ResponseEntity<String> createSubscription(@RequestParam(name = "tenantId", required = false) String tenantId) {
+        try {
+            Subscription subscription = subscriptionManager.create(tenantRegistry.resolve(tenantId), "users", "created,updated,deleted");
+            return ResponseEntity.ok(objectMapper.writeValueAsString(toDTO(subscription)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to create subscription: {}", e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
         }
-        return "unknown";
     }
 
-    private void validateClientState(JsonNode clientState) {
-        String clientStateIncoming = clientState.asText();
-        if (clientStateIncoming == null || !(clientStateIncoming.equals(this.clientState))) {
-            throw new InvalidClientStateException("clientState was not as expected. Either it is misconfigured or hackers/externals are calling the endpoint.");
+    @GetMapping("/subscriptions")
+    public ResponseEntity<String> getSubscriptions() {
+        try {
+            List<SubscriptionDTO> subscriptions = subscriptionManager.findActive().stream()
+                    .map(this::toDTO)
+                    .toList();
+            return ResponseEntity.ok(objectMapper.writeValueAsString(subscriptions));
+        } catch (Exception e) {
+            logger.error("Failed to fetch subscriptions: {}", e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
         }
     }
 
-    private int createUsersBatch(String token, List<JsonNode> users) throws Exception {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setBearerAuth(token);
-        headers.setContentType(org.springframework.http.MediaType.APPLICATION_JSON);
-
-        ArrayNode requests = objectMapper.createArrayNode();
-        for (int i = 0; i < users.size(); i++) {
-            JsonNode user = users.get(i);
-            ObjectNode userRequest = objectMapper.createObjectNode();
-            userRequest.put("accountEnabled", true);
-            userRequest.put("displayName", user.get("displayName").asText());
-            userRequest.put("mailNickname", user.get("userPrincipalName").asText().split("@")[0]);
-            userRequest.put("userPrincipalName", user.get("userPrincipalName").asText());
-            userRequest.putObject("passwordProfile")
-                    .put("forceChangePasswordNextSignIn", true)
-                    .put("password", generateRandomPassword());
-
-            ObjectNode batchItem = objectMapper.createObjectNode();
-            batchItem.put("id", String.valueOf(i));
-            batchItem.put("method", "POST");
-            batchItem.put("url", "/users");
-            batchItem.set("body", userRequest);
-            batchItem.putObject("headers")
-                    .put("Content-Type", "application/json");
-            requests.add(batchItem);
-        }
-
-        ObjectNode batchRequest = objectMapper.createObjectNode();
-        batchRequest.set("requests", requests);
-
-        HttpEntity<String> httpEntity = new HttpEntity<>(objectMapper.writeValueAsString(batchRequest), headers);
-        ResponseEntity<String> response = restTemplate.exchange(
-                "https://graph.microsoft.com/v1.0/$batch",
-                HttpMethod.POST,
-                httpEntity,
-                String.class
-        );
-
-        logger.trace("Batch create response status: {}", response.getStatusCode());
-        logger.trace("Batch create response body: {}", response.getBody());
-
-        if (!response.getStatusCode().is2xxSuccessful()) {
-            throw new RuntimeException("Graph API batch request failed with status: " + response.getStatusCode());
-        }
-
-        JsonNode batchResponse = objectMapper.readTree(response.getBody());
-        JsonNode responses = batchResponse.get("responses");
-        int successCount = 0;
-
-        for (JsonNode resp : responses) {
-            int status = resp.get("status").asInt();
-            String id = resp.get("id").asText();
-            if (status >= 200 && status < 300) {
-                successCount++;
-                logger.debug("Successfully created user with batch ID {}.", id);
-            } else {
-                logger.error("Failed to create user with batch ID {}: {}", id, resp.get("body").toString());
-            }
-        }
-
-        return successCount;
+    private ResponseEntity<String> acceptedJob(Job job) throws JsonProcessingException {
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/jobs/" + job.getId()))
+                .body(objectMapper.writeValueAsString(jobService.toDTO(job)));
     }
 
-    private String generateRandomPassword() {
-        return UUID.randomUUID().toString().replaceAll("-", "").substring(0, 12) + "!aA1";
+    private SubscriptionDTO toDTO(Subscription subscription) {
+        return new SubscriptionDTO(
+                subscription.getId(),
+                subscription.getTenantId(),
+                subscription.getResource(),
+                subscription.getChangeType(),
+                subscription.getStatus(),
+                subscription.getExpiresAt(),
+                subscription.getCreatedAt(),
+                subscription.getRenewedAt()
+        );
     }
 
-    private List<JsonNode> fetchAllUsers(String token) throws Exception {
-        List<JsonNode> allUsers = new ArrayList<>();
-        String url = "https://graph.microsoft.com/v1.0/users";
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setBearerAuth(token);
-        HttpEntity<String> request = new HttpEntity<>(headers);
-
-        int count = 1;
-        while (url != null) {
-            logger.debug("Call number {} to users API.", count);
-            ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, request, String.class);
-            logger.trace("Graph API request status: {}", response.getStatusCode());
-            logger.trace("Graph API response body: {}", response.getBody());
-
-            if (!response.getStatusCode().is2xxSuccessful()) {
-                throw new RuntimeException("Graph API request failed with status: " + response.getStatusCode());
-            }
-
-            JsonNode jsonResponse = objectMapper.readTree(response.getBody());
-            JsonNode users = jsonResponse.get("value");
-            if (users != null && users.isArray()) {
-                for (JsonNode user : users) {
-                    allUsers.add(user);
-                }
+    private void handleLifecycleEvent(JsonNode event) {
+        String subscriptionId = event.path("subscriptionId").asText();
+        String lifecycleEvent = event.path("lifecycleEvent").asText();
+        String tenantId = subscriptionManager.findTenantId(subscriptionId)
+                .orElseGet(() -> event.path("tenantId").asText(tenantRegistry.getDefaultTenantId()));
+        logger.info("Lifecycle event {} for subscription {} of tenant {}.", lifecycleEvent, subscriptionId, tenantId);
+        switch (lifecycleEvent) {
+            case "reauthorizationRequired" -> subscriptionManager.reauthorize(subscriptionId);
+            case "subscriptionRemoved" -> {
+                subscriptionManager.replace(subscriptionId);
+                auditReconciler.requestCatchUp(tenantId, "subscription " + subscriptionId + " was removed");
             }
-
-            url = jsonResponse.has("@odata.nextLink") ? jsonResponse.get("@odata.nextLink").asText() : null;
-            String beginMsg = url != null ? "Next page url: " : "No more pages.";
-            logger.debug("{} {}", beginMsg, url != null ? url : "");
-            count++;
+            case "missed" -> auditReconciler.requestCatchUp(tenantId, "Graph missed notifications for subscription " + subscriptionId);
+            default -> logger.warn("Ignoring unknown lifecycle event {}.", lifecycleEvent);
         }
-
-        return allUsers;
     }
 
-    private void saveUsersToDatabase(List<JsonNode> users) {
-        ArrayNode usersArray = objectMapper.createArrayNode();
-        users.forEach(usersArray::add);
-
-        Backup backup = new Backup();
-        backup.setTenantId(tenantId);
-        backup.setDataType("user");
-        backup.setBackupData(usersArray);
-        backup.setCreatedAt(LocalDateTime.now());
-        backup.setBackupType("entra");
-
-        backupRepository.save(backup);
+    private void validateClientState(JsonNode event) {
+        String subscriptionId = event.path("subscriptionId").asText(null);
+        if (!subscriptionManager.isValidClientState(subscriptionId, event.path("clientState").asText(null))) {
+            throw new InvalidClientStateException("clientState was not as expected for subscription " + subscriptionId
+                    + ". Either it is misconfigured or hackers/externals are calling the endpoint.");
+        }
     }
 }
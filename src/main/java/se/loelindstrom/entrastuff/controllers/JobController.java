@@ -0,0 +1,42 @@
+package se.loelindstrom.entrastuff.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import se.loelindstrom.entrastuff.dtos.JobDTO;
+import se.loelindstrom.entrastuff.services.JobService;
+
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/api")
+public class JobController {
+    private static final Logger logger = LoggerFactory.getLogger(JobController.class);
+    private final JobService jobService;
+    private final ObjectMapper objectMapper;
+
+    public JobController(JobService jobService, ObjectMapper objectMapper) {
+        this.jobService = jobService;
+        this.objectMapper = objectMapper;
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<String> getJob(@PathVariable long jobId) {
+        try {
+            Optional<JobDTO> job = jobService.findJob(jobId);
+            if (job.isEmpty()) {
+                logger.warn("Job with ID {} not found.", jobId);
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok(objectMapper.writeValueAsString(job.get()));
+        } catch (Exception e) {
+            logger.error("Failed to fetch job {}: {}", jobId, e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package se.loelindstrom.entrastuff.controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import se.loelindstrom.entrastuff.dtos.TenantDTO;
+import se.loelindstrom.entrastuff.entities.Tenant;
+import se.loelindstrom.entrastuff.services.TenantRegistry;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+@RestController
+@RequestMapping("/api")
+public class TenantController {
+    private static final Logger logger = LoggerFactory.getLogger(TenantController.class);
+    private final TenantRegistry tenantRegistry;
+    private final ObjectMapper objectMapper;
+
+    public TenantController(TenantRegistry tenantRegistry, ObjectMapper objectMapper) {
+        this.tenantRegistry = tenantRegistry;
+        this.objectMapper = objectMapper;
+    }
+
+    @GetMapping("/tenants")
+    public ResponseEntity<String> getTenants() {
+        try {
+            List<TenantDTO> tenants = tenantRegistry.findAll().stream()
+                    .map(this::toDTO)
+                    .toList();
+            return ResponseEntity.ok(objectMapper.writeValueAsString(tenants));
+        } catch (Exception e) {
+            logger.error("Failed to fetch tenants: {}", e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+
+    // Registers a tenant or updates its registration; the client secret is stored encrypted and never returned
+    @PutMapping("/tenants/{tenantId}")
+    public ResponseEntity<String> registerTenant(@PathVariable String tenantId, @RequestBody JsonNode registration) {
+        String clientId = registration.path("clientId").asText(null);
+        String clientSecret = registration.path("clientSecret").asText(null);
+        if (clientId == null || clientSecret == null) {
+            return ResponseEntity.badRequest().body("Invalid registration: clientId and clientSecret are required.");
+        }
+
+        try {
+            Tenant tenant = tenantRegistry.register(
+                    tenantId,
+                    registration.path("displayName").asText(null),
+                    clientId,
+                    clientSecret,
+                    registration.hasNonNull("maxConcurrentJobs") ? registration.get("maxConcurrentJobs").asInt() : null,
+                    registration.hasNonNull("maxGraphRequests") ? registration.get("maxGraphRequests").asInt() : null
+            );
+            return ResponseEntity.ok(objectMapper.writeValueAsString(toDTO(tenant)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (IllegalStateException e) {
+            // Registration isn't configured on this instance, e.g. tenants.secret-key is missing
+            return ResponseEntity.status(503).body(e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to register tenant {}: {}", tenantId, e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+
+    @DeleteMapping("/tenants/{tenantId}")
+    public ResponseEntity<String> disableTenant(@PathVariable String tenantId) {
+        try {
+            tenantRegistry.disable(tenantId);
+            return ResponseEntity.noContent().build();
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to disable tenant {}: {}", tenantId, e.getMessage(), e);
+            return ResponseEntity.status(500).body("Internal server error.");
+        }
+    }
+
+    private TenantDTO toDTO(Tenant tenant) {
+        return new TenantDTO(
+                tenant.getId(),
+                tenant.getDisplayName(),
+                tenant.getClientId(),
+                tenant.getMaxConcurrentJobs(),
+                tenant.getMaxGraphRequests(),
+                tenant.isEnabled(),
+                tenant.getCreatedAt()
+        );
+    }
+}
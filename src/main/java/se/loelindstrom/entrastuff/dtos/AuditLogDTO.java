@@ -0,0 +1,54 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.time.LocalDateTime;
+
+public class AuditLogDTO {
+    private final Long id;
+    private final String notificationId;
+    private final String eventType;
+    private final String resourceId;
+    private final LocalDateTime createdAt;
+    private final int eventCount;
+    private final JsonNode event;
+
+    public AuditLogDTO(Long id, String notificationId, String eventType, String resourceId, LocalDateTime createdAt, int eventCount,
+                       JsonNode event) {
+        this.id = id;
+        this.notificationId = notificationId;
+        this.eventType = eventType;
+        this.resourceId = resourceId;
+        this.createdAt = createdAt;
+        this.eventCount = eventCount;
+        this.event = event;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getNotificationId() {
+        return notificationId;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public JsonNode getEvent() {
+        return event;
+    }
+}
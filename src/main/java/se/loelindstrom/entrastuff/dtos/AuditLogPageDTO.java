@@ -0,0 +1,22 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import java.util.List;
+
+public class AuditLogPageDTO {
+    private final List<AuditLogDTO> items;
+    // Pass as ?after= to fetch the next page, null on the last page
+    private final String nextCursor;
+
+    public AuditLogPageDTO(List<AuditLogDTO> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<AuditLogDTO> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -8,13 +8,36 @@ public class BackupDTO {
     private final String dataType;
     private final LocalDateTime createdAt;
     private final String backupType;
+    private final String mode;
+    private final Long parentBackupId;
+    private final String profile;
+    private final String format;
+    private final String status;
+    private final long userCount;
+    private final long itemCount;
+    private final Long byteSize;
+    private final Long durationMs;
+    private final LocalDateTime completedAt;
+    private final String sourceDeltaLink;
 
-    public BackupDTO(Long id, String tenantId, String dataType, LocalDateTime createdAt, String backupType) {
+    public BackupDTO(Long id, String tenantId, String dataType, LocalDateTime createdAt, String backupType, String mode, Long parentBackupId, String profile, String format,
+                     String status, long userCount, long itemCount, Long byteSize, Long durationMs, LocalDateTime completedAt, String sourceDeltaLink) {
         this.id = id;
         this.tenantId = tenantId;
         this.dataType = dataType;
         this.createdAt = createdAt;
         this.backupType = backupType;
+        this.mode = mode;
+        this.parentBackupId = parentBackupId;
+        this.profile = profile;
+        this.format = format;
+        this.status = status;
+        this.userCount = userCount;
+        this.itemCount = itemCount;
+        this.byteSize = byteSize;
+        this.durationMs = durationMs;
+        this.completedAt = completedAt;
+        this.sourceDeltaLink = sourceDeltaLink;
     }
 
     public Long getId() {
@@ -36,4 +59,48 @@ public class BackupDTO {
     public String getBackupType() {
         return backupType;
     }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public Long getParentBackupId() {
+        return parentBackupId;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public long getUserCount() {
+        return userCount;
+    }
+
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    public Long getByteSize() {
+        return byteSize;
+    }
+
+    public Long getDurationMs() {
+        return durationMs;
+    }
+
+    public LocalDateTime getCompletedAt() {
+        return completedAt;
+    }
+
+    public String getSourceDeltaLink() {
+        return sourceDeltaLink;
+    }
 }
\ No newline at end of file
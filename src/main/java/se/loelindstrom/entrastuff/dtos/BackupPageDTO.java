@@ -0,0 +1,22 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import java.util.List;
+
+public class BackupPageDTO {
+    private final List<BackupDTO> items;
+    // Pass as ?after= to fetch the next page, null on the last page
+    private final Long nextCursor;
+
+    public BackupPageDTO(List<BackupDTO> items, Long nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<BackupDTO> getItems() {
+        return items;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+}
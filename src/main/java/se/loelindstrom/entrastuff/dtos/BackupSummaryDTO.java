@@ -0,0 +1,55 @@
+package se.loelindstrom.entrastuff.dtos;
+
+public class BackupSummaryDTO {
+    private final Long backupId;
+    private final String tenantId;
+    private final String mode;
+    private final Long parentBackupId;
+    private final String profile;
+    private final long userCount;
+    private final int pageCount;
+    private final long durationMs;
+
+    public BackupSummaryDTO(Long backupId, String tenantId, String mode, Long parentBackupId, String profile, long userCount, int pageCount, long durationMs) {
+        this.backupId = backupId;
+        this.tenantId = tenantId;
+        this.mode = mode;
+        this.parentBackupId = parentBackupId;
+        this.profile = profile;
+        this.userCount = userCount;
+        this.pageCount = pageCount;
+        this.durationMs = durationMs;
+    }
+
+    public Long getBackupId() {
+        return backupId;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public Long getParentBackupId() {
+        return parentBackupId;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public long getUserCount() {
+        return userCount;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+}
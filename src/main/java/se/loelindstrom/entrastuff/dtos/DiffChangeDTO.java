@@ -0,0 +1,26 @@
+package se.loelindstrom.entrastuff.dtos;
+
+public class DiffChangeDTO {
+    // create, update or delete
+    private final String action;
+    private final String userId;
+    private final String userPrincipalName;
+
+    public DiffChangeDTO(String action, String userId, String userPrincipalName) {
+        this.action = action;
+        this.userId = userId;
+        this.userPrincipalName = userPrincipalName;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getUserPrincipalName() {
+        return userPrincipalName;
+    }
+}
@@ -0,0 +1,60 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import java.util.List;
+
+public class DiffPlanDTO {
+    private final Long backupId;
+    // Null when diffed against the live tenant
+    private final Long againstBackupId;
+    private final long created;
+    private final long updated;
+    private final long deleted;
+    private final long unchanged;
+    private final List<DiffChangeDTO> changes;
+    // Whether changes holds only the first limit changes
+    private final boolean truncated;
+
+    public DiffPlanDTO(Long backupId, Long againstBackupId, long created, long updated, long deleted, long unchanged,
+                       List<DiffChangeDTO> changes, boolean truncated) {
+        this.backupId = backupId;
+        this.againstBackupId = againstBackupId;
+        this.created = created;
+        this.updated = updated;
+        this.deleted = deleted;
+        this.unchanged = unchanged;
+        this.changes = changes;
+        this.truncated = truncated;
+    }
+
+    public Long getBackupId() {
+        return backupId;
+    }
+
+    public Long getAgainstBackupId() {
+        return againstBackupId;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    public List<DiffChangeDTO> getChanges() {
+        return changes;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,138 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.time.LocalDateTime;
+
+public class JobDTO {
+    private final Long id;
+    private final String type;
+    private final String tenantId;
+    private final String status;
+    private final String mode;
+    private final Long backupId;
+    private final long pagesFetched;
+    private final long usersWritten;
+    private final long batchesRestored;
+    private final long usersRestored;
+    private final Long totalEstimate;
+    private final Double usersPerSecond;
+    private final Long etaSeconds;
+    private final String error;
+    private final JsonNode result;
+    private final LocalDateTime createdAt;
+    private final LocalDateTime startedAt;
+    private final LocalDateTime finishedAt;
+
+    public JobDTO(
+            Long id,
+            String type,
+            String tenantId,
+            String status,
+            String mode,
+            Long backupId,
+            long pagesFetched,
+            long usersWritten,
+            long batchesRestored,
+            long usersRestored,
+            Long totalEstimate,
+            Double usersPerSecond,
+            Long etaSeconds,
+            String error,
+            JsonNode result,
+            LocalDateTime createdAt,
+            LocalDateTime startedAt,
+            LocalDateTime finishedAt
+    ) {
+        this.id = id;
+        this.type = type;
+        this.tenantId = tenantId;
+        this.status = status;
+        this.mode = mode;
+        this.backupId = backupId;
+        this.pagesFetched = pagesFetched;
+        this.usersWritten = usersWritten;
+        this.batchesRestored = batchesRestored;
+        this.usersRestored = usersRestored;
+        this.totalEstimate = totalEstimate;
+        this.usersPerSecond = usersPerSecond;
+        this.etaSeconds = etaSeconds;
+        this.error = error;
+        this.result = result;
+        this.createdAt = createdAt;
+        this.startedAt = startedAt;
+        this.finishedAt = finishedAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public Long getBackupId() {
+        return backupId;
+    }
+
+    public long getPagesFetched() {
+        return pagesFetched;
+    }
+
+    public long getUsersWritten() {
+        return usersWritten;
+    }
+
+    public long getBatchesRestored() {
+        return batchesRestored;
+    }
+
+    public long getUsersRestored() {
+        return usersRestored;
+    }
+
+    public Long getTotalEstimate() {
+        return totalEstimate;
+    }
+
+    public Double getUsersPerSecond() {
+        return usersPerSecond;
+    }
+
+    public Long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public JsonNode getResult() {
+        return result;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    public LocalDateTime getFinishedAt() {
+        return finishedAt;
+    }
+}
@@ -0,0 +1,37 @@
+package se.loelindstrom.entrastuff.dtos;
+
+public class RestoreResultDTO {
+    private final Long backupId;
+    private final long restored;
+    private final long failed;
+    private final long retried;
+    private final long durationMs;
+
+    public RestoreResultDTO(Long backupId, long restored, long failed, long retried, long durationMs) {
+        this.backupId = backupId;
+        this.restored = restored;
+        this.failed = failed;
+        this.retried = retried;
+        this.durationMs = durationMs;
+    }
+
+    public Long getBackupId() {
+        return backupId;
+    }
+
+    public long getRestored() {
+        return restored;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetried() {
+        return retried;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+}
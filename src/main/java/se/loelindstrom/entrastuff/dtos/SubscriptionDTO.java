@@ -0,0 +1,58 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import java.time.LocalDateTime;
+
+// Leaves out the clientState, which authenticates notifications
+public class SubscriptionDTO {
+    private final String id;
+    private final String tenantId;
+    private final String resource;
+    private final String changeType;
+    private final String status;
+    private final LocalDateTime expiresAt;
+    private final LocalDateTime createdAt;
+    private final LocalDateTime renewedAt;
+
+    public SubscriptionDTO(String id, String tenantId, String resource, String changeType, String status, LocalDateTime expiresAt, LocalDateTime createdAt, LocalDateTime renewedAt) {
+        this.id = id;
+        this.tenantId = tenantId;
+        this.resource = resource;
+        this.changeType = changeType;
+        this.status = status;
+        this.expiresAt = expiresAt;
+        this.createdAt = createdAt;
+        this.renewedAt = renewedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public String getChangeType() {
+        return changeType;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getRenewedAt() {
+        return renewedAt;
+    }
+}
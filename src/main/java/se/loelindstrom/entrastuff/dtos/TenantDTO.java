@@ -0,0 +1,52 @@
+package se.loelindstrom.entrastuff.dtos;
+
+import java.time.LocalDateTime;
+
+public class TenantDTO {
+    private final String id;
+    private final String displayName;
+    private final String clientId;
+    private final int maxConcurrentJobs;
+    private final int maxGraphRequests;
+    private final boolean enabled;
+    private final LocalDateTime createdAt;
+
+    public TenantDTO(String id, String displayName, String clientId, int maxConcurrentJobs, int maxGraphRequests,
+                     boolean enabled, LocalDateTime createdAt) {
+        this.id = id;
+        this.displayName = displayName;
+        this.clientId = clientId;
+        this.maxConcurrentJobs = maxConcurrentJobs;
+        this.maxGraphRequests = maxGraphRequests;
+        this.enabled = enabled;
+        this.createdAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public int getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
+
+    public int getMaxGraphRequests() {
+        return maxGraphRequests;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+}
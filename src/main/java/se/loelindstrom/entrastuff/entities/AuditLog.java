@@ -8,24 +8,42 @@ import org.hibernate.type.SqlTypes;
 
 import java.time.LocalDateTime;
 
+/**
+ * A stored webhook notification. The audit_logs table is partitioned by month on created_at and is created
+ * by {@link se.loelindstrom.entrastuff.services.AuditLogPartitionManager}, not by Hibernate.
+ */
 @Entity
-@Table(name = "audit-logs")
+@Table(name = "audit_logs")
 @Data
 public class AuditLog {
+    // Sequence ids (allocated 50 at a time) let Hibernate batch the inserts, which IDENTITY prevents
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "audit_logs_seq")
+    @SequenceGenerator(name = "audit_logs_seq", sequenceName = "audit_logs_seq", allocationSize = 50)
     private Long id;
 
+    // Graph's notification id, or a hash of the event when Graph sends none. Makes spool replays idempotent
+    @Column(name = "notification_id", nullable = false)
+    private String notificationId;
+
     @Column(name = "event_type", nullable = false)
     private String eventType;
 
     @Column(name = "resource_id")
     private String resourceId;
 
+    // The tenant the notification is about, as Graph sends it. Null on rows from before it was recorded
+    @Column(name = "tenant_id")
+    private String tenantId;
+
     @JdbcTypeCode(SqlTypes.JSON)
     @Column(name = "event", columnDefinition = "jsonb", nullable = false)
     private JsonNode eventData;
 
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
+
+    // Notifications merged into this one when bursts are coalesced; eventData is the latest of them
+    @Column(name = "event_count", nullable = false)
+    private int eventCount = 1;
 }
@@ -1,15 +1,23 @@
 package se.loelindstrom.entrastuff.entities;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import jakarta.persistence.*;
 import lombok.Data;
-import org.hibernate.annotations.JdbcTypeCode;
-import org.hibernate.type.SqlTypes;
 
 import java.time.LocalDateTime;
 
+/**
+ * Header row of a backup. The backed up objects themselves are stored as {@link BackupItem} rows
+ * or {@link BackupChunk}s. Summary columns are filled in when the backup finishes, so listings never
+ * have to touch the items. The indexes serve the keyset-paged listing (newest id first) per filter.
+ */
 @Entity
-@Table(name = "backups")
+@Table(
+        name = "backups",
+        indexes = {
+                @Index(name = "idx_backups_tenant_type_id", columnList = "tenant_id, data_type, backup_type, id"),
+                @Index(name = "idx_backups_created_at_id", columnList = "created_at, id")
+        }
+)
 @Data
 public class Backup {
     @Id
@@ -22,13 +30,50 @@ public class Backup {
     @Column(name = "data_type", nullable = false)
     private String dataType;
 
-    @JdbcTypeCode(SqlTypes.JSON)
-    @Column(name = "backup_data", columnDefinition = "jsonb", nullable = false)
-    private JsonNode backupData;
-
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
     @Column(name = "backup_type", nullable = false)
     private String backupType;
+
+    // running, completed or failed
+    @Column(name = "status", nullable = false)
+    private String status;
+
+    @Column(name = "user_count", nullable = false)
+    private long userCount;
+
+    // Every item, users and the other resources
+    @Column(name = "item_count", nullable = false)
+    private long itemCount;
+
+    // full or incremental
+    @Column(name = "mode", nullable = false)
+    private String mode;
+
+    // The backup an incremental backup is a delta against, null for full backups
+    @Column(name = "parent_backup_id")
+    private Long parentBackupId;
+
+    // Backup profile the users were fetched with, see BackupProfiles
+    @Column(name = "profile")
+    private String profile;
+
+    // jsonb (backup_items rows) or compact (backup_chunks), null is treated as jsonb
+    @Column(name = "format")
+    private String format;
+
+    @Column(name = "completed_at")
+    private LocalDateTime completedAt;
+
+    @Column(name = "duration_ms")
+    private Long durationMs;
+
+    // Size of the stored item data: serialized JSON for jsonb backups, encoded chunks for compact ones
+    @Column(name = "byte_size")
+    private Long byteSize;
+
+    // The deltaLink an incremental backup was fetched from
+    @Column(name = "source_delta_link", columnDefinition = "text")
+    private String sourceDeltaLink;
 }
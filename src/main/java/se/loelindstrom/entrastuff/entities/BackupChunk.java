@@ -0,0 +1,33 @@
+package se.loelindstrom.entrastuff.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+/**
+ * A block of items of a {@link Backup} in the compact format, encoded by
+ * {@link se.loelindstrom.entrastuff.services.BackupChunkCodec}.
+ */
+@Entity
+@Table(
+        name = "backup_chunks",
+        indexes = @Index(name = "idx_backup_chunks_backup_seq", columnList = "backup_id, seq", unique = true)
+)
+@Data
+public class BackupChunk {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "backup_id", nullable = false)
+    private Long backupId;
+
+    // Position of the chunk within the backup, used for keyset paging
+    @Column(name = "seq", nullable = false)
+    private int seq;
+
+    @Column(name = "item_count", nullable = false)
+    private int itemCount;
+
+    @Column(name = "data", columnDefinition = "bytea", nullable = false)
+    private byte[] data;
+}
@@ -0,0 +1,46 @@
+package se.loelindstrom.entrastuff.entities;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.persistence.*;
+import lombok.Data;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+/**
+ * One backed up object (e.g. a user) belonging to a {@link Backup}.
+ * Rows are written with JDBC batch inserts by {@link se.loelindstrom.entrastuff.services.BackupItemWriter}.
+ */
+@Entity
+@Table(
+        name = "backup_items",
+        indexes = @Index(name = "idx_backup_items_backup_seq", columnList = "backup_id, seq", unique = true)
+)
+@Data
+public class BackupItem {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "backup_id", nullable = false)
+    private Long backupId;
+
+    // Position of the item within the backup, used for keyset paging
+    @Column(name = "seq", nullable = false)
+    private long seq;
+
+    // Resource type of the item (see ResourceCollector), null for users
+    @Column(name = "item_type")
+    private String itemType;
+
+    // Object id of the item; for group memberships the group and member id
+    @Column(name = "user_id")
+    private String userId;
+
+    // Set in incremental backups for objects Graph reported as "@removed"
+    @Column(name = "removed", nullable = false)
+    private boolean removed;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "item_data", columnDefinition = "jsonb", nullable = false)
+    private JsonNode itemData;
+}
@@ -0,0 +1,37 @@
+package se.loelindstrom.entrastuff.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * The latest Graph deltaLink for a tenant and data type, and the backup that it continues from.
+ * Delta chains that don't produce backups, like audit reconciliation, have no backup.
+ */
+@Entity
+@Table(
+        name = "delta_tokens",
+        uniqueConstraints = @UniqueConstraint(name = "uq_delta_tokens_tenant_type", columnNames = {"tenant_id", "data_type"})
+)
+@Data
+public class DeltaToken {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "tenant_id", nullable = false)
+    private String tenantId;
+
+    @Column(name = "data_type", nullable = false)
+    private String dataType;
+
+    @Column(name = "delta_link", columnDefinition = "text", nullable = false)
+    private String deltaLink;
+
+    @Column(name = "backup_id")
+    private Long backupId;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,84 @@
+package se.loelindstrom.entrastuff.entities;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.persistence.*;
+import lombok.Data;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.time.LocalDateTime;
+
+/**
+ * A backup or restore running in the background. Progress counters are flushed periodically
+ * while the job runs, so the last known progress survives a restart. The instance running or queueing
+ * a job holds a lease on it, which only {@link se.loelindstrom.entrastuff.repositories.JobRepository}'s
+ * conditional updates write.
+ */
+@Entity
+@Table(name = "jobs")
+@Data
+public class Job {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // backup or restore
+    @Column(name = "type", nullable = false)
+    private String type;
+
+    // The tenant backed up or restored to. Null on jobs from before tenants were registered, meaning the default tenant
+    @Column(name = "tenant_id")
+    private String tenantId;
+
+    // queued, running, completed, failed or interrupted
+    @Column(name = "status", nullable = false)
+    private String status;
+
+    // Backup mode (full/incremental) for backup jobs, restore mode (full/diff/mirror) for restore jobs
+    @Column(name = "mode")
+    private String mode;
+
+    // The backup being restored, or the backup written by a backup job once known
+    @Column(name = "backup_id")
+    private Long backupId;
+
+    @Column(name = "pages_fetched", nullable = false)
+    private long pagesFetched;
+
+    @Column(name = "users_written", nullable = false)
+    private long usersWritten;
+
+    @Column(name = "batches_restored", nullable = false)
+    private long batchesRestored;
+
+    @Column(name = "users_restored", nullable = false)
+    private long usersRestored;
+
+    // Expected number of users, used for the ETA. Null if unknown
+    @Column(name = "total_estimate")
+    private Long totalEstimate;
+
+    @Column(name = "error", columnDefinition = "text")
+    private String error;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "result", columnDefinition = "jsonb")
+    private JsonNode result;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "started_at")
+    private LocalDateTime startedAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+
+    // The instance that queued or runs the job
+    @Column(name = "owner", insertable = false, updatable = false)
+    private String owner;
+
+    // Renewed by the owner while it queues or runs the job; once expired, other instances take the job over
+    @Column(name = "lease_expires_at", insertable = false, updatable = false)
+    private LocalDateTime leaseExpiresAt;
+}
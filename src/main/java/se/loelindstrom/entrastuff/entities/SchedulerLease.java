@@ -0,0 +1,29 @@
+package se.loelindstrom.entrastuff.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Claim on a scheduled backup policy, shared by all application instances. A node may only start a run while
+ * the lease has expired and the run's fire time is newer than the last one claimed, so every fire time runs once.
+ * The owner renews the lease while its backup runs.
+ */
+@Entity
+@Table(name = "scheduler_leases")
+@Data
+public class SchedulerLease {
+    @Id
+    @Column(name = "name")
+    private String name;
+
+    @Column(name = "owner")
+    private String owner;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(name = "last_fire_time")
+    private LocalDateTime lastFireTime;
+}
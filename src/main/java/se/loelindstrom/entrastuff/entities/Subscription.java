@@ -0,0 +1,45 @@
+package se.loelindstrom.entrastuff.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * A Graph change-notification subscription of the webhook. The clientState is kept so that notifications
+ * can be validated by any instance and after restarts.
+ */
+@Entity
+@Table(name = "subscriptions", indexes = @Index(name = "idx_subscriptions_status_expires", columnList = "status, expires_at"))
+@Data
+public class Subscription {
+    // Graph's subscription id
+    @Id
+    @Column(name = "id")
+    private String id;
+
+    @Column(name = "tenant_id", nullable = false)
+    private String tenantId;
+
+    @Column(name = "resource", nullable = false)
+    private String resource;
+
+    @Column(name = "change_type", nullable = false)
+    private String changeType;
+
+    @Column(name = "client_state", nullable = false)
+    private String clientState;
+
+    // active, or expired once Graph no longer knows the subscription
+    @Column(name = "status", nullable = false)
+    private String status;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "renewed_at")
+    private LocalDateTime renewedAt;
+}
@@ -0,0 +1,44 @@
+package se.loelindstrom.entrastuff.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * An Entra tenant the application backs up, with the app registration used to call Graph for it and its
+ * share of the job threads and Graph requests.
+ */
+@Entity
+@Table(name = "tenants")
+@Data
+public class Tenant {
+    // Entra tenant id
+    @Id
+    @Column(name = "id")
+    private String id;
+
+    @Column(name = "display_name")
+    private String displayName;
+
+    @Column(name = "client_id", nullable = false)
+    private String clientId;
+
+    // Encrypted with tenants.secret-key. Null for the tenant configured in entra.*, whose secret stays in configuration
+    @Column(name = "client_secret", columnDefinition = "text")
+    private String clientSecret;
+
+    // Backups and restores of this tenant running at once
+    @Column(name = "max_concurrent_jobs", nullable = false)
+    private int maxConcurrentJobs;
+
+    // Graph requests of this tenant in flight at once, across all its jobs
+    @Column(name = "max_graph_requests", nullable = false)
+    private int maxGraphRequests;
+
+    @Column(name = "enabled", nullable = false)
+    private boolean enabled;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,21 @@
+package se.loelindstrom.entrastuff.exceptions;
+
+public class GraphApiException extends RuntimeException {
+    private final int statusCode;
+    private final String retryAfter;
+
+    public GraphApiException(String message, int statusCode, String retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // Raw Retry-After header value, null if Graph sent none
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+}
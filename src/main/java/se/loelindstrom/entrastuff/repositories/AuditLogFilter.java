@@ -0,0 +1,10 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import java.time.LocalDateTime;
+
+/**
+ * Optional criteria for querying audit logs; null fields are not filtered on. The createdAt range is inclusive
+ * at the start and exclusive at the end, and only the partitions it overlaps are read.
+ */
+public record AuditLogFilter(LocalDateTime from, LocalDateTime to, String eventType, String resourceId) {
+}
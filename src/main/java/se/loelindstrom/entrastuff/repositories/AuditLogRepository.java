@@ -1,8 +1,29 @@
 package se.loelindstrom.entrastuff.repositories;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import se.loelindstrom.entrastuff.entities.AuditLog;
 
-public interface AuditLogRepository extends JpaRepository<AuditLog, Long> {
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Set;
 
-}
\ No newline at end of file
+public interface AuditLogRepository extends JpaRepository<AuditLog, Long>, AuditLogRepositoryCustom {
+    // The createdAt range lets Postgres skip the partitions outside it
+    @Query("SELECT a.notificationId FROM AuditLog a WHERE a.notificationId IN :notificationIds AND a.createdAt BETWEEN :from AND :to")
+    Set<String> findExistingNotificationIds(
+            @Param("notificationIds") Collection<String> notificationIds,
+            @Param("from") LocalDateTime from,
+            @Param("to") LocalDateTime to
+    );
+
+    @Query("SELECT DISTINCT a.resourceId FROM AuditLog a WHERE a.resourceId IN :resourceIds AND a.createdAt >= :from")
+    Set<String> findResourceIdsSeenSince(
+            @Param("resourceIds") Collection<String> resourceIds,
+            @Param("from") LocalDateTime from
+    );
+
+    @Query("SELECT MAX(a.createdAt) FROM AuditLog a WHERE a.tenantId = :tenantId")
+    LocalDateTime findLatestCreatedAt(@Param("tenantId") String tenantId);
+}
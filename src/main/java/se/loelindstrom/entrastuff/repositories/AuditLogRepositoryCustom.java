@@ -0,0 +1,14 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import se.loelindstrom.entrastuff.dtos.AuditLogDTO;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface AuditLogRepositoryCustom {
+    /**
+     * Keyset paging, newest first: returns up to {@code limit} audit logs matching the filter that sort after
+     * ({@code beforeCreatedAt}, {@code beforeId}), or from the newest one when the cursor is null.
+     */
+    List<AuditLogDTO> findPage(AuditLogFilter filter, LocalDateTime beforeCreatedAt, Long beforeId, int limit);
+}
@@ -0,0 +1,62 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import se.loelindstrom.entrastuff.dtos.AuditLogDTO;
+import se.loelindstrom.entrastuff.entities.AuditLog;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the audit log query from only the filters that are set. Every filter is followed by created_at in
+ * its index, so a page is read in index order and stops after {@code limit} rows.
+ */
+public class AuditLogRepositoryImpl implements AuditLogRepositoryCustom {
+    private final EntityManager entityManager;
+
+    public AuditLogRepositoryImpl(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    public List<AuditLogDTO> findPage(AuditLogFilter filter, LocalDateTime beforeCreatedAt, Long beforeId, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<AuditLogDTO> query = cb.createQuery(AuditLogDTO.class);
+        Root<AuditLog> a = query.from(AuditLog.class);
+
+        List<Predicate> predicates = new ArrayList<>();
+        if (filter.from() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(a.get("createdAt"), filter.from()));
+        }
+        if (filter.to() != null) {
+            predicates.add(cb.lessThan(a.get("createdAt"), filter.to()));
+        }
+        if (filter.eventType() != null) {
+            predicates.add(cb.equal(a.get("eventType"), filter.eventType()));
+        }
+        if (filter.resourceId() != null) {
+            predicates.add(cb.equal(a.get("resourceId"), filter.resourceId()));
+        }
+        if (beforeCreatedAt != null) {
+            // The plain bound lets the index range scan and partition pruning start at the cursor
+            predicates.add(cb.lessThanOrEqualTo(a.get("createdAt"), beforeCreatedAt));
+            predicates.add(cb.or(
+                    cb.lessThan(a.get("createdAt"), beforeCreatedAt),
+                    cb.lessThan(a.get("id"), beforeId)));
+        }
+
+        query.select(cb.construct(AuditLogDTO.class,
+                        a.get("id"), a.get("notificationId"), a.get("eventType"), a.get("resourceId"), a.get("createdAt"),
+                        a.get("eventCount"), a.get("eventData")))
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(cb.desc(a.get("createdAt")), cb.desc(a.get("id")));
+        return entityManager.createQuery(query)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+}
@@ -0,0 +1,20 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import se.loelindstrom.entrastuff.entities.BackupChunk;
+
+import java.util.Collection;
+import java.util.Optional;
+
+public interface BackupChunkRepository extends JpaRepository<BackupChunk, Long> {
+    // Keyset paging one chunk at a time: pass the last seen seq, or -1 for the first chunk
+    Optional<BackupChunk> findFirstByBackupIdAndSeqGreaterThanOrderBySeqAsc(Long backupId, int afterSeq);
+
+    // The caller provides the transaction
+    @Modifying
+    @Query("DELETE FROM BackupChunk c WHERE c.backupId IN :backupIds")
+    int deleteByBackupIds(@Param("backupIds") Collection<Long> backupIds);
+}
@@ -0,0 +1,10 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import java.time.LocalDateTime;
+
+/**
+ * Optional criteria for listing backups; null fields are not filtered on. The createdAt range is inclusive
+ * at the start and exclusive at the end.
+ */
+public record BackupFilter(String tenantId, String dataType, String backupType, LocalDateTime createdFrom, LocalDateTime createdTo) {
+}
@@ -0,0 +1,21 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import se.loelindstrom.entrastuff.entities.BackupItem;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface BackupItemRepository extends JpaRepository<BackupItem, Long> {
+    // Keyset paging: pass the last seen seq (or -1 for the first page) and PageRequest.of(0, pageSize)
+    List<BackupItem> findByBackupIdAndSeqGreaterThanOrderBySeqAsc(Long backupId, long afterSeq, Pageable pageable);
+
+    // One set-based DELETE served by the (backup_id, seq) index; the caller provides the transaction
+    @Modifying
+    @Query("DELETE FROM BackupItem i WHERE i.backupId IN :backupIds")
+    int deleteByBackupIds(@Param("backupIds") Collection<Long> backupIds);
+}
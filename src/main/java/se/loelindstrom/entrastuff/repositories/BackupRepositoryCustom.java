@@ -0,0 +1,13 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import se.loelindstrom.entrastuff.dtos.BackupDTO;
+
+import java.util.List;
+
+public interface BackupRepositoryCustom {
+    /**
+     * Keyset paging, newest first: returns up to {@code limit} backups matching the filter with an id below
+     * {@code beforeId}, or from the newest backup when it is null.
+     */
+    List<BackupDTO> findSummaries(BackupFilter filter, Long beforeId, int limit);
+}
@@ -0,0 +1,63 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import se.loelindstrom.entrastuff.dtos.BackupDTO;
+import se.loelindstrom.entrastuff.entities.Backup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the listing query from only the filters that are set, so Postgres plans each combination against
+ * the matching index instead of one catch-all plan with "param IS NULL OR ..." conditions.
+ */
+public class BackupRepositoryImpl implements BackupRepositoryCustom {
+    private final EntityManager entityManager;
+
+    public BackupRepositoryImpl(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    public List<BackupDTO> findSummaries(BackupFilter filter, Long beforeId, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<BackupDTO> query = cb.createQuery(BackupDTO.class);
+        Root<Backup> b = query.from(Backup.class);
+
+        List<Predicate> predicates = new ArrayList<>();
+        if (filter.tenantId() != null) {
+            predicates.add(cb.equal(b.get("tenantId"), filter.tenantId()));
+        }
+        if (filter.dataType() != null) {
+            predicates.add(cb.equal(b.get("dataType"), filter.dataType()));
+        }
+        if (filter.backupType() != null) {
+            predicates.add(cb.equal(b.get("backupType"), filter.backupType()));
+        }
+        if (filter.createdFrom() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(b.get("createdAt"), filter.createdFrom()));
+        }
+        if (filter.createdTo() != null) {
+            predicates.add(cb.lessThan(b.get("createdAt"), filter.createdTo()));
+        }
+        if (beforeId != null) {
+            predicates.add(cb.lessThan(b.get("id"), beforeId));
+        }
+
+        // Only header columns: the items, and the item count and sizes, are never loaded from the items
+        query.select(cb.construct(BackupDTO.class,
+                        b.get("id"), b.get("tenantId"), b.get("dataType"), b.get("createdAt"), b.get("backupType"),
+                        b.get("mode"), b.get("parentBackupId"), b.get("profile"), b.get("format"), b.get("status"),
+                        b.get("userCount"), b.get("itemCount"), b.get("byteSize"), b.get("durationMs"), b.get("completedAt"),
+                        b.get("sourceDeltaLink")))
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(cb.desc(b.get("id")));
+        return entityManager.createQuery(query)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+}
@@ -0,0 +1,10 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import se.loelindstrom.entrastuff.entities.DeltaToken;
+
+import java.util.Optional;
+
+public interface DeltaTokenRepository extends JpaRepository<DeltaToken, Long> {
+    Optional<DeltaToken> findByTenantIdAndDataType(String tenantId, String dataType);
+}
@@ -0,0 +1,73 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import se.loelindstrom.entrastuff.entities.Job;
+
+import java.util.List;
+
+// Lease times come from the database clock, so instances with skewed clocks agree on expiry
+public interface JobRepository extends JpaRepository<Job, Long> {
+    // Queued jobs no live instance holds, e.g. those of an instance that stopped
+    @Query(value = "SELECT * FROM jobs WHERE status = 'queued' AND (lease_expires_at IS NULL OR lease_expires_at < now()) " +
+            "ORDER BY id", nativeQuery = true)
+    List<Job> findUnclaimedQueued();
+
+    // A single conditional UPDATE, so of several instances claiming the same job exactly one gets 1 back
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET owner = :owner, lease_expires_at = now() + make_interval(secs => :leaseSeconds) " +
+            "WHERE id = :id AND status = 'queued' AND (lease_expires_at IS NULL OR lease_expires_at < now())", nativeQuery = true)
+    int claim(@Param("id") Long id, @Param("owner") String owner, @Param("leaseSeconds") int leaseSeconds);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET lease_expires_at = now() + make_interval(secs => :leaseSeconds) " +
+            "WHERE owner = :owner AND status IN ('queued', 'running')", nativeQuery = true)
+    int renewLeases(@Param("owner") String owner, @Param("leaseSeconds") int leaseSeconds);
+
+    // Only the owner starts a job, so a job taken over after its lease expired is not started twice
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET status = 'running', started_at = now() WHERE id = :id AND owner = :owner AND status = 'queued'",
+            nativeQuery = true)
+    int start(@Param("id") Long id, @Param("owner") String owner);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET owner = NULL, lease_expires_at = now() WHERE id = :id AND owner = :owner AND status = 'queued'",
+            nativeQuery = true)
+    int release(@Param("id") Long id, @Param("owner") String owner);
+
+    // Lets other instances take over the owner's queued jobs right away
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET owner = NULL, lease_expires_at = now() WHERE owner = :owner AND status = 'queued'", nativeQuery = true)
+    int releaseQueued(@Param("owner") String owner);
+
+    // Running jobs whose owner stopped renewing them; jobs of live instances keep their lease
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE jobs SET status = 'interrupted', finished_at = now() " +
+            "WHERE status = 'running' AND (lease_expires_at IS NULL OR lease_expires_at < now())", nativeQuery = true)
+    int interruptExpired();
+
+    // Only touches the counters, so it never overwrites a status written by the job thread
+    @Modifying
+    @Transactional
+    @Query("UPDATE Job j SET j.backupId = :backupId, j.pagesFetched = :pagesFetched, j.usersWritten = :usersWritten, " +
+            "j.batchesRestored = :batchesRestored, j.usersRestored = :usersRestored, j.totalEstimate = :totalEstimate " +
+            "WHERE j.id = :id")
+    int updateProgress(
+            @Param("id") Long id,
+            @Param("backupId") Long backupId,
+            @Param("pagesFetched") long pagesFetched,
+            @Param("usersWritten") long usersWritten,
+            @Param("batchesRestored") long batchesRestored,
+            @Param("usersRestored") long usersRestored,
+            @Param("totalEstimate") Long totalEstimate
+    );
+}
@@ -0,0 +1,42 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import se.loelindstrom.entrastuff.entities.SchedulerLease;
+
+import java.time.LocalDateTime;
+
+// Lease times come from the database clock, so instances with skewed clocks agree on expiry
+public interface SchedulerLeaseRepository extends JpaRepository<SchedulerLease, String> {
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO scheduler_leases (name, expires_at) VALUES (:name, now()) ON CONFLICT (name) DO NOTHING", nativeQuery = true)
+    int createIfAbsent(@Param("name") String name);
+
+    // A single conditional UPDATE, so of several instances claiming the same fire time exactly one gets 1 back
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE scheduler_leases SET owner = :owner, expires_at = now() + make_interval(secs => :leaseSeconds), " +
+            "last_fire_time = :fireTime " +
+            "WHERE name = :name AND expires_at < now() AND (last_fire_time IS NULL OR last_fire_time < :fireTime)", nativeQuery = true)
+    int claim(
+            @Param("name") String name,
+            @Param("owner") String owner,
+            @Param("fireTime") LocalDateTime fireTime,
+            @Param("leaseSeconds") int leaseSeconds
+    );
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE scheduler_leases SET expires_at = now() + make_interval(secs => :leaseSeconds) " +
+            "WHERE name = :name AND owner = :owner", nativeQuery = true)
+    int renew(@Param("name") String name, @Param("owner") String owner, @Param("leaseSeconds") int leaseSeconds);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE scheduler_leases SET owner = NULL, expires_at = now() WHERE name = :name AND owner = :owner", nativeQuery = true)
+    int release(@Param("name") String name, @Param("owner") String owner);
+}
@@ -0,0 +1,13 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import se.loelindstrom.entrastuff.entities.Subscription;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface SubscriptionRepository extends JpaRepository<Subscription, String> {
+    List<Subscription> findByStatus(String status);
+
+    List<Subscription> findByStatusAndExpiresAtBefore(String status, LocalDateTime expiresBefore);
+}
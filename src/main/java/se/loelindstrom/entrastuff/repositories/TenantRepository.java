@@ -0,0 +1,10 @@
+package se.loelindstrom.entrastuff.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import se.loelindstrom.entrastuff.entities.Tenant;
+
+import java.util.List;
+
+public interface TenantRepository extends JpaRepository<Tenant, String> {
+    List<Tenant> findByEnabledTrue();
+}
@@ -0,0 +1,94 @@
+package se.loelindstrom.entrastuff.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD concurrency limit for Graph calls: the limit grows by one after a full window of
+ * successful calls and is halved when Graph throttles (429/503). A Retry-After from Graph
+ * pauses all callers until it has passed, since Graph throttles per app and tenant.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int limit;
+    private int inFlight;
+    private int successesSinceIncrease;
+    private Instant pausedUntil = Instant.MIN;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.clamp(initialLimit, this.minLimit, this.maxLimit);
+    }
+
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long pauseMs = Duration.between(Instant.now(), pausedUntil).toMillis();
+                if (pauseMs > 0) {
+                    changed.await(pauseMs, TimeUnit.MILLISECONDS);
+                } else if (inFlight >= limit) {
+                    changed.await();
+                } else {
+                    inFlight++;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess() {
+        lock.lock();
+        try {
+            if (++successesSinceIncrease >= limit && limit < maxLimit) {
+                limit++;
+                successesSinceIncrease = 0;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onThrottled(Duration retryAfter) {
+        lock.lock();
+        try {
+            limit = Math.max(minLimit, limit / 2);
+            successesSinceIncrease = 0;
+            Instant until = Instant.now().plus(retryAfter);
+            if (until.isAfter(pausedUntil)) {
+                pausedUntil = until;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
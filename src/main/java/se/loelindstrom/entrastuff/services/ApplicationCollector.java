@@ -0,0 +1,56 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backs up app registrations. Credentials (passwordCredentials, keyCredentials) cannot be read back, so
+ * recreated applications have none. Both the object id and the appId of a recreated application are mapped,
+ * since service principals refer to the appId.
+ */
+@Component
+public class ApplicationCollector implements ResourceCollector {
+    public static final String ITEM_TYPE = "application";
+    private static final List<String> CREATE_ATTRIBUTES = List.of(
+            "displayName", "description", "signInAudience", "identifierUris", "web", "spa", "publicClient",
+            "requiredResourceAccess", "api", "appRoles", "optionalClaims", "tags", "notes"
+    );
+    private final GraphCollectionReader reader;
+
+    public ApplicationCollector(GraphCollectionReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public String itemType() {
+        return ITEM_TYPE;
+    }
+
+    @Override
+    public int restoreOrder() {
+        return 20;
+    }
+
+    @Override
+    public void collect(String tenantId, ItemHandler handler) throws IOException {
+        reader.readAll(tenantId, reader.getBaseUrl() + "/applications?$top=999&$select=id,appId," + String.join(",", CREATE_ATTRIBUTES), handler);
+    }
+
+    @Override
+    public BatchOperation restoreOperation(JsonNode item, RestoreIdMap ids) {
+        if (!item.hasNonNull("displayName")) {
+            return null;
+        }
+        ObjectNode body = ResourceCollector.copyAttributes(item, CREATE_ATTRIBUTES);
+        String id = item.path("id").asText();
+        String appId = item.path("appId").asText(null);
+        return new BatchOperation("POST", "/applications", body).onCreated(created -> {
+            ids.put(id, created.path("id").asText(null));
+            ids.put(appId, created.path("appId").asText(null));
+        });
+    }
+}
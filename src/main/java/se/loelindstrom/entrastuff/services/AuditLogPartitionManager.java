@@ -0,0 +1,160 @@
+package se.loelindstrom.entrastuff.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Owns the audit_logs table, which is range partitioned by created_at into one partition per month.
+ * Partitions are created ahead of time and on demand before writes, and retention drops whole partitions,
+ * which frees their space at once instead of leaving DELETEd rows for vacuum. Indexes are declared on the
+ * parent table, so every partition gets them.
+ */
+@Component
+public class AuditLogPartitionManager {
+    private static final Logger logger = LoggerFactory.getLogger(AuditLogPartitionManager.class);
+    private static final String TABLE = "audit_logs";
+    private static final Pattern PARTITION_NAME = Pattern.compile(TABLE + "_p(\\d{6})");
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final long MAINTENANCE_INTERVAL_MINUTES = 60;
+    // Matches AuditLog's sequence generator, which allocates 50 ids at a time. Primary and unique keys of
+    // a partitioned table must include the partition key; a replayed notification keeps its received time,
+    // so (notification_id, created_at) still rejects duplicates
+    private static final List<String> SCHEMA = List.of(
+            "CREATE SEQUENCE IF NOT EXISTS " + TABLE + "_seq INCREMENT BY 50",
+            """
+            CREATE TABLE IF NOT EXISTS %s (
+                id bigint NOT NULL,
+                notification_id varchar(255) NOT NULL,
+                event_type varchar(255) NOT NULL,
+                resource_id varchar(255),
+                tenant_id varchar(255),
+                event jsonb NOT NULL,
+                created_at timestamp(6) NOT NULL,
+                event_count integer NOT NULL DEFAULT 1,
+                PRIMARY KEY (id, created_at),
+                CONSTRAINT uk_audit_logs_notification UNIQUE (notification_id, created_at)
+            ) PARTITION BY RANGE (created_at)""".formatted(TABLE),
+            // Tables created before notifications were coalesced
+            "ALTER TABLE " + TABLE + " ADD COLUMN IF NOT EXISTS event_count integer NOT NULL DEFAULT 1",
+            // Tables created before audit logs recorded their tenant
+            "ALTER TABLE " + TABLE + " ADD COLUMN IF NOT EXISTS tenant_id varchar(255)",
+            "CREATE INDEX IF NOT EXISTS idx_audit_logs_created_at ON " + TABLE + " (created_at, id)",
+            "CREATE INDEX IF NOT EXISTS idx_audit_logs_event_type ON " + TABLE + " (event_type, created_at, id)",
+            "CREATE INDEX IF NOT EXISTS idx_audit_logs_resource_id ON " + TABLE + " (resource_id, created_at, id)",
+            "CREATE INDEX IF NOT EXISTS idx_audit_logs_tenant_id ON " + TABLE + " (tenant_id, created_at)"
+    );
+    private final JdbcTemplate jdbcTemplate;
+    private final int partitionsAhead;
+    private final int retentionMonths;
+    private final Set<YearMonth> existingPartitions = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService maintenance;
+
+    public AuditLogPartitionManager(
+            JdbcTemplate jdbcTemplate,
+            @Value("${audit-logs.partitions-ahead:2}") int partitionsAhead,
+            @Value("${audit-logs.retention-months:12}") int retentionMonths
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.partitionsAhead = partitionsAhead;
+        this.retentionMonths = retentionMonths;
+    }
+
+    @PostConstruct
+    public void start() {
+        SCHEMA.forEach(jdbcTemplate::execute);
+        maintain();
+        maintenance = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("audit-log-partitions").daemon().factory());
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_MINUTES, MAINTENANCE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes sure partitions exist for every month from {@code from} to {@code to}, e.g. before a batch
+     * of audit logs is inserted. Known partitions are cached, so this is normally free.
+     */
+    public void ensurePartitions(LocalDateTime from, LocalDateTime to) {
+        for (YearMonth month = YearMonth.from(from); !month.isAfter(YearMonth.from(to)); month = month.plusMonths(1)) {
+            if (!existingPartitions.contains(month)) {
+                createPartition(month);
+            }
+        }
+    }
+
+    // Creates the coming months' partitions and drops those entirely older than the retention
+    void maintain() {
+        try {
+            refreshExistingPartitions();
+            YearMonth current = YearMonth.now();
+            ensurePartitions(current.atDay(1).atStartOfDay(), current.plusMonths(partitionsAhead).atDay(1).atStartOfDay());
+            if (retentionMonths > 0) {
+                dropPartitionsBefore(current.minusMonths(retentionMonths));
+            }
+        } catch (Exception e) {
+            logger.error("Audit log partition maintenance failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void refreshExistingPartitions() {
+        List<String> names = jdbcTemplate.queryForList(
+                "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = '" + TABLE + "'::regclass",
+                String.class);
+        existingPartitions.clear();
+        for (String name : names) {
+            Matcher matcher = PARTITION_NAME.matcher(name);
+            if (matcher.matches()) {
+                existingPartitions.add(YearMonth.parse(matcher.group(1), PARTITION_SUFFIX));
+            }
+        }
+    }
+
+    private synchronized void createPartition(YearMonth month) {
+        if (existingPartitions.contains(month)) {
+            return;
+        }
+        LocalDate start = month.atDay(1);
+        // IF NOT EXISTS covers another instance creating the same partition
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + partitionName(month) + " PARTITION OF " + TABLE
+                + " FOR VALUES FROM ('" + start + "') TO ('" + start.plusMonths(1) + "')");
+        existingPartitions.add(month);
+        logger.info("Created audit log partition for {}.", month);
+    }
+
+    private void dropPartitionsBefore(YearMonth oldestKept) {
+        for (YearMonth month : List.copyOf(existingPartitions)) {
+            if (month.isBefore(oldestKept)) {
+                jdbcTemplate.execute("DROP TABLE IF EXISTS " + partitionName(month));
+                existingPartitions.remove(month);
+                logger.info("Dropped audit log partition for {}, which is older than the {} month retention.", month, retentionMonths);
+            }
+        }
+    }
+
+    private static String partitionName(YearMonth month) {
+        return TABLE + "_p" + month.format(PARTITION_SUFFIX);
+    }
+}
@@ -0,0 +1,303 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.loelindstrom.entrastuff.entities.AuditLog;
+import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Decouples webhook requests from the database. Validated notifications are appended to the durable
+ * {@link WebhookSpool}, so acknowledging them only depends on local disk. A single replayer thread reads
+ * the spool in batches, skips notifications that are already stored (by notification id) and saves the
+ * rest as one batch (JDBC batched through Hibernate) before advancing the spool checkpoint.
+ * <p>
+ * Redeliveries recognized by the {@link WebhookDedupCache} are dropped before they are spooled. With
+ * webhook.coalesce.enabled, bursts of distinct updated notifications for one resource within webhook.coalesce.window-seconds
+ * are stored as one audit log with an event count, keeping the first notification's id and time and the latest
+ * event. The replayer holds back a batch that is not full until its oldest notification is a window old, so a
+ * burst lands in one batch and is coalesced before anything is written. Redeliveries that got past the cache (e.g.
+ * to another instance) are dropped by notification id before coalescing, so they never add to an event count.
+ * <p>
+ * Metrics: webhook.events counts spooled notifications, webhook.events.duplicate dropped redeliveries,
+ * audit.log.coalesced notifications merged into another audit log, webhook.spool.backlog is the unreplayed
+ * spool size, and audit.log.write times each batch's database work.
+ */
+@Component
+public class AuditLogWriter {
+    private static final Logger logger = LoggerFactory.getLogger(AuditLogWriter.class);
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
+    private final AuditLogRepository auditLogRepository;
+    private final AuditLogPartitionManager partitionManager;
+    private final WebhookSpool spool;
+    private final WebhookDedupCache dedupCache;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    // Zero when coalescing is disabled
+    private final Duration coalesceWindow;
+    private final Counter eventsReceived;
+    private final Counter duplicatesDropped;
+    private final Counter eventsCoalesced;
+    private final Counter auditLogsSaved;
+    private final Timer writeTimer;
+    private final Thread replayerThread;
+    private volatile boolean running = true;
+
+    public AuditLogWriter(
+            AuditLogRepository auditLogRepository,
+            AuditLogPartitionManager partitionManager,
+            WebhookSpool spool,
+            WebhookDedupCache dedupCache,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${webhook.write-batch-size:100}") int batchSize,
+            @Value("${webhook.coalesce.enabled:false}") boolean coalesce,
+            @Value("${webhook.coalesce.window-seconds:10}") long coalesceWindowSeconds
+    ) {
+        this.auditLogRepository = auditLogRepository;
+        this.partitionManager = partitionManager;
+        this.spool = spool;
+        this.dedupCache = dedupCache;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.coalesceWindow = coalesce ? Duration.ofSeconds(coalesceWindowSeconds) : Duration.ZERO;
+        this.eventsReceived = meterRegistry.counter("webhook.events");
+        this.duplicatesDropped = meterRegistry.counter("webhook.events.duplicate");
+        this.eventsCoalesced = meterRegistry.counter("audit.log.coalesced");
+        this.auditLogsSaved = meterRegistry.counter("audit.log.saved");
+        this.writeTimer = Timer.builder("audit.log.write")
+                .description("Duplicate lookup and insert of one replayed batch")
+                .register(meterRegistry);
+        Gauge.builder("webhook.spool.backlog", spool, WebhookSpool::getBacklogBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.replayerThread = Thread.ofPlatform().name("audit-log-replayer").start(this::replayLoop);
+    }
+
+    /**
+     * Durably spools the notifications of one webhook request.
+     *
+     * @return false if the spool backlog is full and the caller should ask Graph to retry later
+     */
+    public boolean append(List<JsonNode> events) throws IOException {
+        List<JsonNode> fresh = events;
+        List<String> keys = List.of();
+        if (dedupCache.isEnabled()) {
+            keys = dedupCache.claim(events);
+            fresh = new ArrayList<>(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                if (keys.get(i) != null) {
+                    fresh.add(events.get(i));
+                }
+            }
+            if (fresh.size() < events.size()) {
+                duplicatesDropped.increment(events.size() - fresh.size());
+                logger.debug("Dropped {} redelivered notifications.", events.size() - fresh.size());
+            }
+            if (fresh.isEmpty()) {
+                return true;
+            }
+        }
+
+        ObjectNode envelope = objectMapper.createObjectNode();
+        envelope.put("receivedAt", System.currentTimeMillis());
+        envelope.putArray("value").addAll(fresh);
+        boolean appended;
+        try {
+            appended = spool.append(objectMapper.writeValueAsBytes(envelope));
+        } catch (IOException | RuntimeException e) {
+            dedupCache.forget(keys);
+            throw e;
+        }
+        if (appended) {
+            eventsReceived.increment(fresh.size());
+        } else {
+            // Graph retries the request, which must not count as a redelivery
+            dedupCache.forget(keys);
+        }
+        return appended;
+    }
+
+    public long getBacklogBytes() {
+        return spool.getBacklogBytes();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        logger.info("Replaying {} spooled bytes of webhook notifications before shutdown.", spool.getBacklogBytes());
+        running = false;
+        replayerThread.join(TimeUnit.SECONDS.toMillis(30));
+        if (replayerThread.isAlive()) {
+            logger.warn("Webhook spool was not fully replayed in time. The rest is replayed on next startup.");
+            replayerThread.interrupt();
+        }
+    }
+
+    private void replayLoop() {
+        int failures = 0;
+        while (running || spool.hasUnread()) {
+            try {
+                WebhookSpool.Batch batch = spool.read(batchSize);
+                if (batch.records().isEmpty()) {
+                    Thread.sleep(50);
+                    continue;
+                }
+                long holdMs = coalesceHoldMs(batch);
+                if (holdMs > 0) {
+                    Thread.sleep(Math.min(holdMs, 200));
+                    continue;
+                }
+                List<AuditLog> auditLogs = coalesce(toAuditLogs(batch.records()));
+                writeTimer.record(() -> save(auditLogs));
+                spool.commit(batch);
+                failures = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // The batch stays in the spool and is read again
+                long delayMs = Math.min(MAX_RETRY_DELAY_MS, 200L << Math.min(failures++, 10));
+                logger.warn("Failed to replay webhook notifications, retrying in {} ms: {}", delayMs, e.getMessage());
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // How long to wait for more notifications before the batch is written; the batch is read again after waiting
+    private long coalesceHoldMs(WebhookSpool.Batch batch) throws IOException {
+        if (coalesceWindow.isZero() || !running || batch.records().size() >= batchSize) {
+            return 0;
+        }
+        long receivedAt = objectMapper.readTree(batch.records().getFirst()).path("receivedAt").asLong();
+        return receivedAt + coalesceWindow.toMillis() - System.currentTimeMillis();
+    }
+
+    // Merges updated notifications for a resource received within the window of the first one into it
+    private List<AuditLog> coalesce(List<AuditLog> auditLogs) {
+        if (coalesceWindow.isZero()) {
+            return auditLogs;
+        }
+        List<AuditLog> coalesced = new ArrayList<>(auditLogs.size());
+        Map<String, AuditLog> bursts = new HashMap<>();
+        Set<String> notificationIds = new HashSet<>();
+        for (AuditLog auditLog : auditLogs) {
+            if (!notificationIds.add(auditLog.getNotificationId())) {
+                continue;
+            }
+            if (!"user.updated".equals(auditLog.getEventType()) || auditLog.getResourceId() == null) {
+                coalesced.add(auditLog);
+                continue;
+            }
+            AuditLog first = bursts.get(auditLog.getResourceId());
+            if (first != null && !auditLog.getCreatedAt().isAfter(first.getCreatedAt().plus(coalesceWindow))) {
+                first.setEventCount(first.getEventCount() + auditLog.getEventCount());
+                first.setEventData(auditLog.getEventData());
+                eventsCoalesced.increment();
+            } else {
+                bursts.put(auditLog.getResourceId(), auditLog);
+                coalesced.add(auditLog);
+            }
+        }
+        return coalesced;
+    }
+
+    private void save(List<AuditLog> auditLogs) {
+        if (auditLogs.isEmpty()) {
+            return;
+        }
+        Map<String, AuditLog> byNotificationId = auditLogs.stream()
+                .collect(Collectors.toMap(AuditLog::getNotificationId, Function.identity(), (first, duplicate) -> first));
+        // A replayed notification keeps its received time, so only the partitions of this batch are searched
+        LocalDateTime from = auditLogs.stream().map(AuditLog::getCreatedAt).min(LocalDateTime::compareTo).orElseThrow();
+        LocalDateTime to = auditLogs.stream().map(AuditLog::getCreatedAt).max(LocalDateTime::compareTo).orElseThrow();
+        partitionManager.ensurePartitions(from, to);
+        Set<String> existing = auditLogRepository.findExistingNotificationIds(byNotificationId.keySet(), from, to);
+        existing.forEach(byNotificationId::remove);
+
+        if (!byNotificationId.isEmpty()) {
+            auditLogRepository.saveAll(byNotificationId.values());
+            auditLogsSaved.increment(byNotificationId.size());
+        }
+        logger.info("Saved {} audit logs.", byNotificationId.size());
+        if (!existing.isEmpty()) {
+            logger.debug("Skipped {} already stored notifications.", existing.size());
+        }
+    }
+
+    private List<AuditLog> toAuditLogs(List<byte[]> records) throws IOException {
+        List<AuditLog> auditLogs = new ArrayList<>();
+        for (byte[] record : records) {
+            JsonNode envelope = objectMapper.readTree(record);
+            LocalDateTime receivedAt = LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(envelope.path("receivedAt").asLong()), ZoneId.systemDefault());
+            for (JsonNode event : envelope.path("value")) {
+                AuditLog auditLog = new AuditLog();
+                auditLog.setNotificationId(notificationId(event));
+                auditLog.setEventType(determineEventType(event));
+                auditLog.setResourceId(event.has("resource") ? event.get("resource").asText() : null);
+                auditLog.setTenantId(event.path("tenantId").asText(null));
+                auditLog.setCreatedAt(receivedAt);
+                auditLog.setEventData(event);
+                auditLogs.add(auditLog);
+            }
+        }
+        return auditLogs;
+    }
+
+    private String notificationId(JsonNode event) throws IOException {
+        if (event.hasNonNull("id")) {
+            return event.get("id").asText();
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(objectMapper.writeValueAsString(event).getBytes(StandardCharsets.UTF_8));
+            return "sha256:" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String determineEventType(JsonNode event) {
+        if (event.has("lifecycleEvent")) {
+            return "lifecycle." + event.get("lifecycleEvent").asText();
+        }
+        if (event.has("changeType")) {
+            String changeType = event.get("changeType").asText();
+            return "user." + changeType.toLowerCase();
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,303 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.loelindstrom.entrastuff.entities.AuditLog;
+import se.loelindstrom.entrastuff.entities.DeltaToken;
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+import se.loelindstrom.entrastuff.repositories.DeltaTokenRepository;
+import se.loelindstrom.entrastuff.repositories.SchedulerLeaseRepository;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills gaps in the audit trail left by missed webhook notifications. A catch-up round walks /users/delta from
+ * its own stored deltaLink and, for every user changed since the previous round that has no audit log in that
+ * window, stores a synthesized audit log marked as reconciled. Rounds run when a lifecycle notification
+ * (missed, subscriptionRemoved) asks for one, or when no notification has arrived for max-silence-minutes.
+ * <p>
+ * Every tenant with active subscriptions has its own deltaLink and rounds. The first round only follows the pages
+ * to the deltaLink. Later rounds store the audit logs of each page before fetching the next, and save the new
+ * deltaLink once the round is done; a failed round is walked again from the old deltaLink, and the users it
+ * already logged then have audit logs in the window. One instance runs each round, claimed through the
+ * tenant's lease in the scheduler_leases table.
+ */
+@Service
+public class AuditReconciler {
+    private static final Logger logger = LoggerFactory.getLogger(AuditReconciler.class);
+    public static final String DATA_TYPE = "user-audit";
+    private static final String LEASE_PREFIX = "audit-reconciliation:";
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    private static final int LEASE_SECONDS = 600;
+    private static final int LOOKUP_BATCH_SIZE = 500;
+    private static final String SELECT = "id,displayName,userPrincipalName";
+    private static final Map<String, String> DELTA_HEADERS = Map.of("Prefer", "odata.maxpagesize=999");
+    private final GraphCollectionReader reader;
+    private final DeltaTokenRepository deltaTokenRepository;
+    private final AuditLogRepository auditLogRepository;
+    private final AuditLogPartitionManager partitionManager;
+    private final SchedulerLeaseRepository leaseRepository;
+    private final SubscriptionManager subscriptionManager;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Duration maxSilence;
+    private final String owner;
+    // Reasons of catch-ups requested by lifecycle notifications, by tenant
+    private final Map<String, String> requested = new ConcurrentHashMap<>();
+    private ScheduledExecutorService worker;
+
+    public AuditReconciler(
+            GraphCollectionReader reader,
+            DeltaTokenRepository deltaTokenRepository,
+            AuditLogRepository auditLogRepository,
+            AuditLogPartitionManager partitionManager,
+            SchedulerLeaseRepository leaseRepository,
+            SubscriptionManager subscriptionManager,
+            TransactionTemplate transactionTemplate,
+            ObjectMapper objectMapper,
+            @Value("${webhook.reconciliation.enabled:true}") boolean enabled,
+            @Value("${webhook.reconciliation.max-silence-minutes:60}") long maxSilenceMinutes
+    ) {
+        this.reader = reader;
+        this.deltaTokenRepository = deltaTokenRepository;
+        this.auditLogRepository = auditLogRepository;
+        this.partitionManager = partitionManager;
+        this.leaseRepository = leaseRepository;
+        this.subscriptionManager = subscriptionManager;
+        this.transactionTemplate = transactionTemplate;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.maxSilence = Duration.ofMinutes(maxSilenceMinutes);
+        this.owner = hostName() + "/" + UUID.randomUUID();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            logger.info("Audit log reconciliation is disabled.");
+            return;
+        }
+        worker = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("audit-reconciler").daemon().factory());
+        worker.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (worker != null) {
+            worker.shutdownNow();
+        }
+    }
+
+    /**
+     * Asks for a catch-up round on the next check, e.g. after a missed lifecycle notification.
+     */
+    public void requestCatchUp(String tenantId, String reason) {
+        logger.info("Audit log catch-up requested for tenant {}: {}.", tenantId, reason);
+        requested.put(tenantId, reason);
+    }
+
+    private void check() {
+        Set<String> tenantIds = new TreeSet<>(requested.keySet());
+        subscriptionManager.findActive().forEach(subscription -> tenantIds.add(subscription.getTenantId()));
+        for (String tenantId : tenantIds) {
+            try {
+                check(tenantId);
+            } catch (Exception e) {
+                logger.error("Audit log reconciliation of tenant {} failed: {}", tenantId, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void check(String tenantId) throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        Optional<DeltaToken> deltaToken = deltaTokenRepository.findByTenantIdAndDataType(tenantId, DATA_TYPE);
+        String reason = requested.get(tenantId);
+        if (reason == null) {
+            reason = silenceReason(tenantId, deltaToken, now);
+        }
+        if (reason == null) {
+            return;
+        }
+        // Every instance computes the same minute, and only one can claim it
+        String lease = LEASE_PREFIX + tenantId;
+        leaseRepository.createIfAbsent(lease);
+        if (leaseRepository.claim(lease, owner, now.truncatedTo(ChronoUnit.MINUTES), LEASE_SECONDS) == 0) {
+            return;
+        }
+        try {
+            requested.remove(tenantId, reason);
+            catchUp(tenantId, deltaToken.orElse(null), reason, now);
+        } finally {
+            leaseRepository.release(lease, owner);
+        }
+    }
+
+    // Quiet tenants are checked once per max-silence, since no notifications may just mean no changes
+    private String silenceReason(String tenantId, Optional<DeltaToken> deltaToken, LocalDateTime now) {
+        if (deltaToken.isEmpty()) {
+            return "no reconciliation deltaLink yet";
+        }
+        LocalDateTime silentSince = now.minus(maxSilence);
+        LocalDateTime latestEvent = auditLogRepository.findLatestCreatedAt(tenantId);
+        if ((latestEvent == null || latestEvent.isBefore(silentSince)) && deltaToken.get().getUpdatedAt().isBefore(silentSince)) {
+            return "no notifications since " + (latestEvent == null ? "ever" : latestEvent);
+        }
+        return null;
+    }
+
+    private void catchUp(String tenantId, DeltaToken deltaToken, String reason, LocalDateTime now) throws IOException {
+        Counts counts = new Counts();
+        String deltaLink;
+        try {
+            deltaLink = deltaToken != null
+                    ? walkDelta(tenantId, deltaToken.getDeltaLink(), deltaToken.getUpdatedAt(), reason, now, counts)
+                    : walkDelta(tenantId, initialDeltaUrl(), null, reason, now, counts);
+        } catch (GraphApiException e) {
+            if (deltaToken == null || e.getStatusCode() != 410) {
+                throw e;
+            }
+            logger.warn("Reconciliation deltaLink of tenant {} has expired. Changes since {} cannot be reconciled; starting a new delta chain.",
+                    tenantId, deltaToken.getUpdatedAt());
+            deltaToken = null;
+            deltaLink = walkDelta(tenantId, initialDeltaUrl(), null, reason, now, counts);
+        }
+
+        DeltaToken saved = deltaToken != null ? deltaToken : new DeltaToken();
+        saved.setTenantId(tenantId);
+        saved.setDataType(DATA_TYPE);
+        saved.setDeltaLink(deltaLink);
+        saved.setUpdatedAt(now);
+        deltaTokenRepository.save(saved);
+        logger.info("Audit log catch-up of tenant {} ({}) found {} changed users, {} without audit logs.",
+                tenantId, reason, counts.changed, counts.missed);
+    }
+
+    /**
+     * Follows the delta pages from the url and returns the deltaLink. With a window start, the changes of each page
+     * without audit logs since then are stored before the next page is fetched; without one, as on an initial
+     * round that returns every user, the items are not kept.
+     */
+    private String walkDelta(String tenantId, String url, LocalDateTime windowStart, String reason, LocalDateTime now,
+                             Counts counts) throws IOException {
+        String deltaLink = null;
+        Map<String, JsonNode> changes = new LinkedHashMap<>();
+        while (url != null) {
+            changes.clear();
+            GraphPageParser.PageResult page = reader.readPage(tenantId, url, DELTA_HEADERS, "audit-reconciliation", item -> {
+                if (windowStart != null && item.hasNonNull("id")) {
+                    changes.put(item.get("id").asText(), item);
+                }
+            });
+            if (!changes.isEmpty()) {
+                counts.changed += changes.size();
+                saveMissed(tenantId, changes, windowStart, reason, now, counts);
+            }
+            url = page.nextLink();
+            deltaLink = page.deltaLink();
+        }
+        if (deltaLink == null) {
+            throw new IllegalStateException("Graph delta round for audit reconciliation ended without a deltaLink.");
+        }
+        return deltaLink;
+    }
+
+    private void saveMissed(String tenantId, Map<String, JsonNode> changes, LocalDateTime windowStart, String reason, LocalDateTime now,
+                            Counts counts) {
+        List<String> resourceIds = changes.keySet().stream().map(id -> "Users/" + id).toList();
+        for (int from = 0; from < resourceIds.size(); from += LOOKUP_BATCH_SIZE) {
+            List<String> batch = resourceIds.subList(from, Math.min(from + LOOKUP_BATCH_SIZE, resourceIds.size()));
+            Set<String> seen = auditLogRepository.findResourceIdsSeenSince(batch, windowStart);
+            List<AuditLog> missed = new ArrayList<>();
+            for (String resourceId : batch) {
+                if (!seen.contains(resourceId)) {
+                    missed.add(toAuditLog(tenantId, resourceId, changes.get(resourceId.substring("Users/".length())), windowStart, reason, now));
+                }
+            }
+            if (!missed.isEmpty()) {
+                partitionManager.ensurePartitions(now, now);
+                transactionTemplate.executeWithoutResult(status -> auditLogRepository.saveAll(missed));
+                counts.missed += missed.size();
+            }
+        }
+    }
+
+    // Delta can't tell creations from updates, so changes are recorded as updated
+    private AuditLog toAuditLog(String tenantId, String resourceId, JsonNode item, LocalDateTime windowStart, String reason, LocalDateTime now) {
+        boolean removed = item.has("@removed");
+        ObjectNode event = objectMapper.createObjectNode();
+        event.put("changeType", removed ? "deleted" : "updated");
+        event.put("resource", resourceId);
+        event.set("resourceData", item);
+        event.put("reconciled", true);
+        event.put("reason", reason);
+        event.put("changedAfter", windowStart.toString());
+        event.put("detectedAt", now.toString());
+
+        AuditLog auditLog = new AuditLog();
+        auditLog.setNotificationId("reconciled:" + sha256(resourceId + "|" + windowStart + "|" + item));
+        auditLog.setEventType(removed ? "user.deleted" : "user.updated");
+        auditLog.setResourceId(resourceId);
+        auditLog.setTenantId(tenantId);
+        auditLog.setEventData(event);
+        auditLog.setCreatedAt(now);
+        return auditLog;
+    }
+
+    private String initialDeltaUrl() {
+        return reader.getBaseUrl() + "/users/delta?$select=" + SELECT;
+    }
+
+    private static final class Counts {
+        private long changed;
+        private long missed;
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown-host";
+        }
+    }
+}
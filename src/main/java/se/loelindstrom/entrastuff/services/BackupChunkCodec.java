@@ -0,0 +1,102 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes chunks of the compact backup format. A chunk is a version byte followed by a zstd frame holding
+ * one Smile document: an array of the chunk's items, with null properties dropped unless the chunk keeps them.
+ * Incremental backups keep them, since a null in a delta item is an attribute that was cleared. Smile refers back
+ * to property names (and short string values) already written in the document, which gives every chunk its
+ * own dictionary, so each name is stored once per chunk instead of once per user.
+ */
+@Component
+public class BackupChunkCodec {
+    private static final int VERSION = 1;
+    private final ObjectMapper smileMapper;
+    private final int compressionLevel;
+
+    public BackupChunkCodec(@Value("${backup.compression-level:3}") int compressionLevel) {
+        SmileFactory smileFactory = SmileFactory.builder()
+                .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                .build();
+        this.smileMapper = new ObjectMapper(smileFactory);
+        this.compressionLevel = compressionLevel;
+    }
+
+    public byte[] encode(List<JsonNode> items, boolean keepNulls) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(VERSION);
+        // Closing the generator closes the zstd stream, which finishes the frame
+        try (JsonGenerator generator = smileMapper.createGenerator(new ZstdOutputStream(bytes, compressionLevel))) {
+            generator.writeStartArray();
+            for (JsonNode item : items) {
+                if (keepNulls) {
+                    generator.writeTree(item);
+                } else {
+                    writeWithoutNulls(generator, item);
+                }
+            }
+            generator.writeEndArray();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Streams the items of a chunk to the handler; only the current item is materialized.
+     */
+    public void decode(byte[] chunk, ItemHandler handler) throws IOException {
+        if (chunk.length == 0 || chunk[0] != VERSION) {
+            throw new IOException("Unsupported backup chunk version " + (chunk.length == 0 ? "(empty)" : chunk[0]) + ".");
+        }
+        try (JsonParser parser = smileMapper.createParser(new ZstdInputStream(new ByteArrayInputStream(chunk, 1, chunk.length - 1)))) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Backup chunk does not contain an item array.");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode item = parser.readValueAsTree();
+                handler.handle(item);
+            }
+        }
+    }
+
+    private static void writeWithoutNulls(JsonGenerator generator, JsonNode node) throws IOException {
+        if (node.isObject()) {
+            generator.writeStartObject();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!field.getValue().isNull()) {
+                    generator.writeFieldName(field.getKey());
+                    writeWithoutNulls(generator, field.getValue());
+                }
+            }
+            generator.writeEndObject();
+        } else if (node.isArray()) {
+            generator.writeStartArray();
+            for (JsonNode element : node) {
+                writeWithoutNulls(generator, element);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeTree(node);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes backups in the compact format: items are collected into chunks of a fixed size, and each
+ * chunk is encoded by {@link BackupChunkCodec} and inserted as one backup_chunks row.
+ */
+public class BackupChunkWriter extends BackupWriter {
+    private static final Logger logger = LoggerFactory.getLogger(BackupChunkWriter.class);
+    private static final String INSERT_SQL =
+            "INSERT INTO backup_chunks (backup_id, seq, item_count, data) VALUES (?, ?, ?, ?)";
+    private final JdbcTemplate jdbcTemplate;
+    private final BackupChunkCodec codec;
+    private final int chunkSize;
+    private final List<JsonNode> pending;
+    private int nextChunkSeq;
+
+    BackupChunkWriter(
+            Backup backup,
+            BackupRepository backupRepository,
+            JdbcTemplate jdbcTemplate,
+            BackupChunkCodec codec,
+            int chunkSize
+    ) {
+        super(backup, backupRepository);
+        this.jdbcTemplate = jdbcTemplate;
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+        this.pending = new ArrayList<>(chunkSize);
+    }
+
+    @Override
+    public synchronized void write(JsonNode item) throws IOException {
+        pending.add(item);
+        count(item);
+        if (pending.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // Nulls in delta items clear the attribute when the snapshot is materialized
+        byte[] data = codec.encode(pending, "incremental".equals(backup.getMode()));
+        jdbcTemplate.update(INSERT_SQL, backup.getId(), nextChunkSeq++, pending.size(), data);
+        storedBytes += data.length;
+        logger.trace("Flushed chunk of {} items ({} bytes) to backup {}.", pending.size(), data.length, backup.getId());
+        pending.clear();
+    }
+
+    @Override
+    protected void discard() {
+        pending.clear();
+    }
+}
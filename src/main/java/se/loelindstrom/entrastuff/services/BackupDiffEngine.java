@@ -0,0 +1,328 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.BackupProfiles;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compares the users of a backup with another backup or the live tenant and reports what a restore would
+ * have to create, update or delete. The current side is indexed as user id and UPN to a content hash, and
+ * the backup is then streamed against it, so only the index is held in memory and unchanged users are
+ * recognized by their hash alone. Users are matched by id, or by UPN when they were recreated with a new id.
+ * <p>
+ * Hashes are SHA-256 over the attributes a restore can write, with keys sorted and nulls and OData annotations
+ * dropped, so the jsonb and compact formats and the live tenant hash alike, and users that differ only in read-only
+ * attributes like mail count as unchanged. The backup's own tenant is read with the backup's profile, so both sides
+ * hold the same attributes. Only users are diffed; other resources in the backup are skipped.
+ */
+@Service
+public class BackupDiffEngine {
+    private static final Logger logger = LoggerFactory.getLogger(BackupDiffEngine.class);
+    // Attributes Graph accepts in PATCH /users. Others (e.g. mail, createdDateTime) are read-only or need other calls
+    private static final Set<String> UPDATABLE_ATTRIBUTES = Set.of(
+            "accountEnabled", "ageGroup", "businessPhones", "city", "companyName", "consentProvidedForMinor",
+            "country", "department", "displayName", "employeeHireDate", "employeeId", "employeeType", "faxNumber",
+            "givenName", "jobTitle", "mailNickname", "mobilePhone", "officeLocation", "otherMails", "postalCode",
+            "preferredLanguage", "showInAddressList", "state", "streetAddress", "surname", "usageLocation",
+            "userPrincipalName", "userType"
+    );
+    // Required attributes, which can't be cleared
+    private static final Set<String> REQUIRED_ATTRIBUTES = Set.of("accountEnabled", "displayName", "mailNickname", "userPrincipalName");
+    private static final Set<String> COLLECTION_ATTRIBUTES = Set.of("businessPhones", "otherMails");
+    // What Graph returns for users without $select
+    private static final List<String> DEFAULT_ATTRIBUTES = List.of(
+            "businessPhones", "displayName", "givenName", "jobTitle", "mail", "mobilePhone", "officeLocation",
+            "preferredLanguage", "surname", "userPrincipalName"
+    );
+    private static final int HASH_BYTES = 16;
+    private final BackupSnapshotService snapshotService;
+    private final BackupRepository backupRepository;
+    private final BackupProfiles backupProfiles;
+    private final GraphClient graphClient;
+    private final TokenStore tokenStore;
+    private final TenantRegistry tenantRegistry;
+    private final GraphPageParser pageParser;
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final int maxAttempts;
+
+    public BackupDiffEngine(
+            BackupSnapshotService snapshotService,
+            BackupRepository backupRepository,
+            BackupProfiles backupProfiles,
+            GraphClient graphClient,
+            TokenStore tokenStore,
+            TenantRegistry tenantRegistry,
+            GraphPageParser pageParser,
+            ObjectMapper objectMapper,
+            @Value("${backup.max-attempts:5}") int maxAttempts
+    ) {
+        this.snapshotService = snapshotService;
+        this.backupRepository = backupRepository;
+        this.backupProfiles = backupProfiles;
+        this.graphClient = graphClient;
+        this.tokenStore = tokenStore;
+        this.tenantRegistry = tenantRegistry;
+        this.pageParser = pageParser;
+        this.objectMapper = objectMapper;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Streams the changes that turn the current state into the backup's state to the handler: the state of
+     * backup {@code againstBackupId}, or the live tenant when it is null. Deletes are reported last.
+     */
+    public DiffSummary diff(Long backupId, Long againstBackupId, ChangeHandler handler) throws IOException {
+        Backup backup = backupRepository.findById(backupId)
+                .orElseThrow(() -> new NoSuchElementException("Backup with ID " + backupId + " not found."));
+        CurrentIndex current = new CurrentIndex();
+        if (againstBackupId != null) {
+            snapshotService.materialize(againstBackupId, item -> {
+                if (isUser(item)) {
+                    current.add(item);
+                }
+            });
+        } else {
+            readLive(backup.getTenantId(), profileOf(backup), current::add);
+        }
+        logger.debug("Indexed {} current users to diff backup {} against.", current.byId.size(), backupId);
+
+        long[] counts = new long[3];
+        snapshotService.materialize(backupId, user -> {
+            if (!isUser(user)) {
+                return;
+            }
+            String id = user.path("id").asText(null);
+            String upn = user.path("userPrincipalName").asText(null);
+            IndexedUser match = current.take(id, upn);
+            if (match == null) {
+                counts[0]++;
+                handler.handle(new Change(Action.CREATE, id, upn, user));
+            } else if (!Arrays.equals(match.hash(), hash(user))) {
+                counts[1]++;
+                handler.handle(new Change(Action.UPDATE, match.id(), upn, user));
+            } else {
+                counts[2]++;
+            }
+        });
+
+        List<IndexedUser> remaining = new ArrayList<>(current.byId.values());
+        for (IndexedUser user : remaining) {
+            handler.handle(new Change(Action.DELETE, user.id(), user.userPrincipalName(), null));
+        }
+        DiffSummary summary = new DiffSummary(counts[0], counts[1], remaining.size(), counts[2]);
+        logger.info("Diff of backup {} against {}: {} to create, {} to update, {} to delete, {} unchanged.",
+                backupId, againstBackupId != null ? "backup " + againstBackupId : "the live tenant",
+                summary.created(), summary.updated(), summary.deleted(), summary.unchanged());
+        return summary;
+    }
+
+    /**
+     * The attributes an update clears when the backed up user has no value for them: the writable, optional
+     * attributes the backup's profile selects. Attributes outside the profile were never backed up, so a
+     * missing value says nothing about them.
+     */
+    public Set<String> clearableAttributes(Long backupId) {
+        Backup backup = backupRepository.findById(backupId)
+                .orElseThrow(() -> new NoSuchElementException("Backup with ID " + backupId + " not found."));
+        List<String> selected = profileOf(backup).getSelect();
+        Set<String> clearable = new HashSet<>(selected.isEmpty() ? DEFAULT_ATTRIBUTES : selected);
+        clearable.retainAll(UPDATABLE_ATTRIBUTES);
+        clearable.removeAll(REQUIRED_ATTRIBUTES);
+        return clearable;
+    }
+
+    /**
+     * The PATCH body for an update: the user's attributes that Graph lets us write, and an explicit null (or empty
+     * collection) for the clearable attributes the user has no value for, so values set since the backup are
+     * cleared. Null if there is nothing to send.
+     */
+    public ObjectNode updateBody(JsonNode user, Set<String> clearable) {
+        ObjectNode body = objectMapper.createObjectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = user.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (UPDATABLE_ATTRIBUTES.contains(field.getKey()) && !field.getValue().isNull()) {
+                body.set(field.getKey(), field.getValue());
+            }
+        }
+        for (String attribute : clearable) {
+            if (!body.has(attribute)) {
+                if (COLLECTION_ATTRIBUTES.contains(attribute)) {
+                    body.putArray(attribute);
+                } else {
+                    body.putNull(attribute);
+                }
+            }
+        }
+        return body.isEmpty() ? null : body;
+    }
+
+    byte[] hash(JsonNode user) throws IOException {
+        MessageDigest digest = newDigest();
+        try (JsonGenerator generator = jsonFactory.createGenerator(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+            writeCanonical(generator, user, true);
+        }
+        return Arrays.copyOf(digest.digest(), HASH_BYTES);
+    }
+
+    private static void writeCanonical(JsonGenerator generator, JsonNode node, boolean topLevel) throws IOException {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            node.fieldNames().forEachRemaining(name -> {
+                if (!name.startsWith("@") && !node.get(name).isNull() && !(topLevel && !UPDATABLE_ATTRIBUTES.contains(name))) {
+                    names.add(name);
+                }
+            });
+            names.sort(null);
+            generator.writeStartObject();
+            for (String name : names) {
+                generator.writeFieldName(name);
+                writeCanonical(generator, node.get(name), false);
+            }
+            generator.writeEndObject();
+        } else if (node.isArray()) {
+            generator.writeStartArray();
+            for (JsonNode element : node) {
+                writeCanonical(generator, element, false);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeTree(node);
+        }
+    }
+
+    private BackupProfiles.Profile profileOf(Backup backup) {
+        BackupProfiles.Profile profile = backup.getProfile() != null ? backupProfiles.getProfiles().get(backup.getProfile()) : null;
+        return profile != null ? profile : backupProfiles.forMode(backup.getMode());
+    }
+
+    private void readLive(String tenantId, BackupProfiles.Profile profile, ItemHandler handler) throws IOException {
+        String url = profile.usersUrl(graphClient.getBaseUrl());
+        while (url != null) {
+            url = fetchPage(tenantId, url, handler).nextLink();
+        }
+    }
+
+    // Throttled pages fail before their body is parsed, so retrying never indexes a user twice
+    private GraphPageParser.PageResult fetchPage(String tenantId, String url, ItemHandler handler) throws IOException {
+        TenantThrottle throttle = tenantRegistry.throttle(tenantId);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return throttle.call(() -> graphClient.get(url, tokenStore.getAccessToken(tenantId), body -> pageParser.parse(body, handler)));
+            } catch (GraphApiException e) {
+                if (!RestoreEngine.isThrottled(e.getStatusCode()) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                Duration retryAfter = RestoreEngine.parseRetryAfter(e.getRetryAfter());
+                logger.warn("Users page was throttled with status {}. Retrying in {} (attempt {} of {}).",
+                        e.getStatusCode(), retryAfter, attempt, maxAttempts);
+                try {
+                    Thread.sleep(retryAfter);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry a users page.");
+                }
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String normalizeUpn(String upn) {
+        return upn == null ? null : upn.toLowerCase(Locale.ROOT);
+    }
+
+    public enum Action {
+        CREATE, UPDATE, DELETE
+    }
+
+    /**
+     * One planned change. {@code userId} is the current user's id for updates and deletes. {@code user}
+     * is the user as backed up, null for deletes.
+     */
+    public record Change(Action action, String userId, String userPrincipalName, JsonNode user) {
+    }
+
+    // Other resources in the backup are restored by RestoreEngine after the users
+    private static boolean isUser(JsonNode item) {
+        return ResourceCollector.USER.equals(ResourceCollector.itemType(item));
+    }
+
+    public record DiffSummary(long created, long updated, long deleted, long unchanged) {
+    }
+
+    @FunctionalInterface
+    public interface ChangeHandler {
+        void handle(Change change) throws IOException;
+    }
+
+    private record IndexedUser(String id, String userPrincipalName, byte[] hash) {
+    }
+
+    private class CurrentIndex {
+        private final Map<String, IndexedUser> byId = new HashMap<>();
+        private final Map<String, String> idsByUpn = new HashMap<>();
+
+        void add(JsonNode user) throws IOException {
+            String id = user.path("id").asText(null);
+            if (id == null) {
+                return;
+            }
+            String upn = user.path("userPrincipalName").asText(null);
+            byId.put(id, new IndexedUser(id, upn, hash(user)));
+            if (upn != null) {
+                idsByUpn.put(normalizeUpn(upn), id);
+            }
+        }
+
+        // Removes and returns the current user matching a backed up user, so the rest can be deleted
+        IndexedUser take(String id, String upn) {
+            IndexedUser match = id != null ? byId.remove(id) : null;
+            if (match == null && upn != null) {
+                String matchedId = idsByUpn.get(normalizeUpn(upn));
+                match = matchedId != null ? byId.remove(matchedId) : null;
+            }
+            if (match != null && match.userPrincipalName() != null) {
+                idsByUpn.remove(normalizeUpn(match.userPrincipalName()));
+            }
+            return match;
+        }
+    }
+}
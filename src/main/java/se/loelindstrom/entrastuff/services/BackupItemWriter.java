@@ -0,0 +1,79 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes backups in the jsonb format: one backup_items row per item. Items are buffered and flushed
+ * as JDBC batch inserts, so at most one batch is held in memory. Items are serialized outside the
+ * lock and only sequencing and flushing are synchronized.
+ */
+public class BackupItemWriter extends BackupWriter {
+    private static final Logger logger = LoggerFactory.getLogger(BackupItemWriter.class);
+    private static final String INSERT_SQL =
+            "INSERT INTO backup_items (backup_id, seq, item_type, user_id, removed, item_data) VALUES (?, ?, ?, ?, ?, CAST(? AS jsonb))";
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final List<Object[]> pending;
+    // UTF-8 size of the pending items' JSON
+    private long pendingBytes;
+
+    BackupItemWriter(
+            Backup backup,
+            BackupRepository backupRepository,
+            JdbcTemplate jdbcTemplate,
+            ObjectMapper objectMapper,
+            int batchSize
+    ) {
+        super(backup, backupRepository);
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void write(JsonNode item) throws JsonProcessingException {
+        String itemType = item.hasNonNull(ResourceCollector.ITEM_TYPE_FIELD) ? item.get(ResourceCollector.ITEM_TYPE_FIELD).asText() : null;
+        String userId = item.hasNonNull("id") ? item.get("id").asText() : null;
+        boolean removed = item.has("@removed");
+        byte[] json = objectMapper.writeValueAsBytes(item);
+        String itemData = new String(json, StandardCharsets.UTF_8);
+        synchronized (this) {
+            pending.add(new Object[]{backup.getId(), count(item), itemType, userId, removed, itemData});
+            pendingBytes += json.length;
+            if (pending.size() >= batchSize) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    protected void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, pending);
+        storedBytes += pendingBytes;
+        pendingBytes = 0;
+        logger.trace("Flushed {} items to backup {}.", pending.size(), backup.getId());
+        pending.clear();
+    }
+
+    @Override
+    protected void discard() {
+        pending.clear();
+        pendingBytes = 0;
+    }
+}
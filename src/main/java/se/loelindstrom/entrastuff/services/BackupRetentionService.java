@@ -0,0 +1,100 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupChunkRepository;
+import se.loelindstrom.entrastuff.repositories.BackupItemRepository;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+import se.loelindstrom.entrastuff.repositories.DeltaTokenRepository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deletes backups older than a cutoff with set-based DELETEs of their items, chunks and headers, a batch of
+ * backups per transaction. Backups that a kept incremental backup is materialized from are never deleted, nor is
+ * the newest completed backup or the chain the stored deltaLink continues, so a restore point always remains.
+ */
+@Service
+public class BackupRetentionService {
+    private static final Logger logger = LoggerFactory.getLogger(BackupRetentionService.class);
+    private static final int DELETE_BATCH_SIZE = 100;
+    private final BackupRepository backupRepository;
+    private final BackupItemRepository backupItemRepository;
+    private final BackupChunkRepository backupChunkRepository;
+    private final DeltaTokenRepository deltaTokenRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    public BackupRetentionService(
+            BackupRepository backupRepository,
+            BackupItemRepository backupItemRepository,
+            BackupChunkRepository backupChunkRepository,
+            DeltaTokenRepository deltaTokenRepository,
+            TransactionTemplate transactionTemplate
+    ) {
+        this.backupRepository = backupRepository;
+        this.backupItemRepository = backupItemRepository;
+        this.backupChunkRepository = backupChunkRepository;
+        this.deltaTokenRepository = deltaTokenRepository;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * @return the number of deleted backups
+     */
+    public int prune(String tenantId, String dataType, LocalDateTime cutoff) {
+        List<Backup> backups = backupRepository.findByTenantIdAndDataTypeOrderByIdAsc(tenantId, dataType);
+        Map<Long, Backup> byId = new HashMap<>();
+        backups.forEach(backup -> byId.put(backup.getId(), backup));
+
+        Set<Long> kept = new HashSet<>();
+        Backup newestCompleted = null;
+        for (Backup backup : backups) {
+            if (!backup.getCreatedAt().isBefore(cutoff) || "running".equals(backup.getStatus())) {
+                keepChain(backup, byId, kept);
+            }
+            if ("completed".equals(backup.getStatus())) {
+                newestCompleted = backup;
+            }
+        }
+        if (newestCompleted != null) {
+            keepChain(newestCompleted, byId, kept);
+        }
+        deltaTokenRepository.findByTenantIdAndDataType(tenantId, dataType)
+                .map(deltaToken -> byId.get(deltaToken.getBackupId()))
+                .ifPresent(backup -> keepChain(backup, byId, kept));
+
+        List<Long> expired = backups.stream()
+                .map(Backup::getId)
+                .filter(id -> !kept.contains(id))
+                .toList();
+        for (int from = 0; from < expired.size(); from += DELETE_BATCH_SIZE) {
+            List<Long> batch = expired.subList(from, Math.min(from + DELETE_BATCH_SIZE, expired.size()));
+            transactionTemplate.executeWithoutResult(status -> {
+                int items = backupItemRepository.deleteByBackupIds(batch);
+                int chunks = backupChunkRepository.deleteByBackupIds(batch);
+                backupRepository.deleteAllByIdInBatch(batch);
+                logger.debug("Deleted {} backups with {} items and {} chunks.", batch.size(), items, chunks);
+            });
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Pruned {} {} backups of tenant {} created before {}.", expired.size(), dataType, tenantId, cutoff);
+        }
+        return expired.size();
+    }
+
+    // Keeps a backup and every backup up its parent chain
+    private static void keepChain(Backup backup, Map<Long, Backup> byId, Set<Long> kept) {
+        while (backup != null && kept.add(backup.getId())) {
+            backup = backup.getParentBackupId() == null ? null : byId.get(backup.getParentBackupId());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package se.loelindstrom.entrastuff.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.BackupSchedule;
+import se.loelindstrom.entrastuff.dtos.JobDTO;
+import se.loelindstrom.entrastuff.entities.Job;
+import se.loelindstrom.entrastuff.repositories.SchedulerLeaseRepository;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the backup policies from {@link BackupSchedule} on every instance, but each fire time of a policy is
+ * claimed through the scheduler_leases table, so exactly one instance submits the backup job. The winner renews
+ * the lease until the job finishes, which also keeps the next fire time from starting a second backup meanwhile,
+ * then releases it and applies the policy's retention. Fire times missed while no instance ran are skipped.
+ */
+@Service
+public class BackupScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(BackupScheduler.class);
+    private static final long POLL_INTERVAL_SECONDS = 15;
+    private static final Set<String> ACTIVE_JOB_STATUSES = Set.of("queued", "running");
+    private final BackupSchedule schedule;
+    private final SchedulerLeaseRepository leaseRepository;
+    private final JobService jobService;
+    private final BackupRetentionService retentionService;
+    private final TenantRegistry tenantRegistry;
+    private final String owner;
+    private final List<PolicyRun> policyRuns = new ArrayList<>();
+    private ScheduledExecutorService poller;
+
+    public BackupScheduler(
+            BackupSchedule schedule,
+            SchedulerLeaseRepository leaseRepository,
+            JobService jobService,
+            BackupRetentionService retentionService,
+            TenantRegistry tenantRegistry
+    ) {
+        this.schedule = schedule;
+        this.leaseRepository = leaseRepository;
+        this.jobService = jobService;
+        this.retentionService = retentionService;
+        this.tenantRegistry = tenantRegistry;
+        this.owner = hostName() + "/" + UUID.randomUUID();
+
+        for (BackupSchedule.Policy policy : schedule.getPolicies().values()) {
+            // Policies may name tenants registered later, so they are only checked when they fire
+            if (policy.getTenantId() == null) {
+                policy.setTenantId(tenantRegistry.getDefaultTenantId());
+            }
+            policyRuns.add(new PolicyRun(policy));
+        }
+    }
+
+    // Starts after JobService has recovered the jobs of the previous run
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!schedule.isEnabled() || policyRuns.isEmpty()) {
+            logger.info("Scheduled backups are disabled.");
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (PolicyRun run : policyRuns) {
+            leaseRepository.createIfAbsent(leaseName(run.policy));
+            run.scheduleAfter(now);
+            logger.info("Backup policy {}: next full backup at {}, next incremental backup at {}.",
+                    run.policy.getName(), run.nextFull, run.nextIncremental);
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("backup-scheduler").daemon().factory());
+        poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (poller == null) {
+            return;
+        }
+        poller.shutdownNow();
+        // A running job is interrupted on shutdown, so the next fire time may run on another instance
+        for (PolicyRun run : policyRuns) {
+            if (run.activeJobId != null) {
+                leaseRepository.release(leaseName(run.policy), owner);
+            }
+        }
+    }
+
+    private void poll() {
+        LocalDateTime now = LocalDateTime.now();
+        for (PolicyRun run : policyRuns) {
+            try {
+                if (run.activeJobId != null) {
+                    checkActiveJob(run);
+                }
+                if (run.isDue(now)) {
+                    fire(run, now);
+                }
+            } catch (Exception e) {
+                logger.error("Scheduling backup policy {} failed: {}", run.policy.getName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void fire(PolicyRun run, LocalDateTime now) {
+        boolean full = run.nextFull != null && !run.nextFull.isAfter(now);
+        LocalDateTime fireTime = full ? run.nextFull : run.nextIncremental;
+        String mode = full ? "full" : "incremental";
+        run.scheduleAfter(now);
+
+        if (run.activeJobId != null) {
+            logger.warn("Skipping {} backup of policy {} due at {}: job {} of the previous run is still active.",
+                    mode, run.policy.getName(), fireTime, run.activeJobId);
+            return;
+        }
+        if (leaseRepository.claim(leaseName(run.policy), owner, fireTime, schedule.getLeaseSeconds()) == 0) {
+            logger.debug("{} backup of policy {} due at {} is run by another instance.", mode, run.policy.getName(), fireTime);
+            return;
+        }
+
+        try {
+            Job job = jobService.submitBackup(tenantRegistry.resolve(run.policy.getTenantId()), mode);
+            run.activeJobId = job.getId();
+            logger.info("Started scheduled {} backup of policy {} due at {} as job {}.", mode, run.policy.getName(), fireTime, job.getId());
+        } catch (RejectedExecutionException e) {
+            logger.error("Could not start scheduled {} backup of policy {}: the job queue is full.", mode, run.policy.getName());
+            leaseRepository.release(leaseName(run.policy), owner);
+        } catch (IllegalArgumentException e) {
+            logger.error("Could not start scheduled {} backup of policy {}: {}", mode, run.policy.getName(), e.getMessage());
+            leaseRepository.release(leaseName(run.policy), owner);
+        }
+    }
+
+    private void checkActiveJob(PolicyRun run) {
+        String status = jobService.findJob(run.activeJobId).map(JobDTO::getStatus).orElse("missing");
+        if (ACTIVE_JOB_STATUSES.contains(status)) {
+            if (leaseRepository.renew(leaseName(run.policy), owner, schedule.getLeaseSeconds()) == 0) {
+                logger.warn("Lost the lease on backup policy {} while job {} runs.", run.policy.getName(), run.activeJobId);
+            }
+            return;
+        }
+
+        logger.info("Scheduled backup job {} of policy {} finished with status {}.", run.activeJobId, run.policy.getName(), status);
+        run.activeJobId = null;
+        try {
+            if ("completed".equals(status) && run.policy.getRetentionDays() > 0) {
+                retentionService.prune(run.policy.getTenantId(), UserBackupService.DATA_TYPE,
+                        LocalDateTime.now().minusDays(run.policy.getRetentionDays()));
+            }
+        } finally {
+            leaseRepository.release(leaseName(run.policy), owner);
+        }
+    }
+
+    private static String leaseName(BackupSchedule.Policy policy) {
+        return "backup-policy:" + policy.getName();
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown-host";
+        }
+    }
+
+    /**
+     * Next fire times of a policy and the job started for it; only touched by the poller thread.
+     */
+    private static final class PolicyRun {
+        private final BackupSchedule.Policy policy;
+        private final CronExpression fullSchedule;
+        private final CronExpression incrementalSchedule;
+        private LocalDateTime nextFull;
+        private LocalDateTime nextIncremental;
+        private Long activeJobId;
+
+        private PolicyRun(BackupSchedule.Policy policy) {
+            this.policy = policy;
+            this.fullSchedule = policy.fullSchedule();
+            this.incrementalSchedule = policy.incrementalSchedule();
+        }
+
+        private void scheduleAfter(LocalDateTime time) {
+            nextFull = fullSchedule == null ? null : fullSchedule.next(time);
+            nextIncremental = incrementalSchedule == null ? null : incrementalSchedule.next(time);
+        }
+
+        private boolean isDue(LocalDateTime now) {
+            return (nextFull != null && !nextFull.isAfter(now)) || (nextIncremental != null && !nextIncremental.isAfter(now));
+        }
+    }
+}
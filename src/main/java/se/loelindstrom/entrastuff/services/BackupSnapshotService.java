@@ -0,0 +1,97 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Materializes the point-in-time state of a backup. For a full backup that is just its items.
+ * For an incremental backup the chain of deltas back to the base full backup is folded into a
+ * change map (bounded by the number of changes), and the base is then streamed with the changes applied.
+ */
+@Service
+public class BackupSnapshotService {
+    private static final Logger logger = LoggerFactory.getLogger(BackupSnapshotService.class);
+    private final BackupRepository backupRepository;
+    private final BackupStore backupStore;
+
+    public BackupSnapshotService(BackupRepository backupRepository, BackupStore backupStore) {
+        this.backupRepository = backupRepository;
+        this.backupStore = backupStore;
+    }
+
+    public void materialize(Long backupId, ItemHandler handler) throws IOException {
+        List<Backup> chain = resolveChain(backupId);
+        Backup base = chain.getFirst();
+        if (chain.size() == 1) {
+            backupStore.readItems(base.getId(), handler);
+            return;
+        }
+
+        Map<String, ObjectNode> changes = new LinkedHashMap<>();
+        for (Backup delta : chain.subList(1, chain.size())) {
+            backupStore.readItems(delta.getId(), item -> applyChange(changes, item));
+        }
+        logger.debug("Materializing backup {} from base {} with {} deltas and {} changed users.",
+                backupId, base.getId(), chain.size() - 1, changes.size());
+
+        backupStore.readItems(base.getId(), item -> {
+            String id = item.path("id").asText(null);
+            ObjectNode change = id != null ? changes.remove(id) : null;
+            if (change == null) {
+                handler.handle(item);
+            } else if (!change.has("@removed")) {
+                ObjectNode merged = item.deepCopy();
+                merged.setAll(change);
+                handler.handle(merged);
+            }
+        });
+
+        // Whatever is left was created after the base backup
+        for (ObjectNode change : changes.values()) {
+            if (!change.has("@removed")) {
+                handler.handle(change);
+            }
+        }
+    }
+
+    /**
+     * Returns the backups from the base full backup up to and including the given backup.
+     */
+    public List<Backup> resolveChain(Long backupId) {
+        List<Backup> chain = new ArrayList<>();
+        Long currentId = backupId;
+        while (currentId != null) {
+            Long id = currentId;
+            Backup backup = backupRepository.findById(id)
+                    .orElseThrow(() -> new NoSuchElementException("Backup with ID " + id + " not found."));
+            chain.addFirst(backup);
+            currentId = "incremental".equals(backup.getMode()) ? backup.getParentBackupId() : null;
+        }
+        return chain;
+    }
+
+    private void applyChange(Map<String, ObjectNode> changes, JsonNode item) {
+        String id = item.path("id").asText(null);
+        if (id == null || !item.isObject()) {
+            return;
+        }
+        ObjectNode existing = changes.get(id);
+        if (existing == null || existing.has("@removed") || item.has("@removed")) {
+            changes.put(id, ((ObjectNode) item).deepCopy());
+        } else {
+            existing.setAll((ObjectNode) item);
+        }
+    }
+}
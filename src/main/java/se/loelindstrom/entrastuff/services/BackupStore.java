@@ -0,0 +1,123 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.entities.BackupChunk;
+import se.loelindstrom.entrastuff.entities.BackupItem;
+import se.loelindstrom.entrastuff.repositories.BackupChunkRepository;
+import se.loelindstrom.entrastuff.repositories.BackupItemRepository;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Creates backup header rows, hands out writers that append the items incrementally,
+ * and reads items back page by page.
+ * <p>
+ * New backups use the format set in backup.format: "jsonb" stores one backup_items row per item,
+ * "compact" stores encoded chunks of backup.chunk-size items in backup_chunks. The format is recorded
+ * on the backup, so backups of both formats can be read back side by side.
+ */
+@Service
+public class BackupStore {
+    private static final int READ_PAGE_SIZE = 500;
+    private final BackupRepository backupRepository;
+    private final BackupItemRepository backupItemRepository;
+    private final BackupChunkRepository backupChunkRepository;
+    private final BackupChunkCodec chunkCodec;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final int writeBatchSize;
+    private final String format;
+    private final int chunkSize;
+
+    public BackupStore(
+            BackupRepository backupRepository,
+            BackupItemRepository backupItemRepository,
+            BackupChunkRepository backupChunkRepository,
+            BackupChunkCodec chunkCodec,
+            JdbcTemplate jdbcTemplate,
+            ObjectMapper objectMapper,
+            @Value("${backup.write-batch-size:500}") int writeBatchSize,
+            @Value("${backup.format:jsonb}") String format,
+            @Value("${backup.chunk-size:1000}") int chunkSize
+    ) {
+        if (!format.equals("jsonb") && !format.equals("compact")) {
+            throw new IllegalStateException("Unknown backup format " + format + ": expected jsonb or compact.");
+        }
+        this.backupRepository = backupRepository;
+        this.backupItemRepository = backupItemRepository;
+        this.backupChunkRepository = backupChunkRepository;
+        this.chunkCodec = chunkCodec;
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.writeBatchSize = writeBatchSize;
+        this.format = format;
+        this.chunkSize = chunkSize;
+    }
+
+    public BackupWriter begin(String tenantId, String dataType, String backupType, String mode, Long parentBackupId, String profile) {
+        Backup backup = new Backup();
+        backup.setTenantId(tenantId);
+        backup.setDataType(dataType);
+        backup.setBackupType(backupType);
+        backup.setCreatedAt(LocalDateTime.now());
+        backup.setStatus("running");
+        backup.setUserCount(0);
+        backup.setItemCount(0);
+        backup.setMode(mode);
+        backup.setParentBackupId(parentBackupId);
+        backup.setProfile(profile);
+        backup.setFormat(format);
+        backup = backupRepository.save(backup);
+
+        if (format.equals("compact")) {
+            return new BackupChunkWriter(backup, backupRepository, jdbcTemplate, chunkCodec, chunkSize);
+        }
+        return new BackupItemWriter(backup, backupRepository, jdbcTemplate, objectMapper, writeBatchSize);
+    }
+
+    /**
+     * Hands every stored item of a backup to the handler in write order, reading keyset pages
+     * (or single chunks of compact backups) so only one page is held in memory at a time.
+     */
+    public void readItems(Long backupId, ItemHandler handler) throws IOException {
+        String backupFormat = backupRepository.findById(backupId)
+                .map(Backup::getFormat)
+                .orElseThrow(() -> new IllegalArgumentException("Backup " + backupId + " does not exist."));
+        if ("compact".equals(backupFormat)) {
+            readChunks(backupId, handler);
+        } else {
+            readItemRows(backupId, handler);
+        }
+    }
+
+    private void readChunks(Long backupId, ItemHandler handler) throws IOException {
+        int afterSeq = -1;
+        Optional<BackupChunk> chunk;
+        while ((chunk = backupChunkRepository.findFirstByBackupIdAndSeqGreaterThanOrderBySeqAsc(backupId, afterSeq)).isPresent()) {
+            chunkCodec.decode(chunk.get().getData(), handler);
+            afterSeq = chunk.get().getSeq();
+        }
+    }
+
+    private void readItemRows(Long backupId, ItemHandler handler) throws IOException {
+        long afterSeq = -1;
+        List<BackupItem> page;
+        do {
+            page = backupItemRepository.findByBackupIdAndSeqGreaterThanOrderBySeqAsc(
+                    backupId, afterSeq, PageRequest.of(0, READ_PAGE_SIZE));
+            for (BackupItem item : page) {
+                handler.handle(item.getItemData());
+                afterSeq = item.getSeq();
+            }
+        } while (page.size() == READ_PAGE_SIZE);
+    }
+}
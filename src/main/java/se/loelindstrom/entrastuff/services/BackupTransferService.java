@@ -0,0 +1,109 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.BackupProfiles;
+import se.loelindstrom.entrastuff.dtos.BackupSummaryDTO;
+import se.loelindstrom.entrastuff.entities.Backup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves backups in and out as NDJSON, one user per line, gzip compressed on export. Both directions stream:
+ * exports read the backup page by page and imports write it in batches, so memory does not grow with the file.
+ * <p>
+ * Exports hold the backup's point-in-time snapshot, so an incremental backup exports as its full user list, and
+ * every import becomes a full backup of backup type "import".
+ */
+@Service
+public class BackupTransferService {
+    private static final Logger logger = LoggerFactory.getLogger(BackupTransferService.class);
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private final BackupSnapshotService snapshotService;
+    private final BackupStore backupStore;
+    private final BackupProfiles backupProfiles;
+    private final ObjectMapper objectMapper;
+
+    public BackupTransferService(
+            BackupSnapshotService snapshotService,
+            BackupStore backupStore,
+            BackupProfiles backupProfiles,
+            ObjectMapper objectMapper
+    ) {
+        this.snapshotService = snapshotService;
+        this.backupStore = backupStore;
+        this.backupProfiles = backupProfiles;
+        this.objectMapper = objectMapper;
+    }
+
+    public void export(Long backupId, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        long[] count = new long[1];
+        GZIPOutputStream gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        // Closing the generator finishes the gzip trailer
+        try (JsonGenerator generator = objectMapper.createGenerator(gzip)) {
+            generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+            snapshotService.materialize(backupId, user -> {
+                generator.writeTree(user);
+                count[0]++;
+            });
+            generator.writeRaw('\n');
+        }
+        logger.info("Exported {} users of backup {} in {} ms.", count[0], backupId, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Imports an NDJSON file, gzip compressed or not, as a new full backup. Every line must be an object
+     * with an id: a user, or a resource tagged with its @itemType as exported. The backup is marked failed if the file is invalid.
+     */
+    public BackupSummaryDTO importBackup(InputStream in, String tenantId, String profile) throws IOException {
+        if (profile != null && !backupProfiles.getProfiles().containsKey(profile)) {
+            throw new IllegalArgumentException("Unknown backup profile " + profile + ".");
+        }
+        long start = System.nanoTime();
+        BackupWriter writer = backupStore.begin(tenantId, UserBackupService.DATA_TYPE, "import", "full", null, profile);
+        try (JsonParser parser = objectMapper.createParser(decompress(in))) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("Line " + parser.currentLocation().getLineNr() + " is not a JSON object.");
+                }
+                JsonNode user = parser.readValueAsTree();
+                if (!user.hasNonNull("id")) {
+                    throw new IllegalArgumentException("The user on line " + parser.currentLocation().getLineNr() + " has no id.");
+                }
+                writer.write(user);
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.fail();
+            throw e;
+        }
+
+        Backup backup = writer.complete();
+        long durationMs = (System.nanoTime() - start) / 1_000_000;
+        logger.info("Imported {} users into backup {} in {} ms.", backup.getUserCount(), backup.getId(), durationMs);
+        return new BackupSummaryDTO(backup.getId(), tenantId, backup.getMode(), null, profile, backup.getUserCount(), 0, durationMs);
+    }
+
+    // Gzip files start with the bytes 1f 8b
+    private static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, GZIP_BUFFER_SIZE);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        return first == 0x1f && second == 0x8b ? new GZIPInputStream(buffered, GZIP_BUFFER_SIZE) : buffered;
+    }
+}
@@ -0,0 +1,86 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Appends items to one backup in the backup's storage format and finally marks the backup header
+ * completed or failed. Subclasses buffer items and write them in batches; buffering and flushing are
+ * synchronized, so segmented backups can share one writer between threads.
+ */
+public abstract class BackupWriter {
+    private static final Logger logger = LoggerFactory.getLogger(BackupWriter.class);
+    protected final Backup backup;
+    private final BackupRepository backupRepository;
+    protected long nextSeq;
+    protected long userCount;
+    protected long storedBytes;
+
+    protected BackupWriter(Backup backup, BackupRepository backupRepository) {
+        this.backup = backup;
+        this.backupRepository = backupRepository;
+    }
+
+    public Long getBackupId() {
+        return backup.getId();
+    }
+
+    public Backup getBackup() {
+        return backup;
+    }
+
+    public synchronized long getWrittenCount() {
+        return nextSeq;
+    }
+
+    public synchronized long getUserCount() {
+        return userCount;
+    }
+
+    public abstract void write(JsonNode item) throws IOException;
+
+    public synchronized Backup complete() throws IOException {
+        flush();
+        backup.setStatus("completed");
+        summarize();
+        logger.debug("Completed {} backup {} with {} items.", backup.getFormat(), backup.getId(), nextSeq);
+        return backupRepository.save(backup);
+    }
+
+    public synchronized void fail() {
+        discard();
+        backup.setStatus("failed");
+        summarize();
+        backupRepository.save(backup);
+    }
+
+    private void summarize() {
+        LocalDateTime completedAt = LocalDateTime.now();
+        backup.setUserCount(userCount);
+        backup.setItemCount(nextSeq);
+        backup.setByteSize(storedBytes);
+        backup.setCompletedAt(completedAt);
+        backup.setDurationMs(Duration.between(backup.getCreatedAt(), completedAt).toMillis());
+    }
+
+    // Counts an item taking the next seq; called with the writer's lock held
+    protected long count(JsonNode item) {
+        if (ResourceCollector.USER.equals(ResourceCollector.itemType(item))) {
+            userCount++;
+        }
+        return nextSeq++;
+    }
+
+    // Writes buffered items; called with the writer's lock held
+    protected abstract void flush() throws IOException;
+
+    // Drops buffered items; called with the writer's lock held
+    protected abstract void discard();
+}
@@ -0,0 +1,22 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One sub-request of a Graph $batch call, e.g. POST /users with a user body. {@code onCreated}, if set,
+ * receives the response body of a successful sub-request, e.g. to record the id of a recreated object.
+ */
+public record BatchOperation(String method, String url, JsonNode body, CreatedHandler onCreated) {
+    public BatchOperation(String method, String url, JsonNode body) {
+        this(method, url, body, null);
+    }
+
+    public BatchOperation onCreated(CreatedHandler handler) {
+        return new BatchOperation(method, url, body, handler);
+    }
+
+    @FunctionalInterface
+    public interface CreatedHandler {
+        void created(JsonNode response);
+    }
+}
@@ -0,0 +1,145 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs tasks on a fixed number of threads, taking turns between tenants. A free thread takes the next task of
+ * the first tenant in turn order that has queued tasks and runs fewer than its own limit, and that tenant moves
+ * to the back. A tenant with a long queue thus delays the others by at most one task per turn, and never holds
+ * more threads than its limit.
+ */
+public class FairShareExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(FairShareExecutor.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Tenants with queued tasks, in turn order
+    private final LinkedHashMap<String, ArrayDeque<Runnable>> queues = new LinkedHashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final ToIntFunction<String> tenantLimit;
+    private final int capacity;
+    private final List<Thread> workers = new ArrayList<>();
+    private int queued;
+    private boolean shutdown;
+
+    public FairShareExecutor(int threads, int capacity, ToIntFunction<String> tenantLimit, ThreadFactory threadFactory) {
+        this.capacity = capacity;
+        this.tenantLimit = tenantLimit;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a task of a tenant. Throws {@link RejectedExecutionException} if the queue is full or the executor is shut down.
+     */
+    public void execute(String tenantId, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown || queued >= capacity) {
+                throw new RejectedExecutionException(shutdown ? "The executor is shut down." : "The queue is full.");
+            }
+            queues.computeIfAbsent(tenantId, id -> new ArrayDeque<>()).add(task);
+            queued++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops queued tasks and interrupts running ones.
+     */
+    public void shutdownNow() {
+        lock.lock();
+        try {
+            shutdown = true;
+            queues.clear();
+            queued = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work() {
+        while (true) {
+            Turn turn;
+            try {
+                turn = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (turn == null) {
+                return;
+            }
+            try {
+                turn.task().run();
+            } catch (RuntimeException e) {
+                logger.error("Task of tenant {} failed: {}", turn.tenantId(), e.getMessage(), e);
+            } finally {
+                finished(turn.tenantId());
+            }
+        }
+    }
+
+    // Blocks until some tenant below its limit has a queued task; null once shut down
+    private Turn take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!shutdown) {
+                Iterator<Map.Entry<String, ArrayDeque<Runnable>>> entries = queues.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, ArrayDeque<Runnable>> entry = entries.next();
+                    String tenantId = entry.getKey();
+                    if (running.getOrDefault(tenantId, 0) >= tenantLimit.applyAsInt(tenantId)) {
+                        continue;
+                    }
+                    ArrayDeque<Runnable> queue = entry.getValue();
+                    Runnable task = queue.poll();
+                    entries.remove();
+                    if (!queue.isEmpty()) {
+                        // Re-inserting moves the tenant to the back of the turn order
+                        queues.put(tenantId, queue);
+                    }
+                    queued--;
+                    running.merge(tenantId, 1, Integer::sum);
+                    return new Turn(tenantId, task);
+                }
+                changed.await();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished(String tenantId) {
+        lock.lock();
+        try {
+            running.computeIfPresent(tenantId, (id, count) -> count > 1 ? count - 1 : null);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Turn(String tenantId, Runnable task) {
+    }
+}
@@ -0,0 +1,99 @@
+package se.loelindstrom.entrastuff.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Walks the nextLink chain of a Graph collection for the {@link ResourceCollector}s, stream-parsing every page.
+ * Pages go through the tenant's {@link TenantThrottle} and throttled pages are retried after their Retry-After;
+ * they fail before their body is parsed, so no items are handed over twice.
+ */
+@Component
+public class GraphCollectionReader {
+    private static final Logger logger = LoggerFactory.getLogger(GraphCollectionReader.class);
+    private final GraphClient graphClient;
+    private final TokenStore tokenStore;
+    private final TenantRegistry tenantRegistry;
+    private final GraphPageParser pageParser;
+    private final MeterRegistry meterRegistry;
+    private final int maxAttempts;
+
+    public GraphCollectionReader(
+            GraphClient graphClient,
+            TokenStore tokenStore,
+            TenantRegistry tenantRegistry,
+            GraphPageParser pageParser,
+            MeterRegistry meterRegistry,
+            @Value("${backup.max-attempts:5}") int maxAttempts
+    ) {
+        this.graphClient = graphClient;
+        this.tokenStore = tokenStore;
+        this.tenantRegistry = tenantRegistry;
+        this.pageParser = pageParser;
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public String getBaseUrl() {
+        return graphClient.getBaseUrl();
+    }
+
+    /**
+     * Hands every item of the collection to the handler and returns the number of pages read.
+     */
+    public int readAll(String tenantId, String url, ItemHandler handler) throws IOException {
+        TenantThrottle throttle = tenantRegistry.throttle(tenantId);
+        int pageCount = 0;
+        String next = url;
+        while (next != null) {
+            GraphPageParser.PageResult page = fetchPage(tenantId, throttle, next, Map.of(), "backup", handler);
+            pageCount++;
+            next = page.nextLink();
+        }
+        return pageCount;
+    }
+
+    /**
+     * Hands the items of one page to the handler and returns its nextLink and deltaLink, for callers that act on
+     * each page before fetching the next. The operation tags the throttle wait metric.
+     */
+    public GraphPageParser.PageResult readPage(String tenantId, String url, Map<String, String> headers, String operation,
+                                               ItemHandler handler) throws IOException {
+        return fetchPage(tenantId, tenantRegistry.throttle(tenantId), url, headers, operation, handler);
+    }
+
+    private GraphPageParser.PageResult fetchPage(String tenantId, TenantThrottle throttle, String url, Map<String, String> headers,
+                                                 String operation, ItemHandler handler) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return throttle.call(() -> graphClient.get(url, tokenStore.getAccessToken(tenantId), headers,
+                        body -> pageParser.parse(body, handler)));
+            } catch (GraphApiException e) {
+                if (!RestoreEngine.isThrottled(e.getStatusCode()) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                Duration retryAfter = RestoreEngine.parseRetryAfter(e.getRetryAfter());
+                logger.warn("Page of {} was throttled with status {}. Retrying in {} (attempt {} of {}).",
+                        url, e.getStatusCode(), retryAfter, attempt, maxAttempts);
+                meterRegistry.timer("graph.throttle.wait", "operation", operation).record(retryAfter);
+                try {
+                    Thread.sleep(retryAfter);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry a Graph page.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses one Graph collection page (e.g. from /v1.0/users) with Jackson's streaming parser.
+ * Items in "value" are handed over one at a time, so only a single item is held as a tree at once.
+ */
+@Component
+public class GraphPageParser {
+    private final ObjectMapper objectMapper;
+
+    public GraphPageParser(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public PageResult parse(InputStream body, ItemHandler handler) throws IOException {
+        int itemCount = 0;
+        String nextLink = null;
+        String deltaLink = null;
+
+        try (JsonParser parser = objectMapper.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in Graph response.");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "value" -> {
+                        if (token != JsonToken.START_ARRAY) {
+                            parser.skipChildren();
+                            break;
+                        }
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            JsonNode item = objectMapper.readTree(parser);
+                            handler.handle(item);
+                            itemCount++;
+                        }
+                    }
+                    case "@odata.nextLink" -> nextLink = parser.getValueAsString();
+                    case "@odata.deltaLink" -> deltaLink = parser.getValueAsString();
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        return new PageResult(itemCount, nextLink, deltaLink);
+    }
+
+    public record PageResult(int itemCount, String nextLink, String deltaLink) {
+    }
+}
@@ -0,0 +1,52 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backs up groups. Recreated groups get the settings Graph accepts in POST /groups; members are restored
+ * by {@link GroupMemberCollector}.
+ */
+@Component
+public class GroupCollector implements ResourceCollector {
+    public static final String ITEM_TYPE = "group";
+    private static final List<String> CREATE_ATTRIBUTES = List.of(
+            "displayName", "description", "mailNickname", "mailEnabled", "securityEnabled", "groupTypes",
+            "visibility", "membershipRule", "membershipRuleProcessingState", "isAssignableToRole"
+    );
+    private final GraphCollectionReader reader;
+
+    public GroupCollector(GraphCollectionReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public String itemType() {
+        return ITEM_TYPE;
+    }
+
+    @Override
+    public int restoreOrder() {
+        return 10;
+    }
+
+    @Override
+    public void collect(String tenantId, ItemHandler handler) throws IOException {
+        reader.readAll(tenantId, reader.getBaseUrl() + "/groups?$top=999&$select=id," + String.join(",", CREATE_ATTRIBUTES), handler);
+    }
+
+    @Override
+    public BatchOperation restoreOperation(JsonNode item, RestoreIdMap ids) {
+        if (!item.hasNonNull("displayName") || !item.hasNonNull("mailNickname")) {
+            return null;
+        }
+        ObjectNode body = ResourceCollector.copyAttributes(item, CREATE_ATTRIBUTES);
+        String id = item.path("id").asText();
+        return new BatchOperation("POST", "/groups", body)
+                .onCreated(created -> ids.put(id, created.path("id").asText(null)));
+    }
+}
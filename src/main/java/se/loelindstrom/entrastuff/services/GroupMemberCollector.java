@@ -0,0 +1,111 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Backs up direct group memberships, one item per group and member. Listing the members of every group one by one
+ * would cost a request chain per group, so groups are read with their members expanded. Graph expands at most 20
+ * members, so only groups with 20 or more get their member list paged separately, up to
+ * backup.resource-parallelism at once. Dynamic groups are skipped, as their members follow from the rule.
+ * <p>
+ * Restored memberships refer to the recreated group and member if those were recreated in the same restore.
+ */
+@Component
+public class GroupMemberCollector implements ResourceCollector {
+    public static final String ITEM_TYPE = "groupMember";
+    private static final int MAX_EXPANDED_MEMBERS = 20;
+    private final GraphCollectionReader reader;
+    private final int parallelism;
+
+    public GroupMemberCollector(GraphCollectionReader reader, @Value("${backup.resource-parallelism:4}") int parallelism) {
+        this.reader = reader;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public String itemType() {
+        return ITEM_TYPE;
+    }
+
+    @Override
+    public int restoreOrder() {
+        return 40;
+    }
+
+    @Override
+    public void collect(String tenantId, ItemHandler handler) throws IOException {
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<Integer>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            String groupsUrl = reader.getBaseUrl() + "/groups?$top=100&$select=id,groupTypes&$expand=members($select=id)";
+            reader.readAll(tenantId, groupsUrl, group -> {
+                String groupId = group.path("id").asText(null);
+                if (groupId == null || isDynamic(group)) {
+                    return;
+                }
+                JsonNode members = group.path("members");
+                if (members.size() < MAX_EXPANDED_MEMBERS) {
+                    for (JsonNode member : members) {
+                        handler.handle(membership(groupId, member));
+                    }
+                    return;
+                }
+                String membersUrl = reader.getBaseUrl() + "/groups/" + groupId + "/members?$top=999&$select=id";
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return reader.readAll(tenantId, membersUrl, member -> handler.handle(membership(groupId, member)));
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            });
+
+            for (Future<Integer> future : futures) {
+                UserSegmentPlanner.await(future, executor);
+            }
+        }
+    }
+
+    @Override
+    public BatchOperation restoreOperation(JsonNode item, RestoreIdMap ids) {
+        String groupId = item.path("groupId").asText(null);
+        String memberId = item.path("memberId").asText(null);
+        if (groupId == null || memberId == null) {
+            return null;
+        }
+        ObjectNode body = JsonNodeFactory.instance.objectNode()
+                .put("@odata.id", reader.getBaseUrl() + "/directoryObjects/" + ids.resolve(memberId));
+        return new BatchOperation("POST", "/groups/" + ids.resolve(groupId) + "/members/$ref", body);
+    }
+
+    private static boolean isDynamic(JsonNode group) {
+        for (JsonNode groupType : group.path("groupTypes")) {
+            if ("DynamicMembership".equals(groupType.asText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ObjectNode membership(String groupId, JsonNode member) {
+        String memberId = member.path("id").asText();
+        return JsonNodeFactory.instance.objectNode()
+                .put("id", groupId + "/" + memberId)
+                .put("groupId", groupId)
+                .put("memberId", memberId)
+                .put("memberType", member.path("@odata.type").asText(null));
+    }
+}
@@ -0,0 +1,13 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * Callback receiving backed up or fetched items one at a time.
+ */
+@FunctionalInterface
+public interface ItemHandler {
+    void handle(JsonNode item) throws IOException;
+}
@@ -0,0 +1,61 @@
+package se.loelindstrom.entrastuff.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress counters of one job. Updated from the worker threads and periodically
+ * flushed to the jobs table by {@link JobService}.
+ */
+public class JobProgress {
+    // For work that does not run as a job
+    public static final JobProgress NONE = new JobProgress();
+
+    private final AtomicLong pagesFetched = new AtomicLong();
+    private final AtomicLong usersWritten = new AtomicLong();
+    private final AtomicLong batchesRestored = new AtomicLong();
+    private final AtomicLong usersRestored = new AtomicLong();
+    private volatile Long backupId;
+    private volatile Long totalEstimate;
+
+    public void pageFetched(int usersInPage) {
+        pagesFetched.incrementAndGet();
+        usersWritten.addAndGet(usersInPage);
+    }
+
+    public void batchRestored(int usersInBatch) {
+        batchesRestored.incrementAndGet();
+        usersRestored.addAndGet(usersInBatch);
+    }
+
+    public void setBackupId(Long backupId) {
+        this.backupId = backupId;
+    }
+
+    public void setTotalEstimate(Long totalEstimate) {
+        this.totalEstimate = totalEstimate;
+    }
+
+    public long getPagesFetched() {
+        return pagesFetched.get();
+    }
+
+    public long getUsersWritten() {
+        return usersWritten.get();
+    }
+
+    public long getBatchesRestored() {
+        return batchesRestored.get();
+    }
+
+    public long getUsersRestored() {
+        return usersRestored.get();
+    }
+
+    public Long getBackupId() {
+        return backupId;
+    }
+
+    public Long getTotalEstimate() {
+        return totalEstimate;
+    }
+}
@@ -0,0 +1,328 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.dtos.JobDTO;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.entities.Job;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+import se.loelindstrom.entrastuff.repositories.JobRepository;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs backups and restores as background jobs on a bounded {@link FairShareExecutor}, which takes turns between
+ * tenants and runs at most each tenant's max-concurrent-jobs at once. Submitting persists the job
+ * and returns right away. Progress is kept in memory while the job runs and flushed to the jobs table
+ * on a fixed interval.
+ * <p>
+ * With several instances, the instance that queues a job holds a lease on it in the jobs table and renews it
+ * every third of jobs.lease-seconds. Only jobs whose lease has expired, because their instance stopped, are
+ * recovered: running ones are marked interrupted, and queued ones are claimed with a conditional update by
+ * one instance and run there. Instances check for such jobs on startup and on every renewal.
+ */
+@Service
+public class JobService {
+    private static final Logger logger = LoggerFactory.getLogger(JobService.class);
+    private final JobRepository jobRepository;
+    private final BackupRepository backupRepository;
+    private final UserBackupService userBackupService;
+    private final RestoreEngine restoreEngine;
+    private final TenantRegistry tenantRegistry;
+    private final ObjectMapper objectMapper;
+    private final FairShareExecutor executor;
+    private final ScheduledExecutorService progressFlusher;
+    private final String owner;
+    private final int leaseSeconds;
+    private final Map<Long, JobProgress> activeJobs = new ConcurrentHashMap<>();
+
+    public JobService(
+            JobRepository jobRepository,
+            BackupRepository backupRepository,
+            UserBackupService userBackupService,
+            RestoreEngine restoreEngine,
+            TenantRegistry tenantRegistry,
+            ObjectMapper objectMapper,
+            @Value("${jobs.max-concurrent:2}") int maxConcurrent,
+            @Value("${jobs.queue-capacity:20}") int queueCapacity,
+            @Value("${jobs.progress-flush-interval-ms:2000}") long progressFlushIntervalMs,
+            @Value("${jobs.lease-seconds:60}") int leaseSeconds
+    ) {
+        this.jobRepository = jobRepository;
+        this.backupRepository = backupRepository;
+        this.userBackupService = userBackupService;
+        this.restoreEngine = restoreEngine;
+        this.tenantRegistry = tenantRegistry;
+        this.objectMapper = objectMapper;
+        this.owner = hostName() + "/" + UUID.randomUUID();
+        this.leaseSeconds = leaseSeconds;
+        this.executor = new FairShareExecutor(
+                maxConcurrent,
+                queueCapacity,
+                tenantRegistry::maxConcurrentJobs,
+                Thread.ofPlatform().name("job-", 1).factory()
+        );
+        this.progressFlusher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("job-progress").daemon().factory());
+        this.progressFlusher.scheduleWithFixedDelay(
+                this::flushProgress, progressFlushIntervalMs, progressFlushIntervalMs, TimeUnit.MILLISECONDS);
+        long renewIntervalSeconds = Math.max(1, leaseSeconds / 3);
+        this.progressFlusher.scheduleWithFixedDelay(
+                this::maintainLeases, renewIntervalSeconds, renewIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public Job submitBackup(String tenantId, String mode) {
+        Job job = newJob("backup", tenantId);
+        job.setMode(mode);
+        return claimAndDispatch(jobRepository.save(job));
+    }
+
+    public Job submitRestore(Long backupId, String tenantId, String mode) {
+        Job job = newJob("restore", tenantId);
+        job.setMode(mode);
+        job.setBackupId(backupId);
+        return claimAndDispatch(jobRepository.save(job));
+    }
+
+    public Optional<JobDTO> findJob(Long jobId) {
+        return jobRepository.findById(jobId).map(this::toDTO);
+    }
+
+    public JobDTO toDTO(Job job) {
+        JobProgress live = activeJobs.get(job.getId());
+        long pagesFetched = live != null ? live.getPagesFetched() : job.getPagesFetched();
+        long usersWritten = live != null ? live.getUsersWritten() : job.getUsersWritten();
+        long batchesRestored = live != null ? live.getBatchesRestored() : job.getBatchesRestored();
+        long usersRestored = live != null ? live.getUsersRestored() : job.getUsersRestored();
+        Long backupId = live != null && live.getBackupId() != null ? live.getBackupId() : job.getBackupId();
+        Long totalEstimate = live != null ? live.getTotalEstimate() : job.getTotalEstimate();
+
+        long processed = "restore".equals(job.getType()) ? usersRestored : usersWritten;
+        Double usersPerSecond = null;
+        Long etaSeconds = null;
+        if (job.getStartedAt() != null) {
+            LocalDateTime end = job.getFinishedAt() != null ? job.getFinishedAt() : LocalDateTime.now();
+            double seconds = Duration.between(job.getStartedAt(), end).toMillis() / 1000.0;
+            if (seconds > 0) {
+                usersPerSecond = processed / seconds;
+            }
+        }
+        if ("running".equals(job.getStatus()) && usersPerSecond != null && usersPerSecond > 0 && totalEstimate != null) {
+            etaSeconds = Math.max(0, (long) ((totalEstimate - processed) / usersPerSecond));
+        }
+
+        return new JobDTO(
+                job.getId(),
+                job.getType(),
+                job.getTenantId(),
+                job.getStatus(),
+                job.getMode(),
+                backupId,
+                pagesFetched,
+                usersWritten,
+                batchesRestored,
+                usersRestored,
+                totalEstimate,
+                usersPerSecond,
+                etaSeconds,
+                job.getError(),
+                job.getResult(),
+                job.getCreatedAt(),
+                job.getStartedAt(),
+                job.getFinishedAt()
+        );
+    }
+
+    /**
+     * Takes over the jobs of instances that stopped: marks their running jobs interrupted and runs their
+     * queued jobs here. Jobs of live instances keep their lease and are left alone.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverJobs() {
+        int interrupted = jobRepository.interruptExpired();
+        if (interrupted > 0) {
+            logger.warn("Marked {} jobs as interrupted: the instances running them stopped.", interrupted);
+        }
+        for (Job job : jobRepository.findUnclaimedQueued()) {
+            if (jobRepository.claim(job.getId(), owner, leaseSeconds) == 0) {
+                continue;
+            }
+            logger.info("Resubmitting queued job {}.", job.getId());
+            try {
+                executor.execute(tenantOf(job), () -> run(job.getId(), taskFor(job)));
+            } catch (RejectedExecutionException e) {
+                // Left for an instance with room in its queue, or for a later round
+                jobRepository.release(job.getId(), owner);
+                logger.warn("Could not resubmit job {}: the job queue is full.", job.getId());
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        progressFlusher.shutdown();
+        flushProgress();
+        try {
+            jobRepository.releaseQueued(owner);
+        } catch (Exception e) {
+            logger.warn("Failed to release queued jobs: {}", e.getMessage());
+        }
+        executor.shutdownNow();
+    }
+
+    private Job newJob(String type, String tenantId) {
+        Job job = new Job();
+        job.setType(type);
+        job.setTenantId(tenantId);
+        job.setStatus("queued");
+        job.setCreatedAt(LocalDateTime.now());
+        return job;
+    }
+
+    private Job claimAndDispatch(Job job) {
+        if (jobRepository.claim(job.getId(), owner, leaseSeconds) == 0) {
+            throw new IllegalStateException("Job " + job.getId() + " was claimed by another instance.");
+        }
+        JobTask task = taskFor(job);
+        try {
+            executor.execute(tenantOf(job), () -> run(job.getId(), task));
+        } catch (RejectedExecutionException e) {
+            job.setStatus("failed");
+            job.setError("The job queue is full.");
+            job.setFinishedAt(LocalDateTime.now());
+            jobRepository.save(job);
+            throw e;
+        }
+        logger.info("Submitted {} job {}.", job.getType(), job.getId());
+        return job;
+    }
+
+    private JobTask taskFor(Job job) {
+        String tenantId = tenantOf(job);
+        return switch (job.getType()) {
+            case "backup" -> "incremental".equals(job.getMode())
+                    ? progress -> userBackupService.backupUsersIncremental(tenantId, progress)
+                    : progress -> userBackupService.backupUsers(tenantId, progress);
+            case "restore" -> "full".equals(job.getMode()) || job.getMode() == null
+                    ? progress -> restoreEngine.restoreUsers(job.getBackupId(), tenantId, progress)
+                    : progress -> restoreEngine.restoreChanges(job.getBackupId(), tenantId, "mirror".equals(job.getMode()), progress);
+            default -> throw new IllegalArgumentException("Unknown job type: " + job.getType());
+        };
+    }
+
+    private String tenantOf(Job job) {
+        return job.getTenantId() != null ? job.getTenantId() : tenantRegistry.getDefaultTenantId();
+    }
+
+    private void run(Long jobId, JobTask task) {
+        if (jobRepository.start(jobId, owner) == 0) {
+            logger.warn("Not starting job {}: it was taken over by another instance.", jobId);
+            return;
+        }
+        Job job = jobRepository.findById(jobId).orElseThrow();
+        JobProgress progress = new JobProgress();
+        progress.setBackupId(job.getBackupId());
+        progress.setTotalEstimate(estimateTotal(job));
+        activeJobs.put(jobId, progress);
+        logger.info("Started {} job {}.", job.getType(), jobId);
+
+        try {
+            Object result = task.run(progress);
+            job.setResult(objectMapper.valueToTree(result));
+            job.setStatus("completed");
+            logger.info("Completed {} job {}.", job.getType(), jobId);
+        } catch (Exception e) {
+            logger.error("Job {} failed: {}", jobId, e.getMessage(), e);
+            job.setStatus("failed");
+            job.setError(e.getMessage());
+        } finally {
+            activeJobs.remove(jobId);
+            job.setBackupId(progress.getBackupId());
+            job.setPagesFetched(progress.getPagesFetched());
+            job.setUsersWritten(progress.getUsersWritten());
+            job.setBatchesRestored(progress.getBatchesRestored());
+            job.setUsersRestored(progress.getUsersRestored());
+            job.setTotalEstimate(progress.getTotalEstimate());
+            job.setFinishedAt(LocalDateTime.now());
+            jobRepository.save(job);
+        }
+    }
+
+    // Only user counts of full backups are estimates: incremental backups hold changes, and diff restores are sized once diffed.
+    // Full restores of a full backup recreate its users; full backups are estimated from the tenant's previous full backup
+    private Long estimateTotal(Job job) {
+        if ("restore".equals(job.getType())) {
+            if (job.getMode() != null && !"full".equals(job.getMode())) {
+                return null;
+            }
+            return backupRepository.findById(job.getBackupId())
+                    .filter(backup -> "full".equals(backup.getMode()))
+                    .map(Backup::getUserCount)
+                    .orElse(null);
+        }
+        if ("full".equals(job.getMode())) {
+            return backupRepository.findFirstByTenantIdAndModeAndStatusOrderByIdDesc(tenantOf(job), "full", "completed")
+                    .map(Backup::getUserCount)
+                    .orElse(null);
+        }
+        return null;
+    }
+
+    private void maintainLeases() {
+        try {
+            jobRepository.renewLeases(owner, leaseSeconds);
+            recoverJobs();
+        } catch (Exception e) {
+            logger.warn("Failed to renew job leases: {}", e.getMessage());
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown-host";
+        }
+    }
+
+    private void flushProgress() {
+        activeJobs.forEach((jobId, progress) -> {
+            try {
+                jobRepository.updateProgress(
+                        jobId,
+                        progress.getBackupId(),
+                        progress.getPagesFetched(),
+                        progress.getUsersWritten(),
+                        progress.getBatchesRestored(),
+                        progress.getUsersRestored(),
+                        progress.getTotalEstimate()
+                );
+            } catch (Exception e) {
+                logger.warn("Failed to persist progress of job {}: {}", jobId, e.getMessage());
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface JobTask {
+        Object run(JobProgress progress) throws Exception;
+    }
+}
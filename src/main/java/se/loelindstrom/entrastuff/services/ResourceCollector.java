@@ -0,0 +1,63 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Backs up and restores one Graph resource type other than users, which {@link UserBackupService} collects.
+ * Full backups run the collectors listed in backup.resources next to the users, into the same backup, with
+ * items tagged with their type in {@link #ITEM_TYPE_FIELD}. Items without the tag are users.
+ * <p>
+ * Restores handle users first and then the collectors by ascending {@link #restoreOrder()}, so everything a
+ * resource refers to exists before it is created. Only resources missing from the live tenant are recreated.
+ */
+public interface ResourceCollector {
+    String ITEM_TYPE_FIELD = "@itemType";
+    String USER = "user";
+
+    static String itemType(JsonNode item) {
+        return item.path(ITEM_TYPE_FIELD).asText(USER);
+    }
+
+    // The non-null attributes of an item, as the body of a create request
+    static ObjectNode copyAttributes(JsonNode item, Collection<String> attributes) {
+        ObjectNode body = JsonNodeFactory.instance.objectNode();
+        for (String attribute : attributes) {
+            JsonNode value = item.get(attribute);
+            if (value != null && !value.isNull()) {
+                body.set(attribute, value.deepCopy());
+            }
+        }
+        return body;
+    }
+
+    /**
+     * The type recorded on the collected items, e.g. group.
+     */
+    String itemType();
+
+    int restoreOrder();
+
+    /**
+     * Streams every resource of the tenant to the handler, possibly from several threads at once.
+     * Graph calls go through the tenant's {@link TenantThrottle}.
+     */
+    void collect(String tenantId, ItemHandler handler) throws IOException;
+
+    /**
+     * What identifies the item, used to tell which backed up resources still exist in the tenant.
+     */
+    default String key(JsonNode item) {
+        return item.path("id").asText(null);
+    }
+
+    /**
+     * The Graph operation recreating a backed up item, or null if it cannot be recreated. References to
+     * other objects go through {@code ids}, since recreated objects get new ids.
+     */
+    BatchOperation restoreOperation(JsonNode item, RestoreIdMap ids);
+}
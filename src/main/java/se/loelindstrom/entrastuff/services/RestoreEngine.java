@@ -0,0 +1,452 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.dtos.RestoreResultDTO;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Restores backups through Graph $batch calls. Several batches are kept in flight on virtual threads,
+ * bounded by an {@link AdaptiveConcurrencyLimiter} that backs off on 429/503 and honours Retry-After.
+ * Only the throttled sub-requests of a batch are resubmitted. Batches also go through the tenant's
+ * {@link TenantThrottle}, so restores and backups of one tenant share its Graph budget.
+ * <p>
+ * A full restore POSTs every user in the backup. A diff restore asks {@link BackupDiffEngine} what differs from
+ * the live tenant and only creates missing users and PATCHes changed ones, and with mirror also deletes users
+ * that are not in the backup.
+ * <p>
+ * Other resources in the backup (see {@link ResourceCollector}) are restored after the users, one type at a time
+ * in dependency order, e.g. groups before their memberships. Only resources missing from the live tenant are
+ * recreated, and the new ids of recreated objects are mapped so later types refer to the recreated objects.
+ * <p>
+ * Metrics: graph.batch.operations counts sub-requests by outcome, restore.duration and restore.operations
+ * describe whole restores, and graph.throttle.wait the Retry-After pauses throttled batches cause.
+ */
+@Service
+public class RestoreEngine {
+    private static final Logger logger = LoggerFactory.getLogger(RestoreEngine.class);
+    private static final int MAX_BATCH_SIZE = 20;
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+    private final TokenStore tokenStore;
+    private final BackupSnapshotService snapshotService;
+    private final BackupDiffEngine diffEngine;
+    private final TenantRegistry tenantRegistry;
+    private final List<ResourceCollector> collectors;
+    private final ObjectMapper objectMapper;
+    private final GraphClient graphClient;
+    private final MeterRegistry meterRegistry;
+    private final Counter operationsSucceeded;
+    private final Counter operationsFailed;
+    private final Counter operationsThrottled;
+    private final int initialConcurrency;
+    private final int maxConcurrency;
+    private final int maxAttempts;
+
+    public RestoreEngine(
+            TokenStore tokenStore,
+            GraphClient graphClient,
+            BackupSnapshotService snapshotService,
+            BackupDiffEngine diffEngine,
+            TenantRegistry tenantRegistry,
+            List<ResourceCollector> collectors,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${restore.initial-concurrency:4}") int initialConcurrency,
+            @Value("${restore.max-concurrency:16}") int maxConcurrency,
+            @Value("${restore.max-attempts:5}") int maxAttempts
+    ) {
+        this.tokenStore = tokenStore;
+        this.snapshotService = snapshotService;
+        this.diffEngine = diffEngine;
+        this.tenantRegistry = tenantRegistry;
+        this.collectors = collectors.stream()
+                .sorted(Comparator.comparingInt(ResourceCollector::restoreOrder))
+                .toList();
+        this.objectMapper = objectMapper;
+        this.initialConcurrency = initialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.graphClient = graphClient;
+        this.meterRegistry = meterRegistry;
+        this.operationsSucceeded = meterRegistry.counter("graph.batch.operations", "outcome", "succeeded");
+        this.operationsFailed = meterRegistry.counter("graph.batch.operations", "outcome", "failed");
+        this.operationsThrottled = meterRegistry.counter("graph.batch.operations", "outcome", "throttled");
+    }
+
+    public RestoreResultDTO restoreUsers(Long backupId, String tenantId, JobProgress progress) throws IOException {
+        RestoreIdMap ids = new RestoreIdMap();
+        Set<String> itemTypes = ConcurrentHashMap.newKeySet();
+        RestoreResultDTO users = execute(backupId, tenantId, progress, submitter -> snapshotService.materialize(backupId, item -> {
+            String itemType = ResourceCollector.itemType(item);
+            itemTypes.add(itemType);
+            if (ResourceCollector.USER.equals(itemType)) {
+                String id = item.path("id").asText(null);
+                submitter.submit(createUserOperation(item).onCreated(created -> ids.put(id, created.path("id").asText(null))));
+            }
+        }));
+        return restoreResources(backupId, tenantId, progress, itemTypes, ids, users);
+    }
+
+    /**
+     * Restores only what differs between the backup and the live tenant. Users missing from the backup are
+     * deleted only if {@code mirror} is set.
+     */
+    public RestoreResultDTO restoreChanges(Long backupId, String tenantId, boolean mirror, JobProgress progress) throws IOException {
+        RestoreIdMap ids = new RestoreIdMap();
+        Set<String> clearable = diffEngine.clearableAttributes(backupId);
+        RestoreResultDTO users = execute(backupId, tenantId, progress, submitter -> diffEngine.diff(backupId, null, change -> {
+            String backedUpId = change.user() != null ? change.user().path("id").asText(null) : null;
+            switch (change.action()) {
+                case CREATE -> submitter.submit(createUserOperation(change.user())
+                        .onCreated(created -> ids.put(backedUpId, created.path("id").asText(null))));
+                case UPDATE -> {
+                    // A user matched by UPN was recreated with a new id
+                    ids.put(backedUpId, change.userId());
+                    ObjectNode body = diffEngine.updateBody(change.user(), clearable);
+                    if (body != null) {
+                        submitter.submit(new BatchOperation("PATCH", "/users/" + change.userId(), body));
+                    }
+                }
+                case DELETE -> {
+                    if (mirror) {
+                        submitter.submit(new BatchOperation("DELETE", "/users/" + change.userId(), null));
+                    }
+                }
+            }
+        }));
+
+        Set<String> itemTypes = ConcurrentHashMap.newKeySet();
+        if (!collectors.isEmpty()) {
+            snapshotService.materialize(backupId, item -> itemTypes.add(ResourceCollector.itemType(item)));
+        }
+        return restoreResources(backupId, tenantId, progress, itemTypes, ids, users);
+    }
+
+    /**
+     * Restores the other resource types the backup holds, one type at a time so everything a type refers to
+     * has been created first. The live resources of a type are read before its pass to skip those still there.
+     */
+    private RestoreResultDTO restoreResources(Long backupId, String tenantId, JobProgress progress, Set<String> itemTypes,
+                                              RestoreIdMap ids, RestoreResultDTO users) throws IOException {
+        long restored = users.getRestored();
+        long failed = users.getFailed();
+        long retried = users.getRetried();
+        long durationMs = users.getDurationMs();
+        for (ResourceCollector collector : collectors) {
+            if (!itemTypes.contains(collector.itemType())) {
+                continue;
+            }
+            long start = System.nanoTime();
+            Set<String> live = ConcurrentHashMap.newKeySet();
+            collector.collect(tenantId, item -> {
+                String key = collector.key(item);
+                if (key != null) {
+                    live.add(key);
+                }
+            });
+            logger.debug("Read {} live {} items before restoring backup {}.", live.size(), collector.itemType(), backupId);
+
+            RestoreResultDTO result = execute(backupId, tenantId, progress, submitter -> snapshotService.materialize(backupId, item -> {
+                if (collector.itemType().equals(ResourceCollector.itemType(item)) && !live.contains(collector.key(item))) {
+                    BatchOperation operation = collector.restoreOperation(item, ids);
+                    if (operation != null) {
+                        submitter.submit(operation);
+                    }
+                }
+            }));
+            logger.info("Restored {} {} items of backup {}, {} failed.", result.getRestored(), collector.itemType(), backupId, result.getFailed());
+            restored += result.getRestored();
+            failed += result.getFailed();
+            retried += result.getRetried();
+            durationMs += (System.nanoTime() - start) / 1_000_000;
+        }
+        return new RestoreResultDTO(backupId, restored, failed, retried, durationMs);
+    }
+
+    /**
+     * Sends every operation emitted by the source in $batch calls of up to 20, keeping as many
+     * batches in flight as the limiter allows. Returns when all batches have finished.
+     */
+    public RestoreResultDTO execute(Long backupId, String tenantId, JobProgress progress, OperationSource source) throws IOException {
+        long start = System.nanoTime();
+        RestoreRun run = new RestoreRun(tenantId, progress);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<BatchOperation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            source.emit(operation -> {
+                batch.add(operation);
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    run.submit(executor, List.copyOf(batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                run.submit(executor, List.copyOf(batch));
+            }
+        }
+
+        long durationMs = (System.nanoTime() - start) / 1_000_000;
+        meterRegistry.timer("restore.duration").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        meterRegistry.summary("restore.operations", "outcome", "succeeded").record(run.succeeded.sum());
+        meterRegistry.summary("restore.operations", "outcome", "failed").record(run.failed.sum());
+        logger.info("Restore of backup {} finished in {} ms: {} succeeded, {} failed, {} retried. Final concurrency limit {}.",
+                backupId, durationMs, run.succeeded.sum(), run.failed.sum(), run.retried.sum(), run.limiter.getLimit());
+        return new RestoreResultDTO(backupId, run.succeeded.sum(), run.failed.sum(), run.retried.sum(), durationMs);
+    }
+
+    public BatchOperation createUserOperation(JsonNode user) {
+        ObjectNode userRequest = objectMapper.createObjectNode();
+        userRequest.put("accountEnabled", true);
+        userRequest.put("displayName", user.get("displayName").asText());
+        userRequest.put("mailNickname", user.get("userPrincipalName").asText().split("@")[0]);
+        userRequest.put("userPrincipalName", user.get("userPrincipalName").asText());
+        userRequest.putObject("passwordProfile")
+                .put("forceChangePasswordNextSignIn", true)
+                .put("password", generateRandomPassword());
+        return new BatchOperation("POST", "/users", userRequest);
+    }
+
+    /**
+     * Serializes operations into a $batch request body. The sub-request ids are the list indexes.
+     */
+    public byte[] toBatchRequest(List<BatchOperation> operations) throws JsonProcessingException {
+        ArrayNode requests = objectMapper.createArrayNode();
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            ObjectNode batchItem = objectMapper.createObjectNode();
+            batchItem.put("id", String.valueOf(i));
+            batchItem.put("method", operation.method());
+            batchItem.put("url", operation.url());
+            if (operation.body() != null) {
+                batchItem.set("body", operation.body());
+                batchItem.putObject("headers")
+                        .put("Content-Type", "application/json");
+            }
+            requests.add(batchItem);
+        }
+
+        ObjectNode batchRequest = objectMapper.createObjectNode();
+        batchRequest.set("requests", requests);
+
+        return objectMapper.writeValueAsBytes(batchRequest);
+    }
+
+    private String generateRandomPassword() {
+        return UUID.randomUUID().toString().replaceAll("-", "").substring(0, 12) + "!aA1";
+    }
+
+    static boolean isThrottled(int status) {
+        return status == 429 || status == 503 || status == 504;
+    }
+
+    static Duration parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_RETRY_AFTER;
+        }
+    }
+
+    @FunctionalInterface
+    public interface OperationSource {
+        void emit(OperationSubmitter submitter) throws IOException;
+    }
+
+    // Connection failures happen before any of the request reaches Graph, so the batch can safely be sent again
+    static boolean isNotSent(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    public interface OperationSubmitter {
+        void submit(BatchOperation operation) throws IOException;
+    }
+
+    private record BatchOutcome(int succeeded, int failed, List<BatchOperation> throttled, Duration retryAfter) {
+    }
+
+    /**
+     * State of one restore: the limiter and the counters shared by all in-flight batches.
+     */
+    private class RestoreRun {
+        private final AdaptiveConcurrencyLimiter limiter =
+                new AdaptiveConcurrencyLimiter(initialConcurrency, 1, maxConcurrency);
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder retried = new LongAdder();
+        private final String tenantId;
+        private final TenantThrottle throttle;
+        private final JobProgress progress;
+
+        RestoreRun(String tenantId, JobProgress progress) {
+            this.tenantId = tenantId;
+            this.throttle = tenantRegistry.throttle(tenantId);
+            this.progress = progress;
+        }
+
+        // Blocks the producer while the limit is reached, so unread items stay in the database
+        void submit(ExecutorService executor, List<BatchOperation> operations) throws IOException {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to submit a restore batch.");
+            }
+            executor.execute(() -> runBatch(operations));
+        }
+
+        private void runBatch(List<BatchOperation> operations) {
+            List<BatchOperation> pending = operations;
+            boolean holdsPermit = true;
+            int batchSucceeded = 0;
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    BatchOutcome outcome = sendBatch(pending);
+                    batchSucceeded += outcome.succeeded();
+                    succeeded.add(outcome.succeeded());
+                    failed.add(outcome.failed());
+                    if (outcome.throttled().isEmpty()) {
+                        limiter.onSuccess();
+                        return;
+                    }
+
+                    limiter.onThrottled(outcome.retryAfter());
+                    meterRegistry.timer("graph.throttle.wait", "operation", "restore").record(outcome.retryAfter());
+                    if (attempt >= maxAttempts) {
+                        logger.error("Giving up on {} throttled operations after {} attempts.", outcome.throttled().size(), attempt);
+                        failed.add(outcome.throttled().size());
+                        return;
+                    }
+
+                    logger.debug("Retrying {} throttled operations after {}.", outcome.throttled().size(), outcome.retryAfter());
+                    retried.add(outcome.throttled().size());
+                    pending = outcome.throttled();
+                    holdsPermit = false;
+                    limiter.release();
+                    limiter.acquire();
+                    holdsPermit = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add(pending.size());
+            } catch (Exception e) {
+                logger.error("Restore batch failed: {}", e.getMessage(), e);
+                failed.add(pending.size());
+            } finally {
+                progress.batchRestored(batchSucceeded);
+                if (holdsPermit) {
+                    limiter.release();
+                }
+            }
+        }
+
+        private BatchOutcome sendBatch(List<BatchOperation> operations) throws IOException {
+            byte[] batchRequest = toBatchRequest(operations);
+            GraphClient.GraphResponse response;
+            try {
+                response = throttle.call(() -> graphClient.send(
+                        "POST", graphClient.getBaseUrl() + "/$batch", tokenStore.getAccessToken(tenantId), batchRequest));
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (isNotSent(e)) {
+                    logger.warn("Graph API batch request could not be sent, will retry: {}", e.getMessage());
+                    return new BatchOutcome(0, 0, operations, DEFAULT_RETRY_AFTER);
+                }
+                // The batch may have been applied, and creating users again would fail or duplicate them
+                logger.error("Graph API batch request failed after it was sent; the outcome of its {} operations is unknown: {}",
+                        operations.size(), e.getMessage());
+                operationsFailed.increment(operations.size());
+                return new BatchOutcome(0, operations.size(), List.of(), DEFAULT_RETRY_AFTER);
+            }
+
+            logger.trace("Batch response status: {}", response.statusCode());
+            logger.trace("Batch response body: {}", response.bodyAsString());
+
+            if (isThrottled(response.statusCode())) {
+                operationsThrottled.increment(operations.size());
+                Duration retryAfter = parseRetryAfter(response.header("Retry-After"));
+                throttle.pause(retryAfter);
+                return new BatchOutcome(0, 0, operations, retryAfter);
+            }
+            if (!response.isSuccessful()) {
+                logger.error("Graph API batch request failed with status {}: {}", response.statusCode(), response.bodyAsString());
+                operationsFailed.increment(operations.size());
+                return new BatchOutcome(0, operations.size(), List.of(), DEFAULT_RETRY_AFTER);
+            }
+
+            JsonNode responses = objectMapper.readTree(response.body()).path("responses");
+            int successCount = 0;
+            int failureCount = 0;
+            List<BatchOperation> throttled = new ArrayList<>();
+            Duration retryAfter = Duration.ZERO;
+
+            for (JsonNode resp : responses) {
+                int status = resp.path("status").asInt();
+                int index = resp.path("id").asInt();
+                if (status >= 200 && status < 300) {
+                    successCount++;
+                    BatchOperation.CreatedHandler onCreated = operations.get(index).onCreated();
+                    if (onCreated != null) {
+                        onCreated.created(resp.path("body"));
+                    }
+                    logger.debug("Batch operation {} succeeded.", index);
+                } else if (isThrottled(status)) {
+                    throttled.add(operations.get(index));
+                    Duration itemRetryAfter = parseRetryAfter(resp.path("headers").path("Retry-After").asText(null));
+                    if (itemRetryAfter.compareTo(retryAfter) > 0) {
+                        retryAfter = itemRetryAfter;
+                    }
+                } else {
+                    failureCount++;
+                    logger.error("Batch operation {} failed with status {}: {}", index, status, resp.path("body"));
+                }
+            }
+
+            operationsSucceeded.increment(successCount);
+            operationsFailed.increment(failureCount);
+            operationsThrottled.increment(throttled.size());
+            if (!throttled.isEmpty()) {
+                throttle.pause(retryAfter);
+            }
+            return new BatchOutcome(successCount, failureCount, throttled, retryAfter);
+        }
+    }
+}
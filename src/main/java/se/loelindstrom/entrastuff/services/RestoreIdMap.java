@@ -0,0 +1,26 @@
+package se.loelindstrom.entrastuff.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ids objects recreated during one restore got, by their backed up id. Objects that were not
+ * recreated keep their id, so resources referring to them are restored against the existing object.
+ */
+public class RestoreIdMap {
+    private final Map<String, String> ids = new ConcurrentHashMap<>();
+
+    public void put(String backedUpId, String newId) {
+        if (backedUpId != null && newId != null) {
+            ids.put(backedUpId, newId);
+        }
+    }
+
+    public String resolve(String backedUpId) {
+        return backedUpId == null ? null : ids.getOrDefault(backedUpId, backedUpId);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,54 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backs up service principals. Only those of applications (servicePrincipalType Application) are recreated,
+ * against the appId of the application, which is recreated first if it was deleted too. Managed identities
+ * and legacy principals are backed up for reference only.
+ */
+@Component
+public class ServicePrincipalCollector implements ResourceCollector {
+    public static final String ITEM_TYPE = "servicePrincipal";
+    private static final List<String> CREATE_ATTRIBUTES = List.of(
+            "accountEnabled", "appRoleAssignmentRequired", "description", "notes", "tags"
+    );
+    private final GraphCollectionReader reader;
+
+    public ServicePrincipalCollector(GraphCollectionReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public String itemType() {
+        return ITEM_TYPE;
+    }
+
+    @Override
+    public int restoreOrder() {
+        return 30;
+    }
+
+    @Override
+    public void collect(String tenantId, ItemHandler handler) throws IOException {
+        reader.readAll(tenantId, reader.getBaseUrl() + "/servicePrincipals?$top=999&$select=id,appId,displayName,servicePrincipalType,"
+                + String.join(",", CREATE_ATTRIBUTES), handler);
+    }
+
+    @Override
+    public BatchOperation restoreOperation(JsonNode item, RestoreIdMap ids) {
+        if (!"Application".equals(item.path("servicePrincipalType").asText()) || !item.hasNonNull("appId")) {
+            return null;
+        }
+        ObjectNode body = ResourceCollector.copyAttributes(item, CREATE_ATTRIBUTES);
+        body.put("appId", ids.resolve(item.get("appId").asText()));
+        String id = item.path("id").asText();
+        return new BatchOperation("POST", "/servicePrincipals", body)
+                .onCreated(created -> ids.put(id, created.path("id").asText(null)));
+    }
+}
@@ -0,0 +1,316 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.entities.Subscription;
+import se.loelindstrom.entrastuff.repositories.SchedulerLeaseRepository;
+import se.loelindstrom.entrastuff.repositories.SubscriptionRepository;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the webhook's Graph subscriptions, persists them with their clientState and renews them before
+ * they expire. Renewal runs on one instance per round, claimed through the scheduler_leases table; a subscription
+ * that Graph no longer knows is replaced by a new one.
+ * <p>
+ * Notifications are validated against an in-memory map of subscription id to clientState, reloaded from the
+ * database every renewal round and when a notification names an unknown subscription, so subscriptions created
+ * on other instances are accepted too. The clientState comparison is constant-time.
+ * <p>
+ * Subscriptions are created with a lifecycle notification URL. Lifecycle events are handled on the renewal
+ * thread: reauthorizationRequired renews the subscription at once and subscriptionRemoved replaces it.
+ */
+@Service
+public class SubscriptionManager {
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionManager.class);
+    private static final long RENEWAL_INTERVAL_MINUTES = 10;
+    private static final int RENEWAL_LEASE_SECONDS = 300;
+    private static final String RENEWAL_LEASE = "subscription-renewal";
+    // Unknown subscription ids reload the cache at most this often, so forged ids can't hammer the database
+    private static final long MIN_RELOAD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private final GraphClient graphClient;
+    private final TokenStore tokenStore;
+    private final SubscriptionRepository subscriptionRepository;
+    private final SchedulerLeaseRepository leaseRepository;
+    private final ObjectMapper objectMapper;
+    private final String webhookUrl;
+    private final String lifecycleUrl;
+    private final Duration lifetime;
+    private final Duration renewBefore;
+    private final String owner;
+    private final AtomicLong lastReloadNanos = new AtomicLong(System.nanoTime() - MIN_RELOAD_INTERVAL_NANOS);
+    // Replaced as a whole on reload, so lookups never lock
+    private volatile Map<String, byte[]> clientStates = Map.of();
+    private ScheduledExecutorService renewer;
+
+    public SubscriptionManager(
+            GraphClient graphClient,
+            TokenStore tokenStore,
+            SubscriptionRepository subscriptionRepository,
+            SchedulerLeaseRepository leaseRepository,
+            ObjectMapper objectMapper,
+            @Value("${webhook.url}") String webhookUrl,
+            @Value("${webhook.lifecycle-url:${webhook.url}/lifecycle}") String lifecycleUrl,
+            @Value("${webhook.subscription.lifetime-minutes:2880}") long lifetimeMinutes,
+            @Value("${webhook.subscription.renew-before-minutes:720}") long renewBeforeMinutes
+    ) {
+        this.graphClient = graphClient;
+        this.tokenStore = tokenStore;
+        this.subscriptionRepository = subscriptionRepository;
+        this.leaseRepository = leaseRepository;
+        this.objectMapper = objectMapper;
+        this.webhookUrl = webhookUrl;
+        this.lifecycleUrl = lifecycleUrl;
+        this.lifetime = Duration.ofMinutes(lifetimeMinutes);
+        this.renewBefore = Duration.ofMinutes(renewBeforeMinutes);
+        this.owner = hostName() + "/" + UUID.randomUUID();
+        if (renewBefore.compareTo(lifetime) >= 0) {
+            throw new IllegalStateException("webhook.subscription.renew-before-minutes must be less than lifetime-minutes.");
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        leaseRepository.createIfAbsent(RENEWAL_LEASE);
+        reloadClientStates();
+        logger.info("Loaded {} active webhook subscriptions.", clientStates.size());
+        renewer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("subscription-renewer").daemon().factory());
+        renewer.scheduleWithFixedDelay(this::renewalRound, 0, RENEWAL_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+        }
+    }
+
+    public Subscription create(String tenantId, String resource, String changeType) throws IOException {
+        LocalDateTime expiresAt = LocalDateTime.now().plus(lifetime);
+        String clientState = UUID.randomUUID().toString();
+
+        ObjectNode request = objectMapper.createObjectNode();
+        request.put("changeType", changeType);
+        request.put("notificationUrl", webhookUrl);
+        request.put("lifecycleNotificationUrl", lifecycleUrl);
+        request.put("resource", resource);
+        request.put("expirationDateTime", toGraphTime(expiresAt));
+        request.put("clientState", clientState);
+
+        // Graph validates the notification URL before answering, so the webhook must be reachable by then
+        GraphClient.GraphResponse response = graphClient.send(
+                "POST", graphClient.getBaseUrl() + "/subscriptions", tokenStore.getAccessToken(tenantId), objectMapper.writeValueAsBytes(request));
+        logger.trace("Subscription creation response body: {}", response.bodyAsString());
+        if (!response.isSuccessful()) {
+            throw new IOException("Failed to create subscription: status " + response.statusCode() + ": " + response.bodyAsString());
+        }
+
+        JsonNode created = objectMapper.readTree(response.body());
+        Subscription subscription = new Subscription();
+        subscription.setId(created.path("id").asText());
+        subscription.setTenantId(tenantId);
+        subscription.setResource(resource);
+        subscription.setChangeType(changeType);
+        subscription.setClientState(clientState);
+        subscription.setStatus("active");
+        subscription.setExpiresAt(created.hasNonNull("expirationDateTime") ? fromGraphTime(created.get("expirationDateTime").asText()) : expiresAt);
+        subscription.setCreatedAt(LocalDateTime.now());
+        subscription = subscriptionRepository.save(subscription);
+        addClientState(subscription);
+        logger.info("Created subscription {} for {} in tenant {}, expiring at {}.",
+                subscription.getId(), resource, tenantId, subscription.getExpiresAt());
+        return subscription;
+    }
+
+    public List<Subscription> findActive() {
+        return subscriptionRepository.findByStatus("active");
+    }
+
+    /**
+     * The tenant a subscription belongs to, if the subscription is known.
+     */
+    public Optional<String> findTenantId(String subscriptionId) {
+        return subscriptionRepository.findById(subscriptionId).map(Subscription::getTenantId);
+    }
+
+    /**
+     * Whether a notification's clientState matches the one stored for its subscription.
+     */
+    public boolean isValidClientState(String subscriptionId, String clientState) {
+        if (subscriptionId == null || clientState == null) {
+            return false;
+        }
+        byte[] expected = clientStates.get(subscriptionId);
+        if (expected == null && reloadAllowed()) {
+            reloadClientStates();
+            expected = clientStates.get(subscriptionId);
+        }
+        return expected != null && MessageDigest.isEqual(expected, clientState.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Renews a subscription right away, after Graph asked for reauthorization. Runs asynchronously.
+     */
+    public void reauthorize(String subscriptionId) {
+        onRenewer(subscriptionId, this::renew);
+    }
+
+    /**
+     * Replaces a subscription that Graph has removed. Runs asynchronously.
+     */
+    public void replace(String subscriptionId) {
+        onRenewer(subscriptionId, subscription -> {
+            logger.warn("Subscription {} was removed by Graph. Replacing it.", subscription.getId());
+            replaceSubscription(subscription);
+        });
+    }
+
+    private void onRenewer(String subscriptionId, SubscriptionTask task) {
+        if (renewer == null) {
+            logger.warn("Ignoring lifecycle event for subscription {}: renewal has not started.", subscriptionId);
+            return;
+        }
+        renewer.execute(() -> {
+            try {
+                Optional<Subscription> subscription = subscriptionRepository.findById(subscriptionId)
+                        .filter(s -> "active".equals(s.getStatus()));
+                if (subscription.isEmpty()) {
+                    logger.info("Ignoring lifecycle event for unknown or inactive subscription {}.", subscriptionId);
+                    return;
+                }
+                task.run(subscription.get());
+            } catch (Exception e) {
+                logger.error("Failed to handle lifecycle event for subscription {}: {}", subscriptionId, e.getMessage(), e);
+            }
+        });
+    }
+
+    private void renewalRound() {
+        try {
+            reloadClientStates();
+            // Every instance computes the same round start, and only one can claim it
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime round = now.truncatedTo(ChronoUnit.HOURS)
+                    .plusMinutes(now.getMinute() - now.getMinute() % RENEWAL_INTERVAL_MINUTES);
+            if (leaseRepository.claim(RENEWAL_LEASE, owner, round, RENEWAL_LEASE_SECONDS) == 0) {
+                return;
+            }
+            try {
+                for (Subscription subscription : subscriptionRepository.findByStatusAndExpiresAtBefore("active", now.plus(renewBefore))) {
+                    renew(subscription);
+                }
+            } finally {
+                leaseRepository.release(RENEWAL_LEASE, owner);
+            }
+        } catch (Exception e) {
+            logger.error("Subscription renewal round failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void renew(Subscription subscription) {
+        try {
+            LocalDateTime expiresAt = LocalDateTime.now().plus(lifetime);
+            ObjectNode request = objectMapper.createObjectNode();
+            request.put("expirationDateTime", toGraphTime(expiresAt));
+            GraphClient.GraphResponse response = graphClient.send("PATCH",
+                    graphClient.getBaseUrl() + "/subscriptions/" + subscription.getId(),
+                    tokenStore.getAccessToken(subscription.getTenantId()), objectMapper.writeValueAsBytes(request));
+
+            if (response.statusCode() == 404) {
+                logger.warn("Subscription {} no longer exists in Graph. Replacing it.", subscription.getId());
+                replaceSubscription(subscription);
+                return;
+            }
+            if (!response.isSuccessful()) {
+                logger.error("Failed to renew subscription {}, retrying next round: status {}: {}",
+                        subscription.getId(), response.statusCode(), response.bodyAsString());
+                return;
+            }
+
+            JsonNode renewed = objectMapper.readTree(response.body());
+            subscription.setExpiresAt(renewed.hasNonNull("expirationDateTime") ? fromGraphTime(renewed.get("expirationDateTime").asText()) : expiresAt);
+            subscription.setRenewedAt(LocalDateTime.now());
+            subscriptionRepository.save(subscription);
+            logger.info("Renewed subscription {} until {}.", subscription.getId(), subscription.getExpiresAt());
+        } catch (Exception e) {
+            logger.error("Failed to renew subscription {}, retrying next round: {}", subscription.getId(), e.getMessage(), e);
+        }
+    }
+
+    private void replaceSubscription(Subscription subscription) throws IOException {
+        subscription.setStatus("expired");
+        subscriptionRepository.save(subscription);
+        create(subscription.getTenantId(), subscription.getResource(), subscription.getChangeType());
+        reloadClientStates();
+    }
+
+    private boolean reloadAllowed() {
+        long last = lastReloadNanos.get();
+        long now = System.nanoTime();
+        return now - last >= MIN_RELOAD_INTERVAL_NANOS && lastReloadNanos.compareAndSet(last, now);
+    }
+
+    private synchronized void reloadClientStates() {
+        Map<String, byte[]> loaded = new HashMap<>();
+        for (Subscription subscription : findActive()) {
+            loaded.put(subscription.getId(), subscription.getClientState().getBytes(StandardCharsets.UTF_8));
+        }
+        clientStates = Map.copyOf(loaded);
+    }
+
+    private synchronized void addClientState(Subscription subscription) {
+        Map<String, byte[]> updated = new HashMap<>(clientStates);
+        updated.put(subscription.getId(), subscription.getClientState().getBytes(StandardCharsets.UTF_8));
+        clientStates = Map.copyOf(updated);
+    }
+
+    private interface SubscriptionTask {
+        void run(Subscription subscription) throws IOException;
+    }
+
+    private static String toGraphTime(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    private static LocalDateTime fromGraphTime(String time) {
+        return OffsetDateTime.parse(time).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown-host";
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package se.loelindstrom.entrastuff.services;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.TenantSecretCipher;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.entities.Tenant;
+import se.loelindstrom.entrastuff.repositories.TenantRepository;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tenants the application manages, registered in the tenants table. The tenant configured in entra.* is
+ * registered on startup and is the default wherever no tenant is given. Each enabled tenant gets credentials in
+ * the {@link TokenStore}, so tokens are cached per tenant, and a {@link TenantThrottle} for its Graph requests.
+ * <p>
+ * Enabled tenants are cached in memory. The cache is reloaded on registration and when an unknown tenant is
+ * asked for, so tenants registered on other instances are picked up. Reloading unregisters the credentials of
+ * tenants that are no longer enabled.
+ */
+@Service
+public class TenantRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(TenantRegistry.class);
+    private final TenantRepository tenantRepository;
+    private final TokenStore tokenStore;
+    private final TenantSecretCipher secretCipher;
+    private final String defaultTenantId;
+    private final String defaultClientId;
+    private final int defaultMaxConcurrentJobs;
+    private final int defaultMaxGraphRequests;
+    // Credentials handed to the TokenStore, so unchanged tenants keep their cached tokens on reload
+    private final Map<String, String> registeredCredentials = new HashMap<>();
+    private final Map<String, TenantThrottle> throttles = new ConcurrentHashMap<>();
+    // Replaced as a whole on reload, so lookups never lock
+    private volatile Map<String, Tenant> tenants = Map.of();
+
+    public TenantRegistry(
+            TenantRepository tenantRepository,
+            TokenStore tokenStore,
+            TenantSecretCipher secretCipher,
+            @Value("${entra.tenant-id}") String defaultTenantId,
+            @Value("${entra.client-id}") String defaultClientId,
+            @Value("${tenants.default-max-concurrent-jobs:2}") int defaultMaxConcurrentJobs,
+            @Value("${tenants.default-max-graph-requests:8}") int defaultMaxGraphRequests
+    ) {
+        this.tenantRepository = tenantRepository;
+        this.tokenStore = tokenStore;
+        this.secretCipher = secretCipher;
+        this.defaultTenantId = defaultTenantId;
+        this.defaultClientId = defaultClientId;
+        this.defaultMaxConcurrentJobs = defaultMaxConcurrentJobs;
+        this.defaultMaxGraphRequests = defaultMaxGraphRequests;
+    }
+
+    @PostConstruct
+    public void init() {
+        // The configured tenant's secret stays in configuration; TokenStore registered it already
+        Tenant configured = tenantRepository.findById(defaultTenantId).orElseGet(() -> newTenant(defaultTenantId));
+        configured.setClientId(defaultClientId);
+        configured.setClientSecret(null);
+        configured.setEnabled(true);
+        tenantRepository.save(configured);
+        reload();
+        logger.info("Loaded {} enabled tenants.", tenants.size());
+    }
+
+    public String getDefaultTenantId() {
+        return defaultTenantId;
+    }
+
+    public List<Tenant> findAll() {
+        return tenantRepository.findAll();
+    }
+
+    public List<Tenant> findEnabled() {
+        return List.copyOf(tenants.values());
+    }
+
+    /**
+     * Returns the given tenant id, or the default tenant's for null, if that tenant is registered and enabled.
+     */
+    public String resolve(String tenantId) {
+        String id = tenantId == null || tenantId.isBlank() ? defaultTenantId : tenantId;
+        if (!tenants.containsKey(id)) {
+            reload();
+        }
+        if (!tenants.containsKey(id)) {
+            throw new IllegalArgumentException("Tenant " + id + " is not registered or is disabled.");
+        }
+        return id;
+    }
+
+    public int maxConcurrentJobs(String tenantId) {
+        Tenant tenant = tenants.get(tenantId);
+        return tenant != null ? tenant.getMaxConcurrentJobs() : defaultMaxConcurrentJobs;
+    }
+
+    public TenantThrottle throttle(String tenantId) {
+        return throttles.computeIfAbsent(tenantId, id -> {
+            Tenant tenant = tenants.get(id);
+            return new TenantThrottle(tenant != null ? tenant.getMaxGraphRequests() : defaultMaxGraphRequests);
+        });
+    }
+
+    /**
+     * Registers a tenant, or updates its registration. Limits left null keep their current or default values.
+     */
+    public synchronized Tenant register(String tenantId, String displayName, String clientId, String clientSecret,
+                                        Integer maxConcurrentJobs, Integer maxGraphRequests) {
+        if (tenantId.equals(defaultTenantId)) {
+            throw new IllegalArgumentException("Tenant " + tenantId + " is configured in entra.* and can't be registered.");
+        }
+        if ((maxConcurrentJobs != null && maxConcurrentJobs < 1) || (maxGraphRequests != null && maxGraphRequests < 1)) {
+            throw new IllegalArgumentException("Tenant limits must be at least 1.");
+        }
+        if (!secretCipher.isConfigured()) {
+            throw new IllegalStateException("Set tenants.secret-key to register tenants.");
+        }
+        Tenant tenant = tenantRepository.findById(tenantId).orElseGet(() -> newTenant(tenantId));
+        tenant.setDisplayName(displayName);
+        tenant.setClientId(clientId);
+        tenant.setClientSecret(secretCipher.encrypt(clientSecret));
+        if (maxConcurrentJobs != null) {
+            tenant.setMaxConcurrentJobs(maxConcurrentJobs);
+        }
+        if (maxGraphRequests != null) {
+            tenant.setMaxGraphRequests(maxGraphRequests);
+        }
+        tenant.setEnabled(true);
+        tenant = tenantRepository.save(tenant);
+        reload();
+        logger.info("Registered tenant {} ({}).", tenantId, displayName);
+        return tenant;
+    }
+
+    public synchronized void disable(String tenantId) {
+        if (tenantId.equals(defaultTenantId)) {
+            throw new IllegalArgumentException("Tenant " + tenantId + " is configured in entra.* and can't be disabled.");
+        }
+        Tenant tenant = tenantRepository.findById(tenantId)
+                .orElseThrow(() -> new NoSuchElementException("Tenant " + tenantId + " is not registered."));
+        tenant.setEnabled(false);
+        tenantRepository.save(tenant);
+        reload();
+        logger.info("Disabled tenant {}.", tenantId);
+    }
+
+    private synchronized void reload() {
+        Map<String, Tenant> loaded = new HashMap<>();
+        for (Tenant tenant : tenantRepository.findByEnabledTrue()) {
+            if (tenant.getClientSecret() != null) {
+                String credentials = tenant.getClientId() + ":" + tenant.getClientSecret();
+                if (!credentials.equals(registeredCredentials.get(tenant.getId()))) {
+                    try {
+                        tokenStore.registerTenant(tenant.getId(), tenant.getClientId(), secretCipher.decrypt(tenant.getClientSecret()));
+                        registeredCredentials.put(tenant.getId(), credentials);
+                    } catch (IllegalStateException e) {
+                        logger.error("Skipping tenant {}: {}", tenant.getId(), e.getMessage());
+                        continue;
+                    }
+                }
+            }
+            TenantThrottle throttle = throttles.get(tenant.getId());
+            if (throttle != null && throttle.getMaxRequests() != tenant.getMaxGraphRequests()) {
+                throttles.remove(tenant.getId());
+            }
+            loaded.put(tenant.getId(), tenant);
+        }
+        tenants = Map.copyOf(loaded);
+
+        // Disabled tenants stop refreshing tokens, and their queued jobs fail instead of getting one
+        registeredCredentials.keySet().removeIf(tenantId -> {
+            if (loaded.containsKey(tenantId)) {
+                return false;
+            }
+            tokenStore.unregisterTenant(tenantId);
+            throttles.remove(tenantId);
+            return true;
+        });
+    }
+
+    private Tenant newTenant(String tenantId) {
+        Tenant tenant = new Tenant();
+        tenant.setId(tenantId);
+        tenant.setMaxConcurrentJobs(defaultMaxConcurrentJobs);
+        tenant.setMaxGraphRequests(defaultMaxGraphRequests);
+        tenant.setCreatedAt(LocalDateTime.now());
+        return tenant;
+    }
+}
@@ -0,0 +1,73 @@
+package se.loelindstrom.entrastuff.services;
+
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Graph request budget of one tenant, shared by all of its jobs. It bounds the tenant's requests in flight,
+ * and when Graph throttles the tenant every request of that tenant waits out the Retry-After, while other
+ * tenants, which Graph throttles separately, carry on.
+ */
+public class TenantThrottle {
+    private final int maxRequests;
+    private final Semaphore permits;
+    private final AtomicLong pausedUntilNanos = new AtomicLong(System.nanoTime());
+
+    public TenantThrottle(int maxRequests) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.permits = new Semaphore(this.maxRequests, true);
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Runs a Graph call within the budget. A throttled {@link GraphApiException} pauses the tenant before it is rethrown.
+     */
+    public <T> T call(GraphCall<T> call) throws IOException {
+        acquire();
+        try {
+            return call.run();
+        } catch (GraphApiException e) {
+            if (RestoreEngine.isThrottled(e.getStatusCode())) {
+                pause(RestoreEngine.parseRetryAfter(e.getRetryAfter()));
+            }
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Holds back the tenant's requests for the given time, e.g. after throttled $batch sub-requests.
+     */
+    public void pause(Duration retryAfter) {
+        long until = System.nanoTime() + retryAfter.toNanos();
+        pausedUntilNanos.accumulateAndGet(until, (current, next) -> next - current > 0 ? next : current);
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            long wait;
+            while ((wait = pausedUntilNanos.get() - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the tenant's Graph budget.");
+        }
+    }
+
+    @FunctionalInterface
+    public interface GraphCall<T> {
+        T run() throws IOException;
+    }
+}
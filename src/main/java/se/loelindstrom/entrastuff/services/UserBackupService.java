@@ -0,0 +1,401 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import se.loelindstrom.entrastuff.config.BackupProfiles;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.dtos.BackupSummaryDTO;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.entities.DeltaToken;
+import se.loelindstrom.entrastuff.exceptions.GraphApiException;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+import se.loelindstrom.entrastuff.repositories.DeltaTokenRepository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Backs up Entra users page by page. Each Graph page is stream-parsed and the users are
+ * written to the backup store right away, so heap use is bounded by the page size and not the tenant size.
+ * <p>
+ * Full backups walk /users and start a new delta chain. Incremental backups walk /users/delta from the stored
+ * deltaLink and only store changed and removed users, linked to the previous backup in the chain.
+ * <p>
+ * The attributes and page size come from the {@link BackupProfiles} profile for the backup mode.
+ * With backup.segments above 1, full backups split the users into userPrincipalName ranges
+ * ({@link UserSegmentPlanner}) and walk the ranges' nextLink chains concurrently into the same backup.
+ * Every page request goes through the tenant's {@link TenantThrottle}.
+ * <p>
+ * Full backups also run the {@link ResourceCollector}s listed in backup.resources (e.g. groups and memberships)
+ * concurrently with the users, into the same backup. Incremental backups only track users, so other resources
+ * of a backup chain are as of its base full backup.
+ * <p>
+ * Metrics: backup.pages and backup.users count what is fetched, backup.duration, backup.size.users and
+ * backup.size.bytes describe finished backups, and graph.throttle.wait the Retry-After time slept on throttled pages.
+ */
+@Service
+public class UserBackupService {
+    private static final Logger logger = LoggerFactory.getLogger(UserBackupService.class);
+    public static final String DATA_TYPE = "user";
+    private final GraphPageParser pageParser;
+    private final BackupStore backupStore;
+    private final DeltaTokenRepository deltaTokenRepository;
+    private final BackupRepository backupRepository;
+    private final BackupProfiles backupProfiles;
+    private final TokenStore tokenStore;
+    private final GraphClient graphClient;
+    private final UserSegmentPlanner segmentPlanner;
+    private final TenantRegistry tenantRegistry;
+    private final List<ResourceCollector> resourceCollectors;
+    private final MeterRegistry meterRegistry;
+    private final int segments;
+    private final int segmentParallelism;
+    private final int maxAttempts;
+
+    public UserBackupService(
+            GraphPageParser pageParser,
+            BackupStore backupStore,
+            DeltaTokenRepository deltaTokenRepository,
+            BackupRepository backupRepository,
+            BackupProfiles backupProfiles,
+            TokenStore tokenStore,
+            GraphClient graphClient,
+            UserSegmentPlanner segmentPlanner,
+            TenantRegistry tenantRegistry,
+            List<ResourceCollector> collectors,
+            MeterRegistry meterRegistry,
+            @Value("${backup.resources:}") List<String> resources,
+            @Value("${backup.segments:1}") int segments,
+            @Value("${backup.segment-parallelism:8}") int segmentParallelism,
+            @Value("${backup.max-attempts:5}") int maxAttempts
+    ) {
+        this.pageParser = pageParser;
+        this.backupStore = backupStore;
+        this.deltaTokenRepository = deltaTokenRepository;
+        this.backupRepository = backupRepository;
+        this.backupProfiles = backupProfiles;
+        this.tokenStore = tokenStore;
+        this.tenantRegistry = tenantRegistry;
+        this.graphClient = graphClient;
+        this.segmentPlanner = segmentPlanner;
+        this.resourceCollectors = new ArrayList<>();
+        for (String resource : resources) {
+            ResourceCollector collector = collectors.stream()
+                    .filter(candidate -> candidate.itemType().equals(resource.trim()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Unknown backup resource " + resource + "."));
+            this.resourceCollectors.add(collector);
+        }
+        this.resourceCollectors.sort(Comparator.comparingInt(ResourceCollector::restoreOrder));
+        this.meterRegistry = meterRegistry;
+        this.segments = segments;
+        this.segmentParallelism = segmentParallelism;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Stores every user and starts a new delta chain from this backup, so incremental backups no longer
+     * build on (and retention no longer keeps) the previous chain. The deltaLink is taken before the walk,
+     * so changes made while it runs are repeated by the next incremental round rather than lost. When the
+     * incremental profile differs from the full one, its deltas can't be applied to this backup, so the
+     * stored deltaLink is dropped instead and the next incremental backup starts a base of its own.
+     */
+    public BackupSummaryDTO backupUsers(String tenantId, JobProgress progress) throws IOException {
+        BackupProfiles.Profile profile = backupProfiles.forMode("full");
+        boolean startsChain = profile.getName().equals(backupProfiles.forMode("incremental").getName());
+        String deltaLink = startsChain ? latestDeltaLink(tenantId, profile) : null;
+
+        BackupWriter writer = backupStore.begin(tenantId, DATA_TYPE, "entra", "full", null, profile.getName());
+        PageWalk users = segments <= 1
+                ? () -> walkPages(profile.usersUrl(graphClient.getBaseUrl()), profile, writer, progress)
+                : () -> walkSegments(profile, writer, progress);
+        BackupRun run = runBackup(writer, profile, progress, () -> walkWithResources(users, writer));
+
+        if (startsChain) {
+            saveDeltaLink(tenantId, deltaLink, writer.getBackupId());
+        } else {
+            deltaTokenRepository.findByTenantIdAndDataType(tenantId, DATA_TYPE).ifPresent(deltaTokenRepository::delete);
+        }
+        return run.summary();
+    }
+
+    /**
+     * Stores only users changed since the last delta round. Without a usable deltaLink (first run,
+     * or Graph answered 410 Gone because the token expired) an initial delta round is run instead,
+     * which returns every user and becomes a new full base backup. The same happens when the
+     * incremental profile has changed, since the deltaLink keeps the $select of the round that created it.
+     */
+    public BackupSummaryDTO backupUsersIncremental(String tenantId, JobProgress progress) throws IOException {
+        BackupProfiles.Profile profile = backupProfiles.forMode("incremental");
+        Optional<DeltaToken> deltaToken = deltaTokenRepository.findByTenantIdAndDataType(tenantId, DATA_TYPE);
+        if (deltaToken.isEmpty()) {
+            logger.info("No deltaLink stored for tenant {}. Running an initial delta round as a full backup.", tenantId);
+            return runDeltaRound(tenantId, profile.deltaUrl(graphClient.getBaseUrl()), "full", null, profile, progress);
+        }
+
+        String chainProfile = backupRepository.findById(deltaToken.get().getBackupId())
+                .map(Backup::getProfile)
+                .orElse(null);
+        if (!Objects.equals(chainProfile, profile.getName())) {
+            logger.info("Incremental backups now use profile {} instead of {}. Running an initial delta round as a full backup.",
+                    profile.getName(), chainProfile);
+            return runDeltaRound(tenantId, profile.deltaUrl(graphClient.getBaseUrl()), "full", null, profile, progress);
+        }
+
+        try {
+            return runDeltaRound(tenantId, deltaToken.get().getDeltaLink(), "incremental", deltaToken.get().getBackupId(), profile, progress);
+        } catch (GraphApiException e) {
+            if (e.getStatusCode() != 410) {
+                throw e;
+            }
+            logger.warn("Stored deltaLink for tenant {} has expired. Running an initial delta round as a full backup.", tenantId);
+            return runDeltaRound(tenantId, profile.deltaUrl(graphClient.getBaseUrl()), "full", null, profile, progress);
+        }
+    }
+
+    private BackupSummaryDTO runDeltaRound(String tenantId, String startUrl, String mode, Long parentBackupId, BackupProfiles.Profile profile,
+                                           JobProgress progress) throws IOException {
+        BackupWriter writer = backupStore.begin(tenantId, DATA_TYPE, "entra", mode, parentBackupId, profile.getName());
+        if (parentBackupId != null) {
+            writer.getBackup().setSourceDeltaLink(startUrl);
+        }
+        BackupRun run = runBackup(writer, profile, progress, () -> walkPages(startUrl, profile, writer, progress));
+        if (run.deltaLink() == null) {
+            throw new IllegalStateException("Graph delta round for backup " + writer.getBackupId() + " ended without a deltaLink.");
+        }
+
+        saveDeltaLink(tenantId, run.deltaLink(), writer.getBackupId());
+        return run.summary();
+    }
+
+    private void saveDeltaLink(String tenantId, String deltaLink, Long backupId) {
+        DeltaToken deltaToken = deltaTokenRepository.findByTenantIdAndDataType(tenantId, DATA_TYPE)
+                .orElseGet(DeltaToken::new);
+        deltaToken.setTenantId(tenantId);
+        deltaToken.setDataType(DATA_TYPE);
+        deltaToken.setDeltaLink(deltaLink);
+        deltaToken.setBackupId(backupId);
+        deltaToken.setUpdatedAt(LocalDateTime.now());
+        deltaTokenRepository.save(deltaToken);
+    }
+
+    // Graph answers $deltatoken=latest with no users and a deltaLink for the changes from now on
+    private String latestDeltaLink(String tenantId, BackupProfiles.Profile profile) throws IOException {
+        String url = profile.latestDeltaUrl(graphClient.getBaseUrl());
+        while (url != null) {
+            GraphPageParser.PageResult page = fetchPage(url, profile, tenantId, item -> {
+            });
+            if (page.deltaLink() != null) {
+                return page.deltaLink();
+            }
+            url = page.nextLink();
+        }
+        throw new IllegalStateException("Graph returned no deltaLink for the latest users delta of tenant " + tenantId + ".");
+    }
+
+    private BackupRun runBackup(BackupWriter writer, BackupProfiles.Profile profile, JobProgress progress, PageWalk walk) throws IOException {
+        long start = System.nanoTime();
+        progress.setBackupId(writer.getBackupId());
+        try {
+            WalkResult result = walk.run();
+            int pageCount = result.pageCount();
+
+            writer.complete();
+            long durationMs = (System.nanoTime() - start) / 1_000_000;
+            recordBackup(writer.getBackup(), "completed", start);
+            logger.info("Saved {} backup {} with {} users and {} items from {} pages in {} ms.",
+                    writer.getBackup().getMode(), writer.getBackupId(), writer.getUserCount(), writer.getWrittenCount(), pageCount, durationMs);
+
+            BackupSummaryDTO summary = new BackupSummaryDTO(
+                    writer.getBackupId(),
+                    writer.getBackup().getTenantId(),
+                    writer.getBackup().getMode(),
+                    writer.getBackup().getParentBackupId(),
+                    profile.getName(),
+                    writer.getUserCount(),
+                    pageCount,
+                    durationMs
+            );
+            return new BackupRun(summary, result.deltaLink());
+        } catch (IOException | RuntimeException e) {
+            writer.fail();
+            recordBackup(writer.getBackup(), "failed", start);
+            throw e;
+        }
+    }
+
+    private void recordBackup(Backup backup, String status, long startNanos) {
+        Timer.builder("backup.duration")
+                .tag("mode", backup.getMode())
+                .tag("status", status)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if ("completed".equals(status)) {
+            DistributionSummary.builder("backup.size.users")
+                    .tag("mode", backup.getMode())
+                    .register(meterRegistry)
+                    .record(backup.getUserCount());
+            DistributionSummary.builder("backup.size.bytes")
+                    .baseUnit("bytes")
+                    .tag("mode", backup.getMode())
+                    .tag("format", backup.getFormat())
+                    .register(meterRegistry)
+                    .record(backup.getByteSize());
+        }
+    }
+
+    // Runs every resource collector on its own virtual thread while the users are walked
+    private WalkResult walkWithResources(PageWalk users, BackupWriter writer) throws IOException {
+        if (resourceCollectors.isEmpty()) {
+            return users.run();
+        }
+        List<Future<Long>> futures = new ArrayList<>(resourceCollectors.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (ResourceCollector collector : resourceCollectors) {
+                futures.add(executor.submit(() -> collectResources(collector, writer)));
+            }
+            WalkResult result;
+            try {
+                result = users.run();
+            } catch (IOException | RuntimeException e) {
+                executor.shutdownNow();
+                throw e;
+            }
+            for (Future<Long> future : futures) {
+                UserSegmentPlanner.await(future, executor);
+            }
+            return result;
+        }
+    }
+
+    private long collectResources(ResourceCollector collector, BackupWriter writer) throws IOException {
+        long start = System.nanoTime();
+        LongAdder count = new LongAdder();
+        collector.collect(writer.getBackup().getTenantId(), item -> {
+            if (item instanceof ObjectNode object) {
+                object.put(ResourceCollector.ITEM_TYPE_FIELD, collector.itemType());
+                writer.write(object);
+                count.increment();
+            }
+        });
+        meterRegistry.counter("backup.resources", "type", collector.itemType()).increment(count.sum());
+        logger.info("Backed up {} {} items to backup {} in {} ms.",
+                count.sum(), collector.itemType(), writer.getBackupId(), (System.nanoTime() - start) / 1_000_000);
+        return count.sum();
+    }
+
+    // Follows one nextLink chain to its end
+    private WalkResult walkPages(String startUrl, BackupProfiles.Profile profile, BackupWriter writer, JobProgress progress) throws IOException {
+        int pageCount = 0;
+        String deltaLink = null;
+        String url = startUrl;
+        while (url != null) {
+            pageCount++;
+            logger.debug("Call number {} to users API.", pageCount);
+            GraphPageParser.PageResult page = fetchPage(url, profile, writer.getBackup().getTenantId(), writer::write);
+            progress.pageFetched(page.itemCount());
+            meterRegistry.counter("backup.pages", "mode", writer.getBackup().getMode()).increment();
+            meterRegistry.counter("backup.users", "mode", writer.getBackup().getMode()).increment(page.itemCount());
+
+            url = page.nextLink();
+            deltaLink = page.deltaLink();
+            String beginMsg = url != null ? "Next page url: " : "No more pages.";
+            logger.debug("{} {}", beginMsg, url != null ? url : "");
+        }
+        return new WalkResult(pageCount, deltaLink);
+    }
+
+    // Walks every segment's chain on its own virtual thread, at most segmentParallelism at once
+    private WalkResult walkSegments(BackupProfiles.Profile profile, BackupWriter writer, JobProgress progress) throws IOException {
+        UserSegmentPlanner.SegmentPlan plan = segmentPlanner.plan(writer.getBackup().getTenantId(), segments, segmentParallelism);
+        if (plan.userCount() != null) {
+            progress.setTotalEstimate(plan.userCount());
+        }
+        logger.info("Fetching about {} users for backup {} in {} segments, {} at a time.",
+                plan.userCount(), writer.getBackupId(), plan.segments().size(), segmentParallelism);
+
+        Semaphore permits = new Semaphore(segmentParallelism);
+        List<Future<WalkResult>> futures = new ArrayList<>(plan.segments().size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (UserSegmentPlanner.UserSegment segment : plan.segments()) {
+                String startUrl = profile.usersUrl(graphClient.getBaseUrl(), segment.filter());
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return walkPages(startUrl, profile, writer, progress);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            int pageCount = 0;
+            for (Future<WalkResult> future : futures) {
+                pageCount += UserSegmentPlanner.await(future, executor).pageCount();
+            }
+            return new WalkResult(pageCount, null);
+        }
+    }
+
+    /**
+     * Fetches one page, retrying when Graph throttles. A throttled response fails before its body is
+     * parsed, so no items of the page have been written when it is retried.
+     * nextLinks and deltaLinks keep $top and $select, but delta pages are sized by the Prefer header on every request.
+     */
+    private GraphPageParser.PageResult fetchPage(String url, BackupProfiles.Profile profile, String tenantId, ItemHandler handler) throws IOException {
+        Map<String, String> headers = Map.of("Prefer", "odata.maxpagesize=" + profile.getPageSize());
+        TenantThrottle throttle = tenantRegistry.throttle(tenantId);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return throttle.call(() -> graphClient.get(url, tokenStore.getAccessToken(tenantId), headers,
+                        body -> pageParser.parse(body, handler)));
+            } catch (GraphApiException e) {
+                if (!RestoreEngine.isThrottled(e.getStatusCode()) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                Duration retryAfter = RestoreEngine.parseRetryAfter(e.getRetryAfter());
+                logger.warn("Users page was throttled with status {}. Retrying in {} (attempt {} of {}).",
+                        e.getStatusCode(), retryAfter, attempt, maxAttempts);
+                meterRegistry.timer("graph.throttle.wait", "operation", "backup").record(retryAfter);
+                try {
+                    Thread.sleep(retryAfter);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry a users page.");
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface PageWalk {
+        WalkResult run() throws IOException;
+    }
+
+    private record WalkResult(int pageCount, String deltaLink) {
+    }
+
+    private record BackupRun(BackupSummaryDTO summary, String deltaLink) {
+    }
+}
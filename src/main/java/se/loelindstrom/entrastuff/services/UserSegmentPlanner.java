@@ -0,0 +1,191 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits the user space into contiguous userPrincipalName ranges of roughly equal size, so a full backup
+ * can fetch them concurrently. Range sizes are estimated with $count on startswith prefixes; a prefix holding
+ * clearly more than one segment's share is split on its next character. The ranges have open ends and share their
+ * boundaries, so every user falls in exactly one of them whatever characters its UPN contains.
+ */
+@Component
+public class UserSegmentPlanner {
+    private static final Logger logger = LoggerFactory.getLogger(UserSegmentPlanner.class);
+    // Characters UPNs usually start with, in the order Graph compares them
+    private static final String ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz";
+    private static final int MAX_PREFIX_LENGTH = 12;
+    // Below about a full page per segment, extra segments only add requests
+    private static final long MIN_SEGMENT_SIZE = 1000;
+    private final GraphClient graphClient;
+    private final TokenStore tokenStore;
+    private final TenantRegistry tenantRegistry;
+
+    public UserSegmentPlanner(GraphClient graphClient, TokenStore tokenStore, TenantRegistry tenantRegistry) {
+        this.graphClient = graphClient;
+        this.tokenStore = tokenStore;
+        this.tenantRegistry = tenantRegistry;
+    }
+
+    /**
+     * Plans up to {@code segments} ranges, running at most {@code parallelism} count requests at once.
+     */
+    public SegmentPlan plan(String tenantId, int segments, int parallelism) throws IOException {
+        if (segments <= 1) {
+            return new SegmentPlan(List.of(new UserSegment(null, null)), null);
+        }
+
+        TreeMap<String, Long> counts = new TreeMap<>(countPrefixes(tenantId, children(""), parallelism));
+        long total = counts.values().stream().mapToLong(Long::longValue).sum();
+        segments = (int) Math.min(segments, total / MIN_SEGMENT_SIZE);
+        if (segments <= 1) {
+            return new SegmentPlan(List.of(new UserSegment(null, null)), total);
+        }
+        long target = (total + segments - 1) / segments;
+
+        // Split prefixes that are too large for one segment until they fit or get too long. Allowing 50% over
+        // the target saves a round of 36 counts per prefix that is only slightly too large
+        long limit = target + target / 2;
+        List<String> oversized = oversized(counts, limit);
+        while (!oversized.isEmpty()) {
+            List<String> children = new ArrayList<>();
+            for (String prefix : oversized) {
+                counts.remove(prefix);
+                children.addAll(children(prefix));
+            }
+            counts.putAll(countPrefixes(tenantId, children, parallelism));
+            oversized = oversized(counts, limit);
+        }
+
+        // Cut before the prefix whose midpoint passes the next ideal boundary, k * total / segments
+        List<String> boundaries = new ArrayList<>();
+        long cumulative = 0;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            int next = boundaries.size() + 1;
+            if (next < segments && cumulative > 0 && cumulative + entry.getValue() / 2 >= next * total / segments) {
+                boundaries.add(entry.getKey());
+            }
+            cumulative += entry.getValue();
+        }
+
+        List<UserSegment> plan = new ArrayList<>(boundaries.size() + 1);
+        String lower = null;
+        for (String boundary : boundaries) {
+            plan.add(new UserSegment(lower, boundary));
+            lower = boundary;
+        }
+        plan.add(new UserSegment(lower, null));
+        logger.debug("Planned {} segments for about {} users from {} prefix counts.", plan.size(), total, counts.size());
+        return new SegmentPlan(plan, total);
+    }
+
+    private static List<String> oversized(TreeMap<String, Long> counts, long limit) {
+        return counts.entrySet().stream()
+                .filter(entry -> entry.getValue() > limit && entry.getKey().length() < MAX_PREFIX_LENGTH)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    private static List<String> children(String prefix) {
+        List<String> children = new ArrayList<>(ALPHABET.length());
+        for (char c : ALPHABET.toCharArray()) {
+            children.add(prefix + c);
+        }
+        return children;
+    }
+
+    private Map<String, Long> countPrefixes(String tenantId, List<String> prefixes, int parallelism) throws IOException {
+        Semaphore permits = new Semaphore(parallelism);
+        Map<String, Future<Long>> futures = new TreeMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String prefix : prefixes) {
+                futures.put(prefix, executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return countPrefix(tenantId, prefix);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+                counts.put(entry.getKey(), await(entry.getValue(), executor));
+            }
+            return counts;
+        }
+    }
+
+    // Counting users needs an advanced query: ConsistencyLevel: eventual, answered as a plain number
+    private long countPrefix(String tenantId, String prefix) throws IOException {
+        String filter = "startswith(userPrincipalName,'" + prefix + "')";
+        String url = graphClient.getBaseUrl() + "/users/$count?$filter="
+                + URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20");
+        Map<String, String> headers = Map.of("ConsistencyLevel", "eventual", "Accept", "text/plain");
+        return tenantRegistry.throttle(tenantId).call(() -> graphClient.get(url, tokenStore.getAccessToken(tenantId), headers,
+                body -> Long.parseLong(new String(body.readAllBytes(), StandardCharsets.UTF_8).trim())));
+    }
+
+    // Returns the result of a task, or cancels the rest of the executor's tasks and rethrows its failure
+    static <T> T await(Future<T> future, ExecutorService executor) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Graph requests.");
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException("Graph request task failed.", e.getCause());
+        }
+    }
+
+    /**
+     * The planned ranges and the number of users counted while planning, null if nothing was counted.
+     */
+    public record SegmentPlan(List<UserSegment> segments, Long userCount) {
+    }
+
+    /**
+     * A userPrincipalName range; a null bound means the range is open on that side. No UPN can equal
+     * a bound, since bounds are prefixes without an @, so ge/le on both sides never overlap.
+     */
+    public record UserSegment(String lowerBound, String upperBound) {
+        public String filter() {
+            if (lowerBound == null && upperBound == null) {
+                return null;
+            }
+            if (lowerBound == null) {
+                return "userPrincipalName le '" + upperBound + "'";
+            }
+            if (upperBound == null) {
+                return "userPrincipalName ge '" + lowerBound + "'";
+            }
+            return "userPrincipalName ge '" + lowerBound + "' and userPrincipalName le '" + upperBound + "'";
+        }
+    }
+}
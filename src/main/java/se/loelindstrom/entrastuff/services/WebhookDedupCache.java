@@ -0,0 +1,108 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recognizes webhook notifications Graph redelivers. A notification is keyed on its subscription and its id, or
+ * a hash of the whole notification when Graph sends no id, and a key seen within webhook.dedup.window-seconds is
+ * a redelivery. Two changes of one user are separate notifications even though their resourceData is the same
+ * (user resourceData only holds the id), so they are never taken for each other.
+ * Keys are kept in insertion order, so expired keys are dropped from the head, and at most
+ * webhook.dedup.max-entries are kept; under more load the oldest keys are forgotten early.
+ * <p>
+ * The cache is per instance. Redeliveries reaching another instance are still stored, and replays of the
+ * spool are deduplicated by notification id in {@link AuditLogWriter}.
+ */
+@Component
+public class WebhookDedupCache {
+    private final ObjectMapper objectMapper;
+    private final long windowNanos;
+    private final int maxEntries;
+    // Key to the time it expires, in insertion order. Guarded by this
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+
+    public WebhookDedupCache(
+            ObjectMapper objectMapper,
+            @Value("${webhook.dedup.window-seconds:60}") long windowSeconds,
+            @Value("${webhook.dedup.max-entries:100000}") int maxEntries
+    ) {
+        this.objectMapper = objectMapper;
+        this.windowNanos = windowSeconds * 1_000_000_000L;
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return windowNanos > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Returns the keys of the events that were not seen within the window and records them, in event order.
+     * Events that are redeliveries get a null key. Pass the keys to {@link #forget} if the events are not stored after all.
+     */
+    public List<String> claim(List<JsonNode> events) throws IOException {
+        List<String> keys = new ArrayList<>(events.size());
+        for (JsonNode event : events) {
+            keys.add(key(event));
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            // Expired keys are removed first, so a key put again moves to the tail
+            expire(now);
+            for (int i = 0; i < keys.size(); i++) {
+                if (seen.containsKey(keys.get(i))) {
+                    keys.set(i, null);
+                } else {
+                    seen.put(keys.get(i), now + windowNanos);
+                }
+            }
+            while (seen.size() > maxEntries) {
+                Iterator<String> oldest = seen.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return keys;
+    }
+
+    public synchronized void forget(List<String> keys) {
+        for (String key : keys) {
+            if (key != null) {
+                seen.remove(key);
+            }
+        }
+    }
+
+    // Keys expire in insertion order, since every key gets the same window
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> entries = seen.entrySet().iterator();
+        while (entries.hasNext() && entries.next().getValue() - now <= 0) {
+            entries.remove();
+        }
+    }
+
+    private String key(JsonNode event) throws IOException {
+        String subscriptionId = event.path("subscriptionId").asText();
+        if (event.hasNonNull("id")) {
+            return subscriptionId + "|" + event.get("id").asText();
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(objectMapper.writeValueAsBytes(event));
+            return subscriptionId + "|sha256:" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package se.loelindstrom.entrastuff.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped write-ahead spool for webhook events.
+ * <p>
+ * Records are appended to fixed-size segment files as [length][crc32c][payload]. {@link #append} returns
+ * once the record has been forced to disk. Forcing is group-committed by a flusher thread, so a burst of
+ * concurrent appends shares one fsync. The reader side ({@link #read}/{@link #commit}) only sees durable
+ * records and persists its position in a checkpoint file. Fully consumed segments are deleted.
+ */
+@Component
+public class WebhookSpool {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookSpool.class);
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECKPOINT_SIZE = 12;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBacklogBytes;
+    private final Path checkpointFile;
+    private final Path checkpointTempFile;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final List<Segment> unforcedSegments = new ArrayList<>();
+    private final Thread flusherThread;
+    private volatile boolean running = true;
+
+    // Guarded by lock
+    private Segment writeSegment;
+    private int writeOffset;
+    private long appendedCount;
+    private long durableCount;
+    private Position durablePosition;
+
+    // Only advanced by the single reader
+    private volatile Position readPosition;
+
+    public WebhookSpool(
+            @Value("${webhook.spool.directory:./data/webhook-spool}") String directory,
+            @Value("${webhook.spool.segment-size-bytes:16777216}") int segmentSize,
+            @Value("${webhook.spool.max-backlog-bytes:536870912}") long maxBacklogBytes
+    ) throws IOException {
+        this.directory = Path.of(directory);
+        this.segmentSize = segmentSize;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.checkpointFile = this.directory.resolve("checkpoint");
+        this.checkpointTempFile = this.directory.resolve("checkpoint.tmp");
+        Files.createDirectories(this.directory);
+        recover();
+        this.flusherThread = Thread.ofPlatform().name("webhook-spool-flusher").daemon().start(this::flushLoop);
+    }
+
+    /**
+     * Appends a record and waits until it is durable on disk.
+     *
+     * @return false if the unreplayed backlog is over its limit and the record was not appended
+     */
+    public boolean append(byte[] payload) throws IOException {
+        if (payload.length + HEADER_SIZE > segmentSize) {
+            throw new IOException("Spool record of " + payload.length + " bytes does not fit in a segment.");
+        }
+
+        lock.lock();
+        try {
+            if (!running) {
+                return false;
+            }
+            if (backlogBytes() > maxBacklogBytes) {
+                logger.warn("Webhook spool backlog is over {} bytes.", maxBacklogBytes);
+                return false;
+            }
+            if (writeOffset + HEADER_SIZE + payload.length > segmentSize) {
+                rollSegment();
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            MappedByteBuffer buffer = writeSegment.buffer;
+            buffer.put(writeOffset + HEADER_SIZE, payload);
+            buffer.putInt(writeOffset + 4, (int) crc.getValue());
+            // Length last: a zero length marks the end of the written records
+            buffer.putInt(writeOffset, payload.length);
+            writeOffset += HEADER_SIZE + payload.length;
+            if (!unforcedSegments.contains(writeSegment)) {
+                unforcedSegments.add(writeSegment);
+            }
+
+            long sequence = ++appendedCount;
+            appended.signal();
+            while (durableCount < sequence) {
+                if (!running) {
+                    throw new IOException("Webhook spool was closed before the record was forced.");
+                }
+                durable.await(1, TimeUnit.SECONDS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the webhook spool to be forced.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to maxRecords durable records after the reader position. Call {@link #commit} once
+     * they have been processed, otherwise they are read again (also after a restart).
+     */
+    public Batch read(int maxRecords) {
+        Position end;
+        lock.lock();
+        try {
+            end = durablePosition;
+        } finally {
+            lock.unlock();
+        }
+
+        List<byte[]> records = new ArrayList<>();
+        Position position = readPosition;
+        while (records.size() < maxRecords && position.compareTo(end) < 0) {
+            Segment segment = segmentAt(position.segment());
+            int length = position.offset() + HEADER_SIZE <= segmentSize ? segment.buffer.getInt(position.offset()) : 0;
+            if (length == 0) {
+                // Rest of the segment is unused, continue in the next one
+                position = new Position(segmentAfter(position.segment()), 0);
+                continue;
+            }
+            byte[] payload = new byte[length];
+            segment.buffer.get(position.offset() + HEADER_SIZE, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != segment.buffer.getInt(position.offset() + 4)) {
+                logger.error("Skipping corrupt spool record in segment {} at offset {}.", position.segment(), position.offset());
+            } else {
+                records.add(payload);
+            }
+            position = new Position(position.segment(), position.offset() + HEADER_SIZE + length);
+        }
+        return new Batch(records, position);
+    }
+
+    public void commit(Batch batch) throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        checkpoint.putLong(batch.next().segment()).putInt(batch.next().offset()).flip();
+        // Written aside and renamed over the old one, so a crash never leaves a partial checkpoint
+        try (FileChannel channel = FileChannel.open(checkpointTempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            channel.force(true);
+        }
+        Files.move(checkpointTempFile, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        readPosition = batch.next();
+        deleteConsumedSegments();
+    }
+
+    public boolean hasUnread() {
+        lock.lock();
+        try {
+            return readPosition.compareTo(durablePosition) < 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBacklogBytes() {
+        lock.lock();
+        try {
+            return backlogBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            running = false;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusherThread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Segment> toForce;
+            long target;
+            Position targetPosition;
+            lock.lock();
+            try {
+                while (appendedCount == durableCount && running) {
+                    appended.await();
+                }
+                if (appendedCount == durableCount) {
+                    return;
+                }
+                target = appendedCount;
+                targetPosition = new Position(writeSegment.index, writeOffset);
+                toForce = new ArrayList<>(unforcedSegments);
+                unforcedSegments.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // Forced outside the lock so new appends can pile up for the next fsync
+            toForce.forEach(segment -> segment.buffer.force());
+
+            lock.lock();
+            try {
+                durableCount = target;
+                durablePosition = targetPosition;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(f -> f.getFileName().toString().endsWith(SEGMENT_SUFFIX)).toList()) {
+                String name = file.getFileName().toString();
+                long index = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(index, openSegment(index));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, openSegment(0));
+        }
+
+        writeSegment = segments.lastEntry().getValue();
+        writeOffset = scanEnd(writeSegment);
+        durablePosition = new Position(writeSegment.index, writeOffset);
+
+        readPosition = new Position(segments.firstKey(), 0);
+        if (Files.exists(checkpointFile)) {
+            ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+            if (checkpoint.remaining() < CHECKPOINT_SIZE) {
+                // Torn by a crash while it was written in place; replaying from the first segment only repeats records
+                logger.warn("Ignoring webhook spool checkpoint of {} bytes. Replaying every segment.", checkpoint.remaining());
+            } else {
+                Position saved = new Position(checkpoint.getLong(), checkpoint.getInt());
+                if (segments.containsKey(saved.segment())) {
+                    readPosition = saved;
+                }
+            }
+        }
+        logger.info("Opened webhook spool in {} with {} segments and {} bytes to replay.",
+                directory, segments.size(), backlogBytes());
+    }
+
+    // Finds the end of the valid records in a segment; anything after a torn write is ignored
+    private int scanEnd(Segment segment) {
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segmentSize) {
+            int length = segment.buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            segment.buffer.get(offset + HEADER_SIZE, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != segment.buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private void rollSegment() throws IOException {
+        Segment next = openSegment(writeSegment.index + 1);
+        segments.put(next.index, next);
+        writeSegment = next;
+        writeOffset = 0;
+        logger.debug("Rolled webhook spool to segment {}.", next.index);
+    }
+
+    private Segment openSegment(long index) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new Segment(index, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private Segment segmentAt(long index) {
+        lock.lock();
+        try {
+            return segments.get(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Long segmentAfter(long index) {
+        lock.lock();
+        try {
+            return segments.higherKey(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteConsumedSegments() throws IOException {
+        List<Segment> consumed = new ArrayList<>();
+        lock.lock();
+        try {
+            Map<Long, Segment> head = segments.headMap(Math.min(readPosition.segment(), writeSegment.index));
+            consumed.addAll(head.values());
+            head.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : consumed) {
+            Files.deleteIfExists(segment.path);
+            logger.debug("Deleted replayed webhook spool segment {}.", segment.index);
+        }
+    }
+
+    private long backlogBytes() {
+        return (writeSegment.index - readPosition.segment()) * segmentSize + writeOffset - readPosition.offset();
+    }
+
+    private record Segment(long index, Path path, MappedByteBuffer buffer) {
+    }
+
+    record Position(long segment, int offset) implements Comparable<Position> {
+        @Override
+        public int compareTo(Position other) {
+            int bySegment = Long.compare(segment, other.segment);
+            return bySegment != 0 ? bySegment : Integer.compare(offset, other.offset);
+        }
+    }
+
+    public record Batch(List<byte[]> records, Position next) {
+    }
+}
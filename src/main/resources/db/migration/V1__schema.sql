@@ -0,0 +1,105 @@
+-- Schema of every table except audit_logs, which AuditLogPartitionManager creates and partitions.
+-- Databases that Hibernate created with ddl-auto before migrations existed are baselined at this version.
+
+CREATE TABLE IF NOT EXISTS backups (
+    id                bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    tenant_id         varchar(255) NOT NULL,
+    data_type         varchar(255) NOT NULL,
+    created_at        timestamp(6) NOT NULL,
+    backup_type       varchar(255) NOT NULL,
+    status            varchar(255) NOT NULL,
+    user_count        bigint       NOT NULL,
+    item_count        bigint       NOT NULL,
+    mode              varchar(255) NOT NULL,
+    parent_backup_id  bigint,
+    profile           varchar(255),
+    format            varchar(255),
+    completed_at      timestamp(6),
+    duration_ms       bigint,
+    byte_size         bigint,
+    source_delta_link text
+);
+CREATE INDEX IF NOT EXISTS idx_backups_tenant_type_id ON backups (tenant_id, data_type, backup_type, id);
+CREATE INDEX IF NOT EXISTS idx_backups_created_at_id ON backups (created_at, id);
+
+CREATE TABLE IF NOT EXISTS backup_items (
+    id        bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    backup_id bigint       NOT NULL,
+    seq       bigint       NOT NULL,
+    item_type varchar(255),
+    user_id   varchar(255),
+    removed   boolean      NOT NULL,
+    item_data jsonb        NOT NULL
+);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_backup_items_backup_seq ON backup_items (backup_id, seq);
+
+CREATE TABLE IF NOT EXISTS backup_chunks (
+    id         bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    backup_id  bigint  NOT NULL,
+    seq        integer NOT NULL,
+    item_count integer NOT NULL,
+    data       bytea   NOT NULL
+);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_backup_chunks_backup_seq ON backup_chunks (backup_id, seq);
+
+CREATE TABLE IF NOT EXISTS delta_tokens (
+    id         bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    tenant_id  varchar(255) NOT NULL,
+    data_type  varchar(255) NOT NULL,
+    delta_link text         NOT NULL,
+    backup_id  bigint,
+    updated_at timestamp(6) NOT NULL,
+    CONSTRAINT uq_delta_tokens_tenant_type UNIQUE (tenant_id, data_type)
+);
+
+CREATE TABLE IF NOT EXISTS jobs (
+    id               bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    type             varchar(255) NOT NULL,
+    tenant_id        varchar(255),
+    status           varchar(255) NOT NULL,
+    mode             varchar(255),
+    backup_id        bigint,
+    pages_fetched    bigint       NOT NULL,
+    users_written    bigint       NOT NULL,
+    batches_restored bigint       NOT NULL,
+    users_restored   bigint       NOT NULL,
+    total_estimate   bigint,
+    error            text,
+    result           jsonb,
+    created_at       timestamp(6) NOT NULL,
+    started_at       timestamp(6),
+    finished_at      timestamp(6),
+    owner            varchar(255),
+    lease_expires_at timestamp(6)
+);
+
+CREATE TABLE IF NOT EXISTS scheduler_leases (
+    name           varchar(255) PRIMARY KEY,
+    owner          varchar(255),
+    expires_at     timestamp(6) NOT NULL,
+    last_fire_time timestamp(6)
+);
+
+CREATE TABLE IF NOT EXISTS subscriptions (
+    id           varchar(255) PRIMARY KEY,
+    tenant_id    varchar(255) NOT NULL,
+    resource     varchar(255) NOT NULL,
+    change_type  varchar(255) NOT NULL,
+    client_state varchar(255) NOT NULL,
+    status       varchar(255) NOT NULL,
+    expires_at   timestamp(6) NOT NULL,
+    created_at   timestamp(6) NOT NULL,
+    renewed_at   timestamp(6)
+);
+CREATE INDEX IF NOT EXISTS idx_subscriptions_status_expires ON subscriptions (status, expires_at);
+
+CREATE TABLE IF NOT EXISTS tenants (
+    id                  varchar(255) PRIMARY KEY,
+    display_name        varchar(255),
+    client_id           varchar(255) NOT NULL,
+    client_secret       text,
+    max_concurrent_jobs integer      NOT NULL,
+    max_graph_requests  integer      NOT NULL,
+    enabled             boolean      NOT NULL,
+    created_at          timestamp(6) NOT NULL
+);
@@ -0,0 +1,85 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    void halvesTheLimitOnEveryThrottleDownToTheMinimum() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16, 3, 32);
+
+        limiter.onThrottled(Duration.ZERO);
+        assertThat(limiter.getLimit()).isEqualTo(8);
+        limiter.onThrottled(Duration.ZERO);
+        limiter.onThrottled(Duration.ZERO);
+        assertThat(limiter.getLimit()).isEqualTo(3);
+        limiter.onThrottled(Duration.ZERO);
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void growsByOneAfterAFullWindowOfSuccessesUpToTheMaximum() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 3);
+
+        limiter.onSuccess();
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        limiter.onSuccess();
+        assertThat(limiter.getLimit()).isEqualTo(3);
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void throttlingRestartsTheSuccessWindow() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+
+        limiter.onSuccess();
+        limiter.onThrottled(Duration.ZERO);
+        limiter.onSuccess();
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        limiter.onSuccess();
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void blocksAcquireAtTheLimitUntilARelease() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        limiter.release();
+        assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+        waiter.join();
+    }
+
+    @Test
+    void holdsEveryCallerBackForTheRetryAfter() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4);
+        limiter.onThrottled(Duration.ofMillis(300));
+
+        long start = System.nanoTime();
+        limiter.acquire();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(waitedMs).isGreaterThanOrEqualTo(250);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+}
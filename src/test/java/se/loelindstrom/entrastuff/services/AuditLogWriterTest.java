@@ -0,0 +1,120 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import se.loelindstrom.entrastuff.entities.AuditLog;
+import se.loelindstrom.entrastuff.repositories.AuditLogRepository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class AuditLogWriterTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AuditLogRepository auditLogRepository = mock(AuditLogRepository.class);
+
+    @TempDir
+    Path directory;
+
+    private WebhookSpool spool;
+    private AuditLogWriter writer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        spool = new WebhookSpool(directory.toString(), 1 << 20, Long.MAX_VALUE);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (writer != null) {
+            writer.shutdown();
+        }
+        spool.close();
+    }
+
+    @Test
+    void coalescesABurstOfUpdatesAndIgnoresRepeatedNotifications() throws IOException {
+        writer = newWriter(new WebhookDedupCache(objectMapper, 0, 0), true);
+
+        writer.append(List.of(
+                notification("n-1", "updated", "user-1", "first"),
+                notification("n-2", "updated", "user-1", "second"),
+                notification("n-2", "updated", "user-1", "second"),
+                notification("n-3", "updated", "user-1", "third"),
+                notification("n-4", "updated", "user-2", "other")
+        ));
+
+        List<AuditLog> saved = savedAuditLogs();
+        assertThat(saved).extracting(AuditLog::getNotificationId).containsExactlyInAnyOrder("n-1", "n-4");
+        AuditLog burst = saved.stream().filter(auditLog -> "n-1".equals(auditLog.getNotificationId())).findFirst().orElseThrow();
+        assertThat(burst.getEventCount()).isEqualTo(3);
+        assertThat(saved).extracting(AuditLog::getTenantId).containsOnly("tenant-1");
+        assertThat(burst.getEventData().path("resourceData").path("displayName").asText()).isEqualTo("third");
+        assertThat(meterRegistry.counter("audit.log.coalesced").count()).isEqualTo(2);
+    }
+
+    @Test
+    void keepsDeletesOutOfABurst() throws IOException {
+        writer = newWriter(new WebhookDedupCache(objectMapper, 0, 0), true);
+
+        writer.append(List.of(
+                notification("n-1", "updated", "user-1", "first"),
+                notification("n-2", "deleted", "user-1", "first")
+        ));
+
+        List<AuditLog> saved = savedAuditLogs();
+        assertThat(saved).extracting(AuditLog::getNotificationId).containsExactlyInAnyOrder("n-1", "n-2");
+        assertThat(saved).extracting(AuditLog::getEventCount).containsOnly(1);
+    }
+
+    @Test
+    void dropsRedeliveriesBeforeTheyAreSpooled() throws IOException {
+        writer = newWriter(new WebhookDedupCache(objectMapper, 60, 100), false);
+
+        assertThat(writer.append(List.of(notification("n-1", "updated", "user-1", "first")))).isTrue();
+        assertThat(writer.append(List.of(notification("n-1", "updated", "user-1", "first")))).isTrue();
+
+        assertThat(savedAuditLogs()).extracting(AuditLog::getNotificationId).containsExactly("n-1");
+        assertThat(meterRegistry.counter("webhook.events").count()).isEqualTo(1);
+        assertThat(meterRegistry.counter("webhook.events.duplicate").count()).isEqualTo(1);
+    }
+
+    private AuditLogWriter newWriter(WebhookDedupCache dedupCache, boolean coalesce) {
+        return new AuditLogWriter(auditLogRepository, mock(AuditLogPartitionManager.class), spool, dedupCache,
+                objectMapper, meterRegistry, 100, coalesce, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<AuditLog> savedAuditLogs() {
+        ArgumentCaptor<Iterable<AuditLog>> captor = ArgumentCaptor.forClass(Iterable.class);
+        verify(auditLogRepository, timeout(5000)).saveAll(captor.capture());
+        List<AuditLog> saved = new ArrayList<>();
+        captor.getValue().forEach(saved::add);
+        return saved;
+    }
+
+    private JsonNode notification(String id, String changeType, String userId, String displayName) {
+        ObjectNode event = objectMapper.createObjectNode();
+        event.put("id", id);
+        event.put("subscriptionId", "sub-1");
+        event.put("tenantId", "tenant-1");
+        event.put("changeType", changeType);
+        event.put("resource", "Users/" + userId);
+        event.putObject("resourceData").put("id", userId).put("displayName", displayName);
+        return event;
+    }
+}
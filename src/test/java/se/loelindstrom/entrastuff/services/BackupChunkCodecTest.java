@@ -0,0 +1,73 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BackupChunkCodecTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BackupChunkCodec codec = new BackupChunkCodec(3);
+
+    @Test
+    void dropsNullAttributesOfFullBackupItems() throws IOException {
+        List<JsonNode> items = List.of(
+                json("{\"id\":\"a\",\"displayName\":\"Anna\",\"jobTitle\":null,\"manager\":{\"id\":\"b\",\"mail\":null}}"),
+                json("{\"id\":\"b\",\"businessPhones\":[\"+46 8 123\",null]}")
+        );
+
+        List<JsonNode> decoded = decode(codec.encode(items, false));
+
+        assertThat(decoded).containsExactly(
+                json("{\"id\":\"a\",\"displayName\":\"Anna\",\"manager\":{\"id\":\"b\"}}"),
+                json("{\"id\":\"b\",\"businessPhones\":[\"+46 8 123\",null]}")
+        );
+    }
+
+    @Test
+    void keepsNullAttributesOfDeltaItems() throws IOException {
+        List<JsonNode> items = List.of(
+                json("{\"id\":\"a\",\"jobTitle\":null,\"department\":\"R&D\"}"),
+                json("{\"id\":\"b\",\"@removed\":{\"reason\":\"deleted\"}}")
+        );
+
+        assertThat(decode(codec.encode(items, true))).containsExactlyElementsOf(items);
+    }
+
+    @Test
+    void roundTripsManyItemsSharingPropertyNames() throws IOException {
+        List<JsonNode> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(objectMapper.createObjectNode()
+                    .put("id", "user-" + i)
+                    .put("userPrincipalName", "user" + i + "@example.com")
+                    .put("accountEnabled", i % 2 == 0));
+        }
+
+        assertThat(decode(codec.encode(items, false))).containsExactlyElementsOf(items);
+    }
+
+    @Test
+    void rejectsChunksOfAnotherVersion() {
+        assertThatThrownBy(() -> codec.decode(new byte[]{2, 0, 0}, item -> {
+        })).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> codec.decode(new byte[0], item -> {
+        })).isInstanceOf(IOException.class);
+    }
+
+    private List<JsonNode> decode(byte[] chunk) throws IOException {
+        List<JsonNode> items = new ArrayList<>();
+        codec.decode(chunk, items::add);
+        return items;
+    }
+
+    private JsonNode json(String json) throws IOException {
+        return objectMapper.readTree(json);
+    }
+}
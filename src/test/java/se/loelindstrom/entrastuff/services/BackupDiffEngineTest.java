@@ -0,0 +1,45 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import se.loelindstrom.entrastuff.config.BackupProfiles;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class BackupDiffEngineTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BackupDiffEngine diffEngine = new BackupDiffEngine(mock(BackupSnapshotService.class), mock(BackupRepository.class),
+            new BackupProfiles(), mock(GraphClient.class), mock(TokenStore.class), mock(TenantRegistry.class),
+            new GraphPageParser(objectMapper), objectMapper, 3);
+
+    @Test
+    void ignoresReadOnlyAttributesWhenHashing() throws IOException {
+        JsonNode backedUp = json("{\"id\":\"a\",\"displayName\":\"Anna\",\"mail\":\"anna@example.com\",\"createdDateTime\":\"2024-01-01T00:00:00Z\"}");
+        JsonNode live = json("{\"id\":\"b\",\"displayName\":\"Anna\",\"mail\":\"anna.new@example.com\",\"@odata.type\":\"#microsoft.graph.user\"}");
+
+        assertThat(diffEngine.hash(backedUp)).isEqualTo(diffEngine.hash(live));
+        assertThat(diffEngine.hash(backedUp)).isNotEqualTo(diffEngine.hash(json("{\"id\":\"a\",\"displayName\":\"Bo\"}")));
+    }
+
+    @Test
+    void neverSendsReadOnlyAttributesInAnUpdate() throws IOException {
+        ObjectNode body = diffEngine.updateBody(
+                json("{\"id\":\"a\",\"displayName\":\"Anna\",\"mail\":\"anna@example.com\"}"),
+                Set.of("jobTitle", "businessPhones"));
+
+        assertThat(body).isEqualTo(json("{\"displayName\":\"Anna\",\"jobTitle\":null,\"businessPhones\":[]}"));
+    }
+
+    private JsonNode json(String json) throws IOException {
+        return objectMapper.readTree(json);
+    }
+}
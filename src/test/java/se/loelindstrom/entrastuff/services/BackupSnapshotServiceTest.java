@@ -0,0 +1,107 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BackupSnapshotServiceTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BackupRepository backupRepository = mock(BackupRepository.class);
+    private final BackupStore backupStore = mock(BackupStore.class);
+    private final Map<Long, List<JsonNode>> items = new HashMap<>();
+    private BackupSnapshotService snapshotService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        doAnswer(invocation -> {
+            ItemHandler handler = invocation.getArgument(1);
+            for (JsonNode item : items.getOrDefault(invocation.<Long>getArgument(0), List.of())) {
+                handler.handle(item);
+            }
+            return null;
+        }).when(backupStore).readItems(anyLong(), any());
+        snapshotService = new BackupSnapshotService(backupRepository, backupStore);
+    }
+
+    @Test
+    void appliesDeltasInOrderOnTopOfTheBase() throws IOException {
+        backup(1L, "full", null,
+                "{\"id\":\"a\",\"displayName\":\"Anna\",\"jobTitle\":\"Tester\"}",
+                "{\"id\":\"b\",\"displayName\":\"Bo\"}",
+                "{\"id\":\"c\",\"displayName\":\"Cay\"}");
+        backup(2L, "incremental", 1L,
+                "{\"id\":\"a\",\"jobTitle\":\"Developer\"}",
+                "{\"id\":\"b\",\"@removed\":{\"reason\":\"changed\"}}");
+        backup(3L, "incremental", 2L,
+                "{\"id\":\"a\",\"department\":\"R&D\"}",
+                "{\"id\":\"d\",\"displayName\":\"Dee\"}");
+
+        Map<String, JsonNode> snapshot = materialize(3L);
+
+        assertThat(snapshot).containsOnlyKeys("a", "c", "d");
+        assertThat(snapshot.get("a")).isEqualTo(json("{\"id\":\"a\",\"displayName\":\"Anna\",\"jobTitle\":\"Developer\",\"department\":\"R&D\"}"));
+        assertThat(snapshot.get("c")).isEqualTo(json("{\"id\":\"c\",\"displayName\":\"Cay\"}"));
+        assertThat(snapshot.get("d")).isEqualTo(json("{\"id\":\"d\",\"displayName\":\"Dee\"}"));
+    }
+
+    @Test
+    void clearsAttributesADeltaSetToNull() throws IOException {
+        backup(1L, "full", null, "{\"id\":\"a\",\"displayName\":\"Anna\",\"jobTitle\":\"Tester\"}");
+        backup(2L, "incremental", 1L, "{\"id\":\"a\",\"jobTitle\":null}");
+
+        JsonNode user = materialize(2L).get("a");
+
+        assertThat(user.get("displayName").asText()).isEqualTo("Anna");
+        assertThat(user.path("jobTitle").isNull() || user.path("jobTitle").isMissingNode()).isTrue();
+    }
+
+    @Test
+    void materializesAnEarlierBackupOfTheChainWithoutLaterDeltas() throws IOException {
+        backup(1L, "full", null, "{\"id\":\"a\",\"jobTitle\":\"Tester\"}");
+        backup(2L, "incremental", 1L, "{\"id\":\"a\",\"jobTitle\":\"Developer\"}");
+        backup(3L, "incremental", 2L, "{\"id\":\"a\",\"jobTitle\":\"Architect\"}");
+
+        assertThat(materialize(2L).get("a").get("jobTitle").asText()).isEqualTo("Developer");
+        assertThat(snapshotService.resolveChain(3L)).extracting(Backup::getId).containsExactly(1L, 2L, 3L);
+    }
+
+    private void backup(Long id, String mode, Long parentBackupId, String... itemJson) throws IOException {
+        Backup backup = new Backup();
+        backup.setId(id);
+        backup.setMode(mode);
+        backup.setParentBackupId(parentBackupId);
+        when(backupRepository.findById(id)).thenReturn(Optional.of(backup));
+        List<JsonNode> backupItems = new ArrayList<>();
+        for (String json : itemJson) {
+            backupItems.add(json(json));
+        }
+        items.put(id, backupItems);
+    }
+
+    private Map<String, JsonNode> materialize(Long backupId) throws IOException {
+        Map<String, JsonNode> snapshot = new HashMap<>();
+        snapshotService.materialize(backupId, item -> snapshot.put(item.get("id").asText(), item));
+        return snapshot;
+    }
+
+    private JsonNode json(String json) throws IOException {
+        return objectMapper.readTree(json);
+    }
+}
@@ -0,0 +1,124 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FairShareExecutorTest {
+    private FairShareExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void takesTurnsBetweenTenants() throws InterruptedException {
+        executor = new FairShareExecutor(1, 100, tenantId -> 1, Thread.ofPlatform().factory());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        // Holds the only thread until every task is queued
+        executor.execute("blocker", () -> await(release));
+        for (int i = 0; i < 4; i++) {
+            executor.execute("busy", task(order, "busy", done));
+        }
+        executor.execute("quiet", task(order, "quiet", done));
+        executor.execute("other", task(order, "other", done));
+        release.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("busy", "quiet", "other", "busy", "busy", "busy");
+    }
+
+    @Test
+    void neverRunsMoreTasksOfATenantThanItsLimit() throws InterruptedException {
+        executor = new FairShareExecutor(4, 100, tenantId -> "limited".equals(tenantId) ? 1 : 4, Thread.ofPlatform().factory());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch limitedDone = new CountDownLatch(5);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch othersStarted = new CountDownLatch(3);
+
+        for (int i = 0; i < 5; i++) {
+            executor.execute("limited", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(10);
+                running.decrementAndGet();
+                limitedDone.countDown();
+            });
+        }
+        // The free threads go to another tenant instead of waiting for the limited one
+        for (int i = 0; i < 3; i++) {
+            executor.execute("other", () -> {
+                othersStarted.countDown();
+                await(release);
+            });
+        }
+
+        assertThat(othersStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        assertThat(limitedDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(1);
+    }
+
+    @Test
+    void rejectsTasksOverCapacityAndAfterShutdown() throws InterruptedException {
+        executor = new FairShareExecutor(1, 2, tenantId -> 1, Thread.ofPlatform().factory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute("a", () -> {
+            started.countDown();
+            await(release);
+        });
+        // A running task no longer counts against the queue
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.execute("a", () -> {
+        });
+        executor.execute("b", () -> {
+        });
+
+        assertThatThrownBy(() -> executor.execute("c", () -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+
+        executor.shutdownNow();
+        release.countDown();
+        assertThatThrownBy(() -> executor.execute("c", () -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    private static Runnable task(List<String> order, String tenantId, CountDownLatch done) {
+        return () -> {
+            order.add(tenantId);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
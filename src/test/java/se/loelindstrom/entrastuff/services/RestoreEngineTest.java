@@ -0,0 +1,115 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.dtos.RestoreResultDTO;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RestoreEngineTest {
+    private static final String TENANT_ID = "tenant";
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private GraphClient graphClient;
+    private RestoreEngine restoreEngine;
+
+    @BeforeEach
+    void setUp() {
+        graphClient = mock(GraphClient.class);
+        TenantRegistry tenantRegistry = mock(TenantRegistry.class);
+        when(tenantRegistry.throttle(TENANT_ID)).thenReturn(new TenantThrottle(4));
+        restoreEngine = new RestoreEngine(mock(TokenStore.class), graphClient, null, null, tenantRegistry, List.of(),
+                objectMapper, new SimpleMeterRegistry(), 2, 4, 3);
+    }
+
+    @Test
+    void resendsOnlyTheThrottledOperationsOfABatch() throws IOException {
+        List<JsonNode> requests = new ArrayList<>();
+        when(graphClient.send(eq("POST"), anyString(), any(), any(byte[].class))).thenAnswer(invocation -> {
+            JsonNode request = objectMapper.readTree((byte[]) invocation.getArgument(3));
+            requests.add(request);
+            // The first batch has /users/b throttled, every later one succeeds
+            Set<String> throttled = requests.size() == 1 ? Set.of("/users/b") : Set.of();
+            return batchResponse(request, throttled);
+        });
+
+        RestoreResultDTO result = restoreEngine.execute(1L, TENANT_ID, JobProgress.NONE, submitter -> {
+            submitter.submit(patch("/users/a"));
+            submitter.submit(patch("/users/b"));
+            submitter.submit(patch("/users/c"));
+        });
+
+        assertThat(result.getRestored()).isEqualTo(3);
+        assertThat(result.getFailed()).isZero();
+        assertThat(result.getRetried()).isEqualTo(1);
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(1).path("requests")).hasSize(1);
+        assertThat(requests.get(1).path("requests").get(0).path("url").asText()).isEqualTo("/users/b");
+    }
+
+    @Test
+    void failsABatchThatBrokeOffAfterItWasSent() throws IOException {
+        when(graphClient.send(eq("POST"), anyString(), any(), any(byte[].class)))
+                .thenThrow(new IOException("Stream was reset"));
+
+        RestoreResultDTO result = restoreEngine.execute(1L, TENANT_ID, JobProgress.NONE, submitter -> {
+            submitter.submit(patch("/users/a"));
+            submitter.submit(patch("/users/b"));
+        });
+
+        assertThat(result.getRestored()).isZero();
+        assertThat(result.getFailed()).isEqualTo(2);
+        assertThat(result.getRetried()).isZero();
+        verify(graphClient, times(1)).send(eq("POST"), anyString(), any(), any(byte[].class));
+    }
+
+    @Test
+    void treatsOnlyConnectionFailuresAsNotSent() {
+        assertThat(RestoreEngine.isNotSent(new ConnectException("Connection refused"))).isTrue();
+        assertThat(RestoreEngine.isNotSent(new IOException("Wrapped", new HttpConnectTimeoutException("Connect timed out")))).isTrue();
+        assertThat(RestoreEngine.isNotSent(new HttpTimeoutException("Request timed out"))).isFalse();
+        assertThat(RestoreEngine.isNotSent(new IOException("GOAWAY received"))).isFalse();
+    }
+
+    private BatchOperation patch(String url) {
+        return new BatchOperation("PATCH", url, objectMapper.createObjectNode().put("jobTitle", "Tester"));
+    }
+
+    private GraphClient.GraphResponse batchResponse(JsonNode request, Set<String> throttled) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode responses = body.putArray("responses");
+        for (JsonNode subRequest : request.path("requests")) {
+            ObjectNode response = responses.addObject().put("id", subRequest.path("id").asText());
+            if (throttled.contains(subRequest.path("url").asText())) {
+                response.put("status", 429).putObject("headers").put("Retry-After", "0");
+            } else {
+                response.put("status", 204);
+            }
+        }
+        HttpHeaders headers = HttpHeaders.of(Map.of(), (name, value) -> true);
+        return new GraphClient.GraphResponse(200, headers, objectMapper.writeValueAsBytes(body));
+    }
+}
@@ -0,0 +1,71 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.loelindstrom.entrastuff.config.TenantSecretCipher;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.entities.Tenant;
+import se.loelindstrom.entrastuff.repositories.TenantRepository;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TenantRegistryTest {
+    private static final String DEFAULT_TENANT_ID = "default";
+    private final TenantRepository tenantRepository = mock(TenantRepository.class);
+    private final TokenStore tokenStore = mock(TokenStore.class);
+    private final Map<String, Tenant> stored = new HashMap<>();
+    private TenantRegistry tenantRegistry;
+
+    @BeforeEach
+    void setUp() {
+        when(tenantRepository.findById(anyString())).thenAnswer(invocation -> Optional.ofNullable(stored.get(invocation.<String>getArgument(0))));
+        when(tenantRepository.save(any())).thenAnswer(invocation -> {
+            Tenant tenant = invocation.getArgument(0);
+            stored.put(tenant.getId(), tenant);
+            return tenant;
+        });
+        when(tenantRepository.findByEnabledTrue()).thenAnswer(invocation -> stored.values().stream().filter(Tenant::isEnabled).toList());
+        TenantSecretCipher secretCipher = new TenantSecretCipher(Base64.getEncoder().encodeToString(new byte[32]));
+        tenantRegistry = new TenantRegistry(tenantRepository, tokenStore, secretCipher, DEFAULT_TENANT_ID, "client", 2, 8);
+        tenantRegistry.init();
+    }
+
+    @Test
+    void replacesTheCredentialsOfAReregisteredTenant() {
+        tenantRegistry.register("other", "Other", "client-1", "secret-1", null, null);
+        tenantRegistry.register("other", "Other", "client-1", "secret-1", null, null);
+        tenantRegistry.register("other", "Other", "client-1", "secret-2", null, null);
+
+        verify(tokenStore).registerTenant("other", "client-1", "secret-1");
+        verify(tokenStore).registerTenant("other", "client-1", "secret-2");
+        verify(tokenStore, never()).unregisterTenant(anyString());
+    }
+
+    @Test
+    void unregistersTheCredentialsOfADisabledTenant() {
+        tenantRegistry.register("other", "Other", "client-1", "secret-1", null, null);
+
+        tenantRegistry.disable("other");
+
+        verify(tokenStore).unregisterTenant("other");
+        assertThat(tenantRegistry.findEnabled()).extracting(Tenant::getId).containsExactly(DEFAULT_TENANT_ID);
+        assertThatThrownBy(() -> tenantRegistry.resolve("other")).isInstanceOf(IllegalArgumentException.class);
+
+        // Registering it again hands the credentials to the TokenStore again
+        tenantRegistry.register("other", "Other", "client-1", "secret-1", null, null);
+        verify(tokenStore, times(2)).registerTenant("other", "client-1", "secret-1");
+    }
+}
@@ -0,0 +1,171 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.loelindstrom.entrastuff.config.BackupProfiles;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.entities.Backup;
+import se.loelindstrom.entrastuff.entities.DeltaToken;
+import se.loelindstrom.entrastuff.repositories.BackupChunkRepository;
+import se.loelindstrom.entrastuff.repositories.BackupItemRepository;
+import se.loelindstrom.entrastuff.repositories.BackupRepository;
+import se.loelindstrom.entrastuff.repositories.DeltaTokenRepository;
+import se.loelindstrom.entrastuff.simulator.GraphSimulator;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserBackupServiceTest {
+    private static final String TENANT_ID = "tenant";
+    private static GraphSimulator simulator;
+    private static GraphClient graphClient;
+    private final BackupRepository backupRepository = mock(BackupRepository.class);
+    private final DeltaTokenRepository deltaTokenRepository = mock(DeltaTokenRepository.class);
+    private final BackupStore backupStore = mock(BackupStore.class);
+    private final List<Backup> backups = new ArrayList<>();
+    private DeltaToken storedDeltaToken;
+    private BackupProfiles backupProfiles;
+    private UserBackupService backupService;
+
+    @BeforeAll
+    static void startSimulator() throws IOException {
+        simulator = GraphSimulator.start(GraphSimulator.Settings.defaults().withUserCount(50).withDeltaChanges(5));
+        graphClient = new GraphClient(new SimpleMeterRegistry(), simulator.getBaseUrl(), simulator.getLoginUrl(), 5000, 60000);
+    }
+
+    @AfterAll
+    static void stopSimulator() {
+        simulator.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        when(backupRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(backupRepository.findById(any())).thenAnswer(invocation ->
+                backups.stream().filter(backup -> backup.getId().equals(invocation.getArgument(0))).findFirst());
+        when(backupRepository.findByTenantIdAndDataTypeOrderByIdAsc(TENANT_ID, UserBackupService.DATA_TYPE)).thenReturn(backups);
+        when(deltaTokenRepository.findByTenantIdAndDataType(TENANT_ID, UserBackupService.DATA_TYPE))
+                .thenAnswer(invocation -> Optional.ofNullable(storedDeltaToken));
+        when(deltaTokenRepository.save(any())).thenAnswer(invocation -> storedDeltaToken = invocation.getArgument(0));
+        doAnswer(invocation -> storedDeltaToken = null).when(deltaTokenRepository).delete(any());
+        when(backupStore.begin(anyString(), anyString(), anyString(), anyString(), any(), anyString())).thenAnswer(invocation -> {
+            Backup backup = new Backup();
+            backup.setId((long) backups.size() + 1);
+            backup.setTenantId(invocation.getArgument(0));
+            backup.setDataType(invocation.getArgument(1));
+            backup.setMode(invocation.getArgument(3));
+            backup.setParentBackupId(invocation.getArgument(4));
+            backup.setProfile(invocation.getArgument(5));
+            backup.setFormat("jsonb");
+            backup.setStatus("running");
+            backup.setCreatedAt(LocalDateTime.now());
+            backups.add(backup);
+            return new CountingWriter(backup, backupRepository);
+        });
+
+        backupProfiles = new BackupProfiles();
+        backupProfiles.validate();
+        TokenStore tokenStore = mock(TokenStore.class);
+        when(tokenStore.getAccessToken(TENANT_ID)).thenReturn("simulated-token");
+        TenantRegistry tenantRegistry = mock(TenantRegistry.class);
+        when(tenantRegistry.throttle(TENANT_ID)).thenReturn(new TenantThrottle(8));
+        backupService = new UserBackupService(new GraphPageParser(new ObjectMapper()), backupStore, deltaTokenRepository,
+                backupRepository, backupProfiles, tokenStore, graphClient, mock(UserSegmentPlanner.class), tenantRegistry,
+                List.of(), new SimpleMeterRegistry(), List.of(), 1, 1, 3);
+    }
+
+    @Test
+    void fullBackupStartsANewDeltaChain() throws IOException {
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        Long fullBackupId = backupService.backupUsers(TENANT_ID, JobProgress.NONE).getBackupId();
+        Long incrementalBackupId = backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE).getBackupId();
+
+        assertThat(backups).extracting(Backup::getMode).containsExactly("full", "incremental", "full", "incremental");
+        assertThat(backups.get(1).getParentBackupId()).isEqualTo(1L);
+        assertThat(backups.get(3).getParentBackupId()).isEqualTo(fullBackupId);
+        assertThat(storedDeltaToken.getBackupId()).isEqualTo(incrementalBackupId);
+        // Taken before the full walk, so the next round reports changes instead of every user
+        assertThat(backups.get(3).getUserCount()).isEqualTo(5);
+    }
+
+    @Test
+    void retentionDeletesTheChainBeforeTheLatestFullBackup() throws IOException {
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsers(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+
+        BackupItemRepository backupItemRepository = mock(BackupItemRepository.class);
+        TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        doAnswer(invocation -> {
+            invocation.<Consumer<TransactionStatus>>getArgument(0).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+        BackupRetentionService retentionService = new BackupRetentionService(backupRepository, backupItemRepository,
+                mock(BackupChunkRepository.class), deltaTokenRepository, transactionTemplate);
+
+        int deleted = retentionService.prune(TENANT_ID, UserBackupService.DATA_TYPE, LocalDateTime.now().plusMinutes(1));
+
+        assertThat(deleted).isEqualTo(2);
+        verify(backupRepository).deleteAllByIdInBatch(List.of(1L, 2L));
+    }
+
+    @Test
+    void fullBackupOfAnotherProfileDropsTheDeltaChain() throws IOException {
+        BackupProfiles.Profile small = new BackupProfiles.Profile();
+        small.setSelect(List.of("id", "displayName", "userPrincipalName"));
+        backupProfiles.getProfiles().put("small", small);
+        backupProfiles.getProfileByMode().put("full", "small");
+        backupProfiles.validate();
+
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        backupService.backupUsers(TENANT_ID, JobProgress.NONE);
+
+        assertThat(storedDeltaToken).isNull();
+        backupService.backupUsersIncremental(TENANT_ID, JobProgress.NONE);
+        assertThat(backups.get(2).getMode()).isEqualTo("full");
+        assertThat(backups.get(2).getUserCount()).isEqualTo(50);
+    }
+
+    // Counts items without storing them
+    private static class CountingWriter extends BackupWriter {
+        CountingWriter(Backup backup, BackupRepository backupRepository) {
+            super(backup, backupRepository);
+        }
+
+        @Override
+        public synchronized void write(JsonNode item) {
+            count(item);
+        }
+
+        @Override
+        protected void flush() {
+        }
+
+        @Override
+        protected void discard() {
+        }
+    }
+}
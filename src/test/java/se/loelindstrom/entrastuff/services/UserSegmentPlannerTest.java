@@ -0,0 +1,97 @@
+package se.loelindstrom.entrastuff.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import se.loelindstrom.entrastuff.config.GraphClient;
+import se.loelindstrom.entrastuff.config.TokenStore;
+import se.loelindstrom.entrastuff.simulator.GraphSimulator;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UserSegmentPlannerTest {
+    private static final String TENANT_ID = "tenant";
+    private static final String TOKEN = "simulated-token";
+    private static final long USER_COUNT = 20_000;
+    private static GraphSimulator simulator;
+    private static GraphClient graphClient;
+    private static UserSegmentPlanner planner;
+
+    @BeforeAll
+    static void startSimulator() throws IOException {
+        simulator = GraphSimulator.start(GraphSimulator.Settings.defaults().withUserCount(USER_COUNT));
+        graphClient = new GraphClient(new SimpleMeterRegistry(), simulator.getBaseUrl(), simulator.getLoginUrl(), 5000, 60000);
+        TokenStore tokenStore = mock(TokenStore.class);
+        when(tokenStore.getAccessToken(TENANT_ID)).thenReturn(TOKEN);
+        TenantRegistry tenantRegistry = mock(TenantRegistry.class);
+        when(tenantRegistry.throttle(TENANT_ID)).thenReturn(new TenantThrottle(8));
+        planner = new UserSegmentPlanner(graphClient, tokenStore, tenantRegistry);
+    }
+
+    @AfterAll
+    static void stopSimulator() {
+        simulator.close();
+    }
+
+    @Test
+    void coversEveryUserExactlyOnceInBalancedSegments() throws IOException {
+        UserSegmentPlanner.SegmentPlan plan = planner.plan(TENANT_ID, 4, 4);
+
+        assertThat(plan.userCount()).isEqualTo(USER_COUNT);
+        List<UserSegmentPlanner.UserSegment> segments = plan.segments();
+        assertThat(segments).hasSize(4);
+        assertThat(segments.getFirst().lowerBound()).isNull();
+        assertThat(segments.getLast().upperBound()).isNull();
+        for (int i = 1; i < segments.size(); i++) {
+            assertThat(segments.get(i).lowerBound()).isEqualTo(segments.get(i - 1).upperBound());
+        }
+
+        long covered = 0;
+        for (UserSegmentPlanner.UserSegment segment : segments) {
+            long count = count(segment.filter());
+            // Within the 50% the planner allows over its target of 5000
+            assertThat(count).isBetween(2500L, 7500L);
+            covered += count;
+        }
+        assertThat(covered).isEqualTo(USER_COUNT);
+    }
+
+    @Test
+    void doesNotSplitTenantsOfFewUsersPerSegment() throws IOException {
+        UserSegmentPlanner.SegmentPlan plan = planner.plan(TENANT_ID, 64, 4);
+
+        assertThat(plan.userCount()).isEqualTo(USER_COUNT);
+        assertThat(plan.segments()).hasSize(20);
+        assertThat(plan.segments().stream().mapToLong(segment -> {
+            try {
+                return count(segment.filter());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }).sum()).isEqualTo(USER_COUNT);
+    }
+
+    @Test
+    void plansOneOpenSegmentWithoutCountingWhenNotSegmented() throws IOException {
+        UserSegmentPlanner.SegmentPlan plan = planner.plan(TENANT_ID, 1, 4);
+
+        assertThat(plan.userCount()).isNull();
+        assertThat(plan.segments()).containsExactly(new UserSegmentPlanner.UserSegment(null, null));
+    }
+
+    private static long count(String filter) throws IOException {
+        String url = simulator.getBaseUrl() + "/users/$count"
+                + (filter == null ? "" : "?$filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20"));
+        return graphClient.get(url, TOKEN, Map.of("ConsistencyLevel", "eventual"),
+                body -> Long.parseLong(new String(body.readAllBytes(), StandardCharsets.UTF_8).trim()));
+    }
+}
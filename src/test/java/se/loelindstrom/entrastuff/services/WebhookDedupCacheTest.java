@@ -0,0 +1,97 @@
+package se.loelindstrom.entrastuff.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebhookDedupCacheTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void dropsARedeliveryWithinTheWindow() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 100);
+
+        assertThat(cache.claim(List.of(notification("sub-1", "n-1", "user-1")))).doesNotContainNull();
+        assertThat(cache.claim(List.of(notification("sub-1", "n-1", "user-1")))).containsExactly((String) null);
+    }
+
+    @Test
+    void keepsDistinctNotificationsOfTheSameUser() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 100);
+
+        List<String> keys = cache.claim(List.of(
+                notification("sub-1", "n-1", "user-1"),
+                notification("sub-1", "n-2", "user-1"),
+                notification("sub-2", "n-1", "user-1")
+        ));
+
+        assertThat(keys).doesNotContainNull().doesNotHaveDuplicates();
+    }
+
+    @Test
+    void dropsARedeliveryWithinOneRequest() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 100);
+
+        List<String> keys = cache.claim(List.of(notification("sub-1", "n-1", "user-1"), notification("sub-1", "n-1", "user-1")));
+
+        assertThat(keys.get(0)).isNotNull();
+        assertThat(keys.get(1)).isNull();
+    }
+
+    @Test
+    void keysNotificationsWithoutAnIdOnTheirWholeContent() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 100);
+        ObjectNode updated = notification("sub-1", null, "user-1");
+        ObjectNode deleted = notification("sub-1", null, "user-1").put("changeType", "deleted");
+
+        assertThat(cache.claim(List.of(updated, deleted))).doesNotContainNull();
+        assertThat(cache.claim(List.of(updated.deepCopy()))).containsExactly((String) null);
+    }
+
+    @Test
+    void acceptsAForgottenNotificationAgain() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 100);
+        JsonNode event = notification("sub-1", "n-1", "user-1");
+
+        cache.forget(cache.claim(List.of(event)));
+
+        assertThat(cache.claim(List.of(event))).doesNotContainNull();
+    }
+
+    @Test
+    void forgetsTheOldestKeysOverMaxEntries() throws IOException {
+        WebhookDedupCache cache = new WebhookDedupCache(objectMapper, 60, 2);
+        cache.claim(List.of(
+                notification("sub-1", "n-1", "user-1"),
+                notification("sub-1", "n-2", "user-2"),
+                notification("sub-1", "n-3", "user-3")
+        ));
+
+        assertThat(cache.claim(List.of(notification("sub-1", "n-1", "user-1")))).doesNotContainNull();
+        assertThat(cache.claim(List.of(notification("sub-1", "n-3", "user-3")))).containsExactly((String) null);
+    }
+
+    @Test
+    void isDisabledWithoutAWindow() {
+        assertThat(new WebhookDedupCache(objectMapper, 0, 100).isEnabled()).isFalse();
+        assertThat(new WebhookDedupCache(objectMapper, 60, 0).isEnabled()).isFalse();
+    }
+
+    private ObjectNode notification(String subscriptionId, String id, String userId) {
+        ObjectNode event = objectMapper.createObjectNode();
+        if (id != null) {
+            event.put("id", id);
+        }
+        event.put("subscriptionId", subscriptionId);
+        event.put("changeType", "updated");
+        event.put("resource", "Users/" + userId);
+        event.putObject("resourceData").put("id", userId);
+        return event;
+    }
+}
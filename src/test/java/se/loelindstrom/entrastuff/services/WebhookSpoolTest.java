@@ -0,0 +1,143 @@
+package se.loelindstrom.entrastuff.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebhookSpoolTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int HEADER_SIZE = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysUncommittedRecordsAfterRestart() throws Exception {
+        WebhookSpool spool = open(SEGMENT_SIZE);
+        append(spool, "a", "b", "c");
+        spool.close();
+
+        WebhookSpool reopened = open(SEGMENT_SIZE);
+        assertThat(readAll(reopened)).containsExactly("a", "b", "c");
+        reopened.close();
+    }
+
+    @Test
+    void resumesFromTheCheckpointAfterRestart() throws Exception {
+        WebhookSpool spool = open(SEGMENT_SIZE);
+        append(spool, "a", "b", "c");
+        WebhookSpool.Batch batch = spool.read(2);
+        assertThat(strings(batch)).containsExactly("a", "b");
+        spool.commit(batch);
+        spool.close();
+
+        WebhookSpool reopened = open(SEGMENT_SIZE);
+        assertThat(readAll(reopened)).containsExactly("c");
+        reopened.close();
+    }
+
+    @Test
+    void replaysEverythingAfterATornCheckpoint() throws Exception {
+        WebhookSpool spool = open(SEGMENT_SIZE);
+        append(spool, "a", "b", "c");
+        spool.commit(spool.read(2));
+        spool.close();
+        assertThat(directory.resolve("checkpoint.tmp")).doesNotExist();
+
+        // A checkpoint cut short by a crash
+        Files.write(directory.resolve("checkpoint"), new byte[5]);
+
+        WebhookSpool reopened = open(SEGMENT_SIZE);
+        assertThat(readAll(reopened)).containsExactly("a", "b", "c");
+        reopened.close();
+    }
+
+    @Test
+    void ignoresATornWriteAndOverwritesIt() throws Exception {
+        WebhookSpool spool = open(SEGMENT_SIZE);
+        append(spool, "a", "b");
+        spool.close();
+
+        // A record whose length was written but whose payload and checksum never made it to disk
+        int end = 2 * (HEADER_SIZE + 1);
+        try (FileChannel channel = FileChannel.open(segmentFiles().getFirst(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(HEADER_SIZE + 3).putInt(3).putInt(12345).put("xyz".getBytes(StandardCharsets.UTF_8)).flip(), end);
+        }
+
+        WebhookSpool recovered = open(SEGMENT_SIZE);
+        assertThat(recovered.getBacklogBytes()).isEqualTo(end);
+        append(recovered, "c");
+        recovered.close();
+
+        WebhookSpool reopened = open(SEGMENT_SIZE);
+        assertThat(readAll(reopened)).containsExactly("a", "b", "c");
+        reopened.close();
+    }
+
+    @Test
+    void readsAcrossSegmentsAndDeletesConsumedOnes() throws Exception {
+        // Room for two records of ten bytes per segment
+        WebhookSpool spool = open(2 * (HEADER_SIZE + 10) + 4);
+        append(spool, "record-000", "record-001", "record-002", "record-003", "record-004");
+        assertThat(segmentFiles()).hasSize(3);
+
+        WebhookSpool.Batch batch = spool.read(10);
+        assertThat(strings(batch)).containsExactly("record-000", "record-001", "record-002", "record-003", "record-004");
+        spool.commit(batch);
+
+        assertThat(spool.hasUnread()).isFalse();
+        assertThat(segmentFiles()).hasSize(1);
+        spool.close();
+    }
+
+    @Test
+    void refusesAppendsOverTheBacklogLimit() throws Exception {
+        WebhookSpool spool = new WebhookSpool(directory.toString(), SEGMENT_SIZE, HEADER_SIZE + 1);
+        assertThat(spool.append(bytes("a"))).isTrue();
+        assertThat(spool.append(bytes("b"))).isTrue();
+        assertThat(spool.append(bytes("c"))).isFalse();
+
+        spool.commit(spool.read(10));
+        assertThat(spool.append(bytes("c"))).isTrue();
+        spool.close();
+    }
+
+    private WebhookSpool open(int segmentSize) throws IOException {
+        return new WebhookSpool(directory.toString(), segmentSize, Long.MAX_VALUE);
+    }
+
+    private static void append(WebhookSpool spool, String... records) throws IOException {
+        for (String record : records) {
+            assertThat(spool.append(bytes(record))).isTrue();
+        }
+    }
+
+    private static List<String> readAll(WebhookSpool spool) {
+        return strings(spool.read(Integer.MAX_VALUE));
+    }
+
+    private static List<String> strings(WebhookSpool.Batch batch) {
+        return batch.records().stream().map(record -> new String(record, StandardCharsets.UTF_8)).toList();
+    }
+
+    private static byte[] bytes(String record) {
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,670 @@
+package se.loelindstrom.entrastuff.simulator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process stand-in for Microsoft Graph and the identity platform, for load testing backups, restores
+ * and the webhook without a real tenant. It serves:
+ * <ul>
+ *     <li>{@code POST /{tenant}/oauth2/v2.0/token} with client-credential tokens</li>
+ *     <li>{@code GET /v1.0/users} and {@code /v1.0/users/delta}, paged with {@code @odata.nextLink} over synthetic users</li>
+ *     <li>{@code GET /v1.0/users/$count}, and {@code $filter} on userPrincipalName ranges (ge, le, startswith)</li>
+ *     <li>{@code POST /v1.0/$batch}, answering a configurable share of sub-requests with 429 and Retry-After</li>
+ *     <li>{@code POST /v1.0/subscriptions}, including the validation handshake against the notification URL,
+ *     and {@code PATCH /v1.0/subscriptions/{id}} to renew it</li>
+ * </ul>
+ * Once a subscription exists, {@link #sendNotificationBurst} posts notifications to it. Point the application
+ * here with {@code GRAPH_BASE_URL=http://localhost:<port>/v1.0} and {@code GRAPH_LOGIN_URL=http://localhost:<port>}.
+ */
+public class GraphSimulator implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(GraphSimulator.class);
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 999;
+    private static final int MAX_BATCH_SIZE = 20;
+    private static final String TENANT_ID = "00000000-0000-0000-0000-00000000a11c";
+    private static final Pattern COMPARISON_FILTER = Pattern.compile("userPrincipalName (ge|le) '([^']*)'");
+    private static final Pattern STARTSWITH_FILTER = Pattern.compile("startswith\\(userPrincipalName,\\s*'([^']*)'\\)");
+
+    private final Settings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final HttpClient webhookClient;
+    private final AtomicLong tokenRequests = new AtomicLong();
+    private final AtomicLong pageRequests = new AtomicLong();
+    private final AtomicLong usersServed = new AtomicLong();
+    private final AtomicLong batchRequests = new AtomicLong();
+    private final AtomicLong usersCreated = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private volatile Subscription subscription;
+
+    private GraphSimulator(Settings settings) throws IOException {
+        this.settings = settings;
+        this.webhookClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.server = HttpServer.create(new InetSocketAddress(settings.port()), 0);
+        this.server.createContext("/", this::dispatch);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.server.setExecutor(executor);
+    }
+
+    public static GraphSimulator start(Settings settings) throws IOException {
+        GraphSimulator simulator = new GraphSimulator(settings);
+        simulator.server.start();
+        logger.info("Graph simulator listening on {} with {} users.", simulator.getBaseUrl(), settings.userCount());
+        return simulator;
+    }
+
+    public String getBaseUrl() {
+        return getLoginUrl() + "/v1.0";
+    }
+
+    public String getLoginUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public Stats stats() {
+        return new Stats(tokenRequests.get(), pageRequests.get(), usersServed.get(),
+                batchRequests.get(), usersCreated.get(), throttledRequests.get());
+    }
+
+    /**
+     * Posts {@code notifications} change notifications to the current subscription's notification URL,
+     * at most {@code concurrency} at a time, and reports how the receiver answered.
+     */
+    public BurstReport sendNotificationBurst(int notifications, int eventsPerNotification, int concurrency) throws InterruptedException {
+        Subscription target = subscription;
+        if (target == null) {
+            throw new IllegalStateException("No subscription has been created yet.");
+        }
+
+        long[] latencies = new long[notifications];
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(concurrency);
+        long start = System.nanoTime();
+
+        try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < notifications; i++) {
+                int index = i;
+                inFlight.acquire();
+                senders.submit(() -> {
+                    long sent = System.nanoTime();
+                    try {
+                        byte[] body = objectMapper.writeValueAsBytes(notification(target, index, eventsPerNotification));
+                        HttpResponse<Void> response = webhookClient.send(
+                                webhookRequest(target.notificationUrl(), null)
+                                        .header("Content-Type", "application/json")
+                                        .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                                        .build(),
+                                HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                            accepted.incrementAndGet();
+                        } else if (response.statusCode() == 503) {
+                            rejected.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        latencies[index] = System.nanoTime() - sent;
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+
+        long durationMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        Arrays.sort(latencies);
+        return new BurstReport(notifications, accepted.get(), rejected.get(), failed.get(), durationMs,
+                percentileMs(latencies, 0.50), percentileMs(latencies, 0.95), percentileMs(latencies, 0.99),
+                percentileMs(latencies, 1.0));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+        webhookClient.close();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+
+            if (method.equals("POST") && path.endsWith("/oauth2/v2.0/token")) {
+                handleToken(exchange);
+            } else if (path.startsWith("/simulator/")) {
+                handleControl(exchange, path);
+            } else if (!isAuthorized(exchange)) {
+                respondError(exchange, 401, "InvalidAuthenticationToken", "Access token is empty or invalid.");
+            } else if (method.equals("GET") && path.equals("/v1.0/users")) {
+                handleUsers(exchange, false);
+            } else if (method.equals("GET") && path.equals("/v1.0/users/$count")) {
+                handleCount(exchange);
+            } else if (method.equals("GET") && path.equals("/v1.0/users/delta")) {
+                handleUsers(exchange, true);
+            } else if (method.equals("POST") && path.equals("/v1.0/$batch")) {
+                handleBatch(exchange);
+            } else if (method.equals("POST") && path.equals("/v1.0/subscriptions")) {
+                handleSubscription(exchange);
+            } else if (method.equals("PATCH") && path.startsWith("/v1.0/subscriptions/")) {
+                handleSubscriptionRenewal(exchange, path.substring("/v1.0/subscriptions/".length()));
+            } else {
+                respondError(exchange, 404, "Request_ResourceNotFound", "The simulator does not serve " + method + " " + path + ".");
+            }
+        } catch (Exception e) {
+            logger.error("Simulator failed to handle {} {}: {}", exchange.getRequestMethod(), exchange.getRequestURI(), e.getMessage(), e);
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        tokenRequests.incrementAndGet();
+        simulateLatency();
+        ObjectNode token = objectMapper.createObjectNode();
+        token.put("token_type", "Bearer");
+        token.put("expires_in", 3599);
+        token.put("access_token", "simulated-" + UUID.randomUUID());
+        respondJson(exchange, 200, generator -> generator.writeTree(token));
+    }
+
+    private void handleUsers(HttpExchange exchange, boolean delta) throws IOException {
+        pageRequests.incrementAndGet();
+        simulateLatency();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String path = delta ? "/users/delta" : "/users";
+        Set<String> select = query.containsKey("$select")
+                ? new LinkedHashSet<>(Arrays.asList(query.get("$select").split(",")))
+                : null;
+
+        if (delta && "latest".equals(query.get("$deltatoken"))) {
+            handleDeltaChanges(exchange, 0, select);
+            return;
+        }
+        if (delta && query.containsKey("$deltatoken")) {
+            handleDeltaChanges(exchange, Long.parseLong(query.get("$deltatoken")), select);
+            return;
+        }
+
+        String filter = delta ? null : query.get("$filter");
+        long[] range = indexRange(filter);
+        if (range == null) {
+            respondError(exchange, 400, "Request_UnsupportedQuery", "Unsupported query: " + filter);
+            return;
+        }
+
+        int top = Math.clamp(Integer.parseInt(query.getOrDefault("$top", String.valueOf(preferredPageSize(exchange)))), 1, MAX_PAGE_SIZE);
+        long offset = Math.max(range[0], Long.parseLong(query.getOrDefault("$skiptoken", "0")));
+        long end = Math.min(offset + top, range[1]);
+        usersServed.addAndGet(Math.max(0, end - offset));
+
+        String link;
+        if (end < range[1]) {
+            link = getBaseUrl() + path + "?" + (select != null ? "$select=" + String.join(",", select) + "&" : "")
+                    + (filter != null ? "$filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20") + "&" : "")
+                    + "$top=" + top + "&$skiptoken=" + end;
+        } else {
+            link = delta ? getBaseUrl() + "/users/delta?$deltatoken=1" : null;
+        }
+        String linkField = end < range[1] ? "@odata.nextLink" : "@odata.deltaLink";
+
+        respondJson(exchange, 200, generator -> {
+            generator.writeStartObject();
+            generator.writeStringField("@odata.context", getBaseUrl() + "/$metadata#users");
+            generator.writeArrayFieldStart("value");
+            for (long index = offset; index < end; index++) {
+                SyntheticUsers.write(generator, index, select, null);
+            }
+            generator.writeEndArray();
+            if (link != null) {
+                generator.writeStringField(linkField, link);
+            }
+            generator.writeEndObject();
+        });
+    }
+
+    // Like Graph, counting is an advanced query that needs ConsistencyLevel: eventual
+    private void handleCount(HttpExchange exchange) throws IOException {
+        pageRequests.incrementAndGet();
+        simulateLatency();
+        if (!"eventual".equals(exchange.getRequestHeaders().getFirst("ConsistencyLevel"))) {
+            respondError(exchange, 400, "Request_BadRequest", "Count is not supported without ConsistencyLevel: eventual.");
+            return;
+        }
+        String filter = parseQuery(exchange.getRequestURI().getRawQuery()).get("$filter");
+        long[] range = indexRange(filter);
+        if (range == null) {
+            respondError(exchange, 400, "Request_UnsupportedQuery", "Unsupported query: " + filter);
+            return;
+        }
+
+        byte[] body = String.valueOf(range[1] - range[0]).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Index range [from, to) of the users matching a filter of and-ed userPrincipalName ge/le/startswith
+     * terms, or null for filters the simulator does not understand. UPNs sort like their indexes.
+     */
+    private long[] indexRange(String filter) {
+        long from = 0;
+        long to = settings.userCount();
+        if (filter == null || filter.isBlank()) {
+            return new long[]{from, to};
+        }
+        for (String term : filter.trim().split("\\s+and\\s+")) {
+            Matcher comparison = COMPARISON_FILTER.matcher(term.trim());
+            Matcher startsWith = STARTSWITH_FILTER.matcher(term.trim());
+            if (comparison.matches()) {
+                String bound = comparison.group(2).toLowerCase();
+                if (comparison.group(1).equals("ge")) {
+                    from = Math.max(from, firstIndexAbove(bound, true));
+                } else {
+                    to = Math.min(to, firstIndexAbove(bound, false));
+                }
+            } else if (startsWith.matches()) {
+                String prefix = startsWith.group(1).toLowerCase();
+                from = Math.max(from, firstIndexAbove(prefix, true));
+                to = Math.min(to, firstIndexAbove(prefix + Character.MAX_VALUE, false));
+            } else {
+                return null;
+            }
+        }
+        return new long[]{from, Math.max(from, to)};
+    }
+
+    // First index whose UPN is >= bound (inclusive) or > bound, by binary search
+    private long firstIndexAbove(String bound, boolean inclusive) {
+        long low = 0;
+        long high = settings.userCount();
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            int comparison = SyntheticUsers.userPrincipalName(mid).compareTo(bound);
+            if (comparison > 0 || (inclusive && comparison == 0)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // Each delta round reports the next settings.deltaChanges users as updated; round 0 ($deltatoken=latest) none
+    private void handleDeltaChanges(HttpExchange exchange, long round, Set<String> select) throws IOException {
+        long changes = round == 0 ? 0 : Math.min(settings.deltaChanges(), settings.userCount());
+        long first = settings.userCount() == 0 ? 0 : ((round - 1) * changes) % settings.userCount();
+        usersServed.addAndGet(changes);
+
+        respondJson(exchange, 200, generator -> {
+            generator.writeStartObject();
+            generator.writeStringField("@odata.context", getBaseUrl() + "/$metadata#users");
+            generator.writeArrayFieldStart("value");
+            for (long i = 0; i < changes; i++) {
+                SyntheticUsers.write(generator, (first + i) % settings.userCount(), select, "(round " + round + ")");
+            }
+            generator.writeEndArray();
+            generator.writeStringField("@odata.deltaLink", getBaseUrl() + "/users/delta?$deltatoken=" + (round + 1));
+            generator.writeEndObject();
+        });
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        batchRequests.incrementAndGet();
+        JsonNode requests = objectMapper.readTree(exchange.getRequestBody()).path("requests");
+        if (!requests.isArray() || requests.isEmpty() || requests.size() > MAX_BATCH_SIZE) {
+            respondError(exchange, 400, "BadRequest", "A batch must contain between 1 and " + MAX_BATCH_SIZE + " requests.");
+            return;
+        }
+        simulateLatency();
+
+        ArrayNode responses = objectMapper.createArrayNode();
+        for (JsonNode request : requests) {
+            ObjectNode response = responses.addObject();
+            response.put("id", request.path("id").asText());
+            String method = request.path("method").asText();
+            String url = request.path("url").asText();
+
+            if (ThreadLocalRandom.current().nextDouble() < settings.throttleRate()) {
+                throttledRequests.incrementAndGet();
+                response.put("status", 429);
+                response.putObject("headers").put("Retry-After", String.valueOf(settings.retryAfterSeconds()));
+                response.set("body", error("TooManyRequests", "Too many requests."));
+            } else if (method.equals("POST") && url.equals("/users")) {
+                usersCreated.incrementAndGet();
+                ObjectNode user = request.path("body").deepCopy();
+                user.remove("passwordProfile");
+                user.put("id", UUID.randomUUID().toString());
+                response.put("status", 201);
+                response.putObject("headers").put("Content-Type", "application/json");
+                response.set("body", user);
+            } else if ((method.equals("PATCH") || method.equals("DELETE")) && url.startsWith("/users/")) {
+                // Generated users are not stored, so diff restores only need the request accepted
+                response.put("status", 204);
+            } else {
+                response.put("status", 400);
+                response.set("body", error("BadRequest", "The simulator does not support " + method + " " + url + " in a batch."));
+            }
+        }
+
+        ObjectNode body = objectMapper.createObjectNode();
+        body.set("responses", responses);
+        respondJson(exchange, 200, generator -> generator.writeTree(body));
+    }
+
+    private void handleSubscription(HttpExchange exchange) throws IOException, InterruptedException {
+        ObjectNode request = (ObjectNode) objectMapper.readTree(exchange.getRequestBody());
+        URI notificationUrl = URI.create(request.path("notificationUrl").asText());
+
+        // Like Graph, only create the subscription once the endpoint echoes the validation token
+        String validationToken = UUID.randomUUID().toString();
+        HttpResponse<String> validation = webhookClient.send(
+                webhookRequest(notificationUrl, "validationToken=" + validationToken)
+                        .header("Content-Type", "text/plain")
+                        .POST(HttpRequest.BodyPublishers.noBody())
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (validation.statusCode() != 200 || !validationToken.equals(validation.body())) {
+            respondError(exchange, 400, "ValidationError", "Subscription validation request failed. Response status " + validation.statusCode() + ".");
+            return;
+        }
+
+        String id = UUID.randomUUID().toString();
+        subscription = new Subscription(id, notificationUrl, request.path("clientState").asText(null),
+                request.path("resource").asText(), request.path("expirationDateTime").asText());
+        request.put("id", id);
+        request.put("applicationId", "simulated-application");
+        logger.info("Simulator created subscription {} for {}.", id, stripUserInfo(notificationUrl));
+        respondJson(exchange, 201, generator -> generator.writeTree(request));
+    }
+
+    private void handleSubscriptionRenewal(HttpExchange exchange, String id) throws IOException {
+        Subscription current = subscription;
+        if (current == null || !current.id().equals(id)) {
+            respondError(exchange, 404, "ResourceNotFound", "Subscription " + id + " does not exist.");
+            return;
+        }
+        JsonNode request = objectMapper.readTree(exchange.getRequestBody());
+        Subscription renewed = new Subscription(current.id(), current.notificationUrl(), current.clientState(),
+                current.resource(), request.path("expirationDateTime").asText(current.expirationDateTime()));
+        subscription = renewed;
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("id", renewed.id());
+        body.put("resource", renewed.resource());
+        body.put("expirationDateTime", renewed.expirationDateTime());
+        respondJson(exchange, 200, generator -> generator.writeTree(body));
+    }
+
+    // Lets a standalone simulator be driven with curl, e.g. POST /simulator/webhook-burst?notifications=10000
+    private void handleControl(HttpExchange exchange, String path) throws IOException, InterruptedException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (path.equals("/simulator/stats")) {
+            respondJson(exchange, 200, generator -> generator.writeObject(stats()));
+        } else if (path.equals("/simulator/webhook-burst") && exchange.getRequestMethod().equals("POST")) {
+            if (subscription == null) {
+                respondError(exchange, 409, "NoSubscription", "Create a subscription before sending notifications.");
+                return;
+            }
+            BurstReport report = sendNotificationBurst(
+                    Integer.parseInt(query.getOrDefault("notifications", "1000")),
+                    Integer.parseInt(query.getOrDefault("events", "1")),
+                    Integer.parseInt(query.getOrDefault("concurrency", "32")));
+            respondJson(exchange, 200, generator -> generator.writeObject(report));
+        } else {
+            respondError(exchange, 404, "NotFound", "Unknown simulator endpoint " + path + ".");
+        }
+    }
+
+    private ObjectNode notification(Subscription target, int index, int events) {
+        ObjectNode payload = objectMapper.createObjectNode();
+        ArrayNode value = payload.putArray("value");
+        for (int i = 0; i < events; i++) {
+            long userIndex = ((long) index * events + i) % Math.max(1, settings.userCount());
+            String userId = SyntheticUsers.id(userIndex);
+            ObjectNode event = value.addObject();
+            event.put("id", UUID.randomUUID().toString());
+            event.put("subscriptionId", target.id());
+            event.put("subscriptionExpirationDateTime", target.expirationDateTime());
+            event.put("clientState", target.clientState());
+            event.put("changeType", "updated");
+            event.put("resource", "Users/" + userId);
+            event.put("tenantId", TENANT_ID);
+            event.putObject("resourceData")
+                    .put("@odata.type", "#Microsoft.Graph.User")
+                    .put("@odata.id", "Users/" + userId)
+                    .put("id", userId)
+                    .put("organizationId", TENANT_ID);
+        }
+        return payload;
+    }
+
+    private HttpRequest.Builder webhookRequest(URI notificationUrl, String query) {
+        URI target = stripUserInfo(notificationUrl);
+        if (query != null) {
+            target = URI.create(target + (target.getRawQuery() == null ? "?" : "&") + query);
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(target).timeout(Duration.ofSeconds(30));
+        // The application's notification URL carries basic auth credentials, as Graph is configured with it
+        if (notificationUrl.getRawUserInfo() != null) {
+            String credentials = URLDecoder.decode(notificationUrl.getRawUserInfo(), StandardCharsets.UTF_8);
+            builder.header("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        return builder;
+    }
+
+    private static URI stripUserInfo(URI uri) {
+        String raw = uri.toString();
+        return uri.getRawUserInfo() == null ? uri : URI.create(raw.replace(uri.getRawUserInfo() + "@", ""));
+    }
+
+    // Delta queries are sized with Prefer: odata.maxpagesize=N rather than $top
+    private static int preferredPageSize(HttpExchange exchange) {
+        String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+        if (prefer != null) {
+            for (String preference : prefer.split(",")) {
+                String[] parts = preference.trim().split("=", 2);
+                if (parts.length == 2 && parts[0].equals("odata.maxpagesize")) {
+                    return Integer.parseInt(parts[1].trim());
+                }
+            }
+        }
+        return DEFAULT_PAGE_SIZE;
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null && authorization.startsWith("Bearer simulated-");
+    }
+
+    private void simulateLatency() {
+        long latencyMs = settings.latency().toMillis();
+        long jitterMs = settings.latencyJitter().toMillis();
+        if (jitterMs > 0) {
+            latencyMs += ThreadLocalRandom.current().nextLong(jitterMs + 1);
+        }
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private ObjectNode error(String code, String message) {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.putObject("error")
+                .put("code", code)
+                .put("message", message);
+        return body;
+    }
+
+    private void respondError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        ObjectNode body = error(code, message);
+        respondJson(exchange, status, generator -> generator.writeTree(body));
+    }
+
+    // Streams the body chunked, gzip-compressed when the client asks for it, like Graph does
+    private void respondJson(HttpExchange exchange, int status, JsonWriter writer) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, 0);
+
+        OutputStream body = gzip ? new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024) : exchange.getResponseBody();
+        try (JsonGenerator generator = objectMapper.createGenerator(body)) {
+            writer.write(generator);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static long percentileMs(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return Duration.ofNanos(sortedNanos[Math.clamp(index, 0, sortedNanos.length - 1)]).toMillis();
+    }
+
+    /**
+     * Runs a standalone simulator, configured with -Dsimulator.* system properties.
+     */
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.defaults()
+                .withPort(Integer.getInteger("simulator.port", 8089))
+                .withUserCount(Long.getLong("simulator.users", 1_000_000))
+                .withLatency(Duration.ofMillis(Long.getLong("simulator.latency-ms", 0)))
+                .withLatencyJitter(Duration.ofMillis(Long.getLong("simulator.latency-jitter-ms", 0)))
+                .withThrottleRate(Double.parseDouble(System.getProperty("simulator.throttle-rate", "0")))
+                .withRetryAfterSeconds(Integer.getInteger("simulator.retry-after-seconds", 1))
+                .withDeltaChanges(Integer.getInteger("simulator.delta-changes", 0));
+        GraphSimulator simulator = start(settings);
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+        logger.info("Run the application with GRAPH_BASE_URL={} GRAPH_LOGIN_URL={}", simulator.getBaseUrl(), simulator.getLoginUrl());
+        Thread.currentThread().join();
+    }
+
+    @FunctionalInterface
+    private interface JsonWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private record Subscription(String id, URI notificationUrl, String clientState, String resource, String expirationDateTime) {
+    }
+
+    /**
+     * @param port            port to listen on, 0 for any free port
+     * @param userCount       number of synthetic users in the tenant
+     * @param latency         added to every token, page and $batch response
+     * @param latencyJitter   random extra latency of up to this much, for a tail
+     * @param throttleRate    share of $batch sub-requests answered with 429, 0 to 1
+     * @param retryAfterSeconds Retry-After sent with throttled sub-requests
+     * @param deltaChanges    users reported as updated in each delta round after the initial one
+     */
+    public record Settings(int port, long userCount, Duration latency, Duration latencyJitter,
+                           double throttleRate, int retryAfterSeconds, int deltaChanges) {
+        public static Settings defaults() {
+            return new Settings(0, 10_000, Duration.ZERO, Duration.ZERO, 0.0, 1, 0);
+        }
+
+        public Settings withPort(int port) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withUserCount(long userCount) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withLatency(Duration latency) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withLatencyJitter(Duration latencyJitter) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withThrottleRate(double throttleRate) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withRetryAfterSeconds(int retryAfterSeconds) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+
+        public Settings withDeltaChanges(int deltaChanges) {
+            return new Settings(port, userCount, latency, latencyJitter, throttleRate, retryAfterSeconds, deltaChanges);
+        }
+    }
+
+    public record Stats(long tokenRequests, long pageRequests, long usersServed,
+                        long batchRequests, long usersCreated, long throttledRequests) {
+    }
+
+    public record BurstReport(int sent, int accepted, int rejected, int failed, long durationMs,
+                              long p50Ms, long p95Ms, long p99Ms, long maxMs) {
+    }
+}
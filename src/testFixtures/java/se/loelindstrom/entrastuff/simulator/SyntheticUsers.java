@@ -0,0 +1,75 @@
+package se.loelindstrom.entrastuff.simulator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Synthetic users derived from their index, so millions can be served without holding them in memory.
+ * User principal names are zero-padded, which makes their sort order match the index order.
+ */
+final class SyntheticUsers {
+    static final String DOMAIN = "simulated.onmicrosoft.com";
+
+    private SyntheticUsers() {
+    }
+
+    static String id(long index) {
+        return UUID.nameUUIDFromBytes(("synthetic-user-" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    static String userPrincipalName(long index) {
+        return String.format("user%09d@%s", index, DOMAIN);
+    }
+
+    /**
+     * Writes one user with the default /v1.0/users property set, limited to {@code select} when it is not null.
+     */
+    static void write(JsonGenerator generator, long index, Set<String> select, String displayNameSuffix) throws IOException {
+        String upn = userPrincipalName(index);
+        generator.writeStartObject();
+        if (selected(select, "businessPhones")) {
+            generator.writeArrayFieldStart("businessPhones");
+            generator.writeString("+46 8 123 " + String.format("%04d", index % 10_000));
+            generator.writeEndArray();
+        }
+        if (selected(select, "displayName")) {
+            String displayName = "Synthetic User " + index;
+            generator.writeStringField("displayName", displayNameSuffix == null ? displayName : displayName + " " + displayNameSuffix);
+        }
+        if (selected(select, "givenName")) {
+            generator.writeStringField("givenName", "Synthetic");
+        }
+        if (selected(select, "jobTitle")) {
+            generator.writeStringField("jobTitle", index % 3 == 0 ? "Engineer" : null);
+        }
+        if (selected(select, "mail")) {
+            generator.writeStringField("mail", upn);
+        }
+        if (selected(select, "mobilePhone")) {
+            generator.writeNullField("mobilePhone");
+        }
+        if (selected(select, "officeLocation")) {
+            generator.writeStringField("officeLocation", index % 2 == 0 ? "Stockholm" : null);
+        }
+        if (selected(select, "preferredLanguage")) {
+            generator.writeStringField("preferredLanguage", "sv-SE");
+        }
+        if (selected(select, "surname")) {
+            generator.writeStringField("surname", "User " + index);
+        }
+        if (selected(select, "userPrincipalName")) {
+            generator.writeStringField("userPrincipalName", upn);
+        }
+        // Graph always returns the id, also when it is not selected
+        generator.writeStringField("id", id(index));
+        generator.writeEndObject();
+    }
+
+    private static boolean selected(Set<String> select, String property) {
+        return select == null || select.contains(property);
+    }
+}